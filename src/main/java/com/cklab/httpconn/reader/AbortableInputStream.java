@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.cklab.httpconn.request.HTTPRequest;
+
+/**
+ * AbortableInputStream class.
+ * 
+ * The response body of a request, which stops being readable once the request is cancelled or exceeds its deadline.
+ * Closing a connection from another thread waits for the read in progress to return, a server trickling its response
+ * would otherwise keep it busy until the end.
+ * 
+ * @author cklab
+ * 
+ */
+class AbortableInputStream extends FilterInputStream {
+
+	private final HTTPRequest	req;
+
+	AbortableInputStream(InputStream in, HTTPRequest req) {
+		super(in);
+		this.req = req;
+	}
+
+	private void check() throws IOException {
+		if (req.isCancelled()) {
+			throw new IOException("Request cancelled");
+		}
+		if (req.isTimedOut()) {
+			throw new IOException("Deadline exceeded");
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+		check();
+		return super.read();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		check();
+		return super.read(b, off, len);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.FilterInputStream#skip(long)
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		check();
+		return super.skip(n);
+	}
+}
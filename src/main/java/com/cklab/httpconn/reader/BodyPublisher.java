@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.cklab.httpconn.request.HTTPRequest;
+import com.cklab.httpconn.util.Flow;
+
+/**
+ * BodyPublisher class.
+ * 
+ * Publishes the response body of a request as it is read, see {@link HTTPReader#publish(HTTPRequest)}. The request is
+ * sent when the subscriber subscribes, and the subscriber is given a {@link BodySubscription} once the status code,
+ * headers and cookies of the response are known. The body is read from the connection only as the subscriber requests
+ * it, one buffer of up to {@value BodySubscription#CHUNK_SIZE} bytes per item; no thread waits on a subscriber that
+ * has not requested any.
+ * 
+ * A request is executed once, so a publisher takes a single subscriber.
+ * 
+ * @author cklab
+ * 
+ */
+public class BodyPublisher implements Flow.Publisher<ByteBuffer> {
+
+	private final HTTPReader	rdr;
+	private final HTTPRequest	req;
+	private final AtomicBoolean	subscribed;
+
+	/**
+	 * Create a BodyPublisher.
+	 * 
+	 * @param rdr
+	 *            the reader to execute the request with
+	 * @param req
+	 *            the request
+	 */
+	BodyPublisher(HTTPReader rdr, HTTPRequest req) {
+		this.rdr = rdr;
+		this.req = req;
+		this.subscribed = new AtomicBoolean();
+	}
+
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("subscriber is null");
+		}
+		final BodySubscription subscription = new BodySubscription(rdr, req, subscriber);
+		if (!subscribed.compareAndSet(false, true)) {
+			subscription.reject(new IllegalStateException("The body of " + rdr.getAbsoluteURI(req) + " is already subscribed to"));
+			return;
+		}
+		HTTPReader.EXECUTOR.execute(new Runnable() {
+			public void run() {
+				subscription.start();
+			}
+		});
+	}
+
+	/**
+	 * Get the request whose body is published.
+	 * 
+	 * @return the request
+	 */
+	public HTTPRequest getRequest() {
+		return req;
+	}
+}
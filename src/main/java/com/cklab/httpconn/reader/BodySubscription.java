@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cklab.httpconn.request.HTTPRequest;
+import com.cklab.httpconn.util.Flow;
+import com.cklab.httpconn.util.HeaderMap;
+
+/**
+ * BodySubscription class.
+ * 
+ * The subscription of a {@link BodyPublisher}. The status code, headers and cookies of the response are known when it
+ * is handed to {@link Flow.Subscriber#onSubscribe(Flow.Subscription)}, before any of the body is read. Each item
+ * requested is one read from the connection.
+ * 
+ * The request is not retried and its redirects are not followed: a redirect publishes its own body, and its Location
+ * header is in {@link #getHeaders()}. Cancelling the subscription cancels the request.
+ * 
+ * @author cklab
+ * 
+ */
+public class BodySubscription implements Flow.Subscription {
+
+	/**
+	 * The largest buffer published, in bytes.
+	 */
+	public static final int							CHUNK_SIZE	= 8 * 1024;
+
+	private final HTTPReader						rdr;
+	private final HTTPRequest						req;
+	private final Flow.Subscriber<? super ByteBuffer>	subscriber;
+
+	private HttpURLConnection						conn;
+	private InputStream								body;
+	private Future<?>								watchdog;
+
+	private final AtomicLong						demand;
+	// the number of times the body has to be drained, only the caller that raises it from 0 drains it
+	private final AtomicInteger						wip;
+	private volatile boolean						done;
+	private volatile Throwable						pendingError;
+
+	BodySubscription(HTTPReader rdr, HTTPRequest req, Flow.Subscriber<? super ByteBuffer> subscriber) {
+		this.rdr = rdr;
+		this.req = req;
+		this.subscriber = subscriber;
+		this.demand = new AtomicLong();
+		this.wip = new AtomicInteger();
+	}
+
+	/**
+	 * Turn down a subscriber.
+	 */
+	void reject(Throwable failure) {
+		done = true;
+		subscriber.onSubscribe(this);
+		subscriber.onError(failure);
+	}
+
+	/**
+	 * Send the request, hand the subscription over once the head of the response is read, and publish what has been
+	 * requested meanwhile.
+	 */
+	void start() {
+		// nothing is published before onSubscribe returns, the requests it makes are drained below
+		wip.set(1);
+
+		IOException failure = null;
+		try {
+			rdr.startDeadline(req);
+			conn = rdr.openResponse(req);
+			if (req.getExpiresAt() > 0) {
+				watchdog = HTTPReader.abortAt(req, conn, req.getExpiresAt(), true);
+			}
+			// the body of an error is sent like any other
+			InputStream stream = req.getStatusCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+			if (stream != null) {
+				body = new AbortableInputStream(stream, req);
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		subscriber.onSubscribe(this);
+
+		if (failure != null) {
+			if (!done) {
+				done = true;
+				release(true);
+				subscriber.onError(failure);
+			}
+			return;
+		}
+		drain(1);
+	}
+
+	public void request(long n) {
+		if (n <= 0) {
+			pendingError = new IllegalArgumentException("Non-positive request: " + n);
+		} else {
+			long current;
+			do {
+				current = demand.get();
+				if (current == Long.MAX_VALUE) {
+					break;
+				}
+			} while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+		}
+		if (wip.getAndIncrement() == 0) {
+			HTTPReader.EXECUTOR.execute(new Runnable() {
+				public void run() {
+					drain(1);
+				}
+			});
+		}
+	}
+
+	public void cancel() {
+		if (!done) {
+			done = true;
+			// aborts the read in progress, the drain loop releases the connection once it returns
+			req.cancel();
+			if (wip.getAndIncrement() == 0) {
+				release(true);
+			}
+		}
+	}
+
+	private void drain(int missed) {
+		while (true) {
+			if (done) {
+				release(true);
+				return;
+			}
+			if (pendingError != null) {
+				done = true;
+				req.cancel();
+				release(true);
+				subscriber.onError(pendingError);
+				return;
+			}
+			while (demand.get() > 0 && !done) {
+				byte[] chunk = new byte[CHUNK_SIZE];
+				int n;
+				try {
+					n = body == null ? -1 : body.read(chunk);
+				} catch (IOException e) {
+					// a cancelled read fails too, but it is not reported
+					boolean cancelled = done;
+					done = true;
+					release(true);
+					if (!cancelled) {
+						subscriber.onError(e);
+					}
+					return;
+				}
+				if (n < 0) {
+					done = true;
+					release(false);
+					subscriber.onComplete();
+					return;
+				}
+				if (n > 0) {
+					demand.decrementAndGet();
+					subscriber.onNext(ByteBuffer.wrap(chunk, 0, n));
+				}
+			}
+			missed = wip.addAndGet(-missed);
+			if (missed == 0) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Give the connection back: to the keep-alive cache once the body is read, otherwise close it.
+	 */
+	private synchronized void release(boolean abort) {
+		if (watchdog != null) {
+			watchdog.cancel(false);
+			watchdog = null;
+		}
+		req.setConnection(null);
+		if (abort && conn != null) {
+			HTTPReader.abort(conn);
+		} else if (body != null) {
+			try {
+				body.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		conn = null;
+		body = null;
+	}
+
+	/**
+	 * Get the request this is the response of.
+	 * 
+	 * @return the request
+	 */
+	public HTTPRequest getRequest() {
+		return req;
+	}
+
+	/**
+	 * Get the status code of the response.
+	 * 
+	 * @return the status code, or 0 if the request failed before one was received.
+	 */
+	public int getStatusCode() {
+		return req.getStatusCode();
+	}
+
+	/**
+	 * Get the headers of the response.
+	 * 
+	 * @return the headers, or null if the request failed before they were received.
+	 */
+	public HeaderMap getHeaders() {
+		return req.getHeaders();
+	}
+
+	/**
+	 * Get the first value of a response header.
+	 * 
+	 * @param name
+	 *            the name of the header, in any case
+	 * @return the value, or null if the server did not send it
+	 */
+	public String getHeader(String name) {
+		return req.getHeader(name);
+	}
+
+	/**
+	 * Get the cookies of the reader, including the ones the response set.
+	 * 
+	 * @return the cookie string (each cookie separated by a semi-colon)
+	 */
+	public String getCookies() {
+		return rdr.getCookies();
+	}
+}
@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.cklab.httpconn.util.DaemonThreadFactory;
+
+/**
+ * ConnectionWarmer class.
+ * 
+ * Opens connections to the host of {@link HTTPReader}s ahead of time, so that their first requests do not pay for the
+ * DNS lookup, the TCP connection and the TLS handshake. A connection is opened by sending a HEAD request for the root
+ * page; once answered, it waits in the keep-alive cache of the JVM for the next request to the same host.
+ * 
+ * The JVM keeps at most <code>http.maxConnections</code> (5 by default) idle connections per host, so no more than
+ * that many are opened for a reader. Idle connections are closed after a few seconds, the keep-warm mode of
+ * {@link #keepWarm(HTTPReader, int, boolean)} uses them again before that happens, but only when there would
+ * otherwise be fewer than asked for.
+ * 
+ * The JVM does not tell how many idle connections it holds, so the keep-warm mode counts them itself: those it left
+ * in the cache, and the one last used by the reader for its own requests, each kept {@link #KEEP_ALIVE} after its
+ * last use.
+ * 
+ * @author cklab
+ * 
+ */
+public class ConnectionWarmer {
+
+	private static final ExecutorService		WARMER	= Executors.newCachedThreadPool(new DaemonThreadFactory("HTTPConn warm-up"));
+
+	/**
+	 * How long the JVM keeps an idle connection, unless the server asks for less.
+	 */
+	public static final long					KEEP_ALIVE	= 5 * 1000;
+
+	private static ConnectionWarmer				defaultWarmer;
+
+	private final Map<HTTPReader, ScheduledFuture<?>>	keptWarm;
+	private ScheduledExecutorService			scheduler;
+	private long								interval;
+
+	private long								established;
+	private long								failed;
+
+	/**
+	 * Create a warmer. Readers kept warm have their idle connections counted every second.
+	 */
+	public ConnectionWarmer() {
+		this.keptWarm = new HashMap<HTTPReader, ScheduledFuture<?>>();
+		this.interval = 1000;
+	}
+
+	/**
+	 * Get the warmer shared by the whole JVM.
+	 * 
+	 * @return the shared warmer
+	 */
+	public static synchronized ConnectionWarmer getDefault() {
+		if (defaultWarmer == null) {
+			defaultWarmer = new ConnectionWarmer();
+		}
+		return defaultWarmer;
+	}
+
+	/**
+	 * Set how often the idle connections of readers kept warm are counted. Those that would expire before the next
+	 * count are used again then, so this should stay well under {@link #KEEP_ALIVE}. This only applies to readers
+	 * kept warm afterwards.
+	 * 
+	 * @param interval
+	 *            the interval in milliseconds
+	 */
+	public synchronized void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Open connections to the host of a reader and wait for them to be established.
+	 * 
+	 * @param rdr
+	 *            the reader
+	 * @param connections
+	 *            the number of connections to open
+	 * @param useSSL
+	 *            whether or not the connections use SSL
+	 * @return the number of connections established
+	 */
+	public int warmUp(HTTPReader rdr, int connections, boolean useSSL) {
+		return warmUp(Collections.singletonList(rdr), connections, useSSL);
+	}
+
+	/**
+	 * Open connections to the hosts of several readers at once and wait for them to be established.
+	 * 
+	 * @param readers
+	 *            the readers
+	 * @param connections
+	 *            the number of connections to open for each reader
+	 * @param useSSL
+	 *            whether or not the connections use SSL
+	 * @return the number of connections established, over all readers
+	 */
+	public int warmUp(Collection<HTTPReader> readers, final int connections, final boolean useSSL) {
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (final HTTPReader rdr : readers) {
+			results.add(WARMER.submit(new Callable<Integer>() {
+				public Integer call() {
+					return warmUpReader(rdr, connections, useSSL, false);
+				}
+			}));
+		}
+
+		int count = 0;
+		for (Future<Integer> result : results) {
+			count += get(result);
+		}
+		return count;
+	}
+
+	/**
+	 * Open the connections of one reader. Unless some are already idle in the cache, a first connection is opened
+	 * alone so that the others can resume its TLS session instead of each performing a full handshake; it is then
+	 * reused by one of them. The connections are requested all at once, so the idle ones are taken from the cache
+	 * before any new one is opened.
+	 */
+	private int warmUpReader(final HTTPReader rdr, int connections, final boolean useSSL, boolean idle) {
+		connections = Math.min(connections, getMaxConnections());
+		if (connections <= 0) {
+			return 0;
+		}
+
+		if (!idle && !rdr.openIdleConnection(useSSL, null)) {
+			// the host is unreachable, there is no point in trying the others
+			synchronized (this) {
+				failed++;
+			}
+			return 0;
+		}
+		if (!idle && connections == 1) {
+			synchronized (this) {
+				established++;
+			}
+			return 1;
+		}
+
+		// the connections must be open at the same time, or the JVM would reuse the same one for each request
+		final CountDownLatch connected = new CountDownLatch(connections);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < connections; i++) {
+			results.add(WARMER.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					return open(rdr, useSSL, connected);
+				}
+			}));
+		}
+
+		int count = 0;
+		for (Future<Boolean> result : results) {
+			if (get(result)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static int getMaxConnections() {
+		return Integer.getInteger("http.maxConnections", 5);
+	}
+
+	private boolean open(HTTPReader rdr, boolean useSSL, CountDownLatch connected) {
+		boolean opened = rdr.openIdleConnection(useSSL, connected);
+		synchronized (this) {
+			if (opened) {
+				established++;
+			} else {
+				failed++;
+			}
+		}
+		return opened;
+	}
+
+	private static <T> T get(Future<T> result) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return result.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Keep idle connections open to the host of a reader, until {@link #stopKeepingWarm(HTTPReader)} is called. Nothing
+	 * is sent while there are enough idle connections; once some are about to expire, all of them are used again and
+	 * only the missing ones are opened.
+	 * 
+	 * @param rdr
+	 *            the reader
+	 * @param minIdle
+	 *            the number of idle connections to maintain
+	 * @param useSSL
+	 *            whether or not the connections use SSL
+	 */
+	public synchronized void keepWarm(HTTPReader rdr, int minIdle, boolean useSSL) {
+		stopKeepingWarm(rdr);
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("HTTPConn keep-warm"));
+		}
+		keptWarm.put(rdr, scheduler.scheduleWithFixedDelay(new KeepWarm(rdr, minIdle, useSSL, interval), 0, interval,
+				TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Counts the idle connections of a reader kept warm, and tops them up when some are about to expire. Only ever run
+	 * by the scheduler thread.
+	 */
+	private class KeepWarm implements Runnable {
+
+		private final HTTPReader	rdr;
+		private final int			minIdle;
+		private final boolean		useSSL;
+		private final long			interval;
+
+		// when each connection left in the cache expires, the latest first as the JVM hands them out
+		private final List<Long>	expiries;
+		private long				lastExchange;
+
+		KeepWarm(HTTPReader rdr, int minIdle, boolean useSSL, long interval) {
+			this.rdr = rdr;
+			this.minIdle = Math.min(minIdle, getMaxConnections());
+			this.useSSL = useSSL;
+			this.interval = interval;
+			this.expiries = new ArrayList<Long>();
+		}
+
+		public void run() {
+			long now = System.currentTimeMillis();
+			while (!expiries.isEmpty() && expiries.get(expiries.size() - 1) <= now) {
+				expiries.remove(expiries.size() - 1);
+			}
+
+			// a request of the reader took the most recent idle connection (or opened one) and gave it back
+			long exchange = rdr.getLastExchange();
+			if (exchange > lastExchange) {
+				lastExchange = exchange;
+				if (!expiries.isEmpty()) {
+					expiries.remove(0);
+				}
+				if (exchange + KEEP_ALIVE > now) {
+					expiries.add(0, exchange + KEEP_ALIVE);
+				}
+			}
+
+			// enough of them still there by the next count
+			int idle = 0;
+			for (long expiry : expiries) {
+				if (expiry > now + interval) {
+					idle++;
+				}
+			}
+			if (idle >= minIdle) {
+				return;
+			}
+
+			int opened = warmUpReader(rdr, minIdle, useSSL, !expiries.isEmpty());
+			lastExchange = Math.max(lastExchange, rdr.getLastExchange());
+			long expiry = System.currentTimeMillis() + KEEP_ALIVE;
+			expiries.clear();
+			for (int i = 0; i < opened; i++) {
+				expiries.add(expiry);
+			}
+		}
+	}
+
+	/**
+	 * Stop keeping connections open to the host of a reader. The connections already open are left to expire.
+	 * 
+	 * @param rdr
+	 *            the reader
+	 */
+	public synchronized void stopKeepingWarm(HTTPReader rdr) {
+		ScheduledFuture<?> task = keptWarm.remove(rdr);
+		if (task != null) {
+			task.cancel(false);
+		}
+	}
+
+	/**
+	 * The number of readers kept warm.
+	 * 
+	 * @return the number of readers
+	 */
+	public synchronized int getKeptWarm() {
+		return keptWarm.size();
+	}
+
+	/**
+	 * The number of connections established so far.
+	 * 
+	 * @return the number of connections
+	 */
+	public synchronized long getEstablished() {
+		return established;
+	}
+
+	/**
+	 * The number of connections that could not be established.
+	 * 
+	 * @return the number of failures
+	 */
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public synchronized String toString() {
+		return "ConnectionWarmer [keptWarm=" + keptWarm.size() + ", established=" + established + ", failed=" + failed
+				+ "]";
+	}
+}
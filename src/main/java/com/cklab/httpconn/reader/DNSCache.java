@@ -0,0 +1,358 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cklab.httpconn.util.DaemonThreadFactory;
+
+/**
+ * DNSCache class.
+ * 
+ * Caches host name resolutions for {@link HTTPReader}s, see {@link HTTPReader#setDNSCache(DNSCache)}. Only the
+ * connections opened by this library itself, those of {@link WebSocket}s, go to the cached addresses: HttpURLConnection
+ * resolves host names on its own.
+ * <ul>
+ * <li>Results are kept for the time to live reported by the {@link HostResolver}.</li>
+ * <li>Once a result is past {@link #setRefreshThreshold(double) a fraction} of its time to live, it is still served
+ * but refreshed in the background, so requests do not wait for a lookup while the host stays in use.</li>
+ * <li>Failed lookups are cached for the {@link #setNegativeTTL(long) negative time to live}, so an unknown host fails
+ * immediately instead of paying for a lookup on every attempt. A failed refresh keeps the result it was refreshing
+ * until that expires, and is retried after the negative time to live.</li>
+ * <li>At most {@link #setMaxSize(int) a number of hosts} are cached; once there are more, the expired ones are removed
+ * first, then those closest to expiring.</li>
+ * </ul>
+ * 
+ * @author cklab
+ * 
+ */
+public class DNSCache {
+
+	private static DNSCache						defaultCache;
+
+	private static final ExecutorService	REFRESHER		= Executors.newCachedThreadPool(new DaemonThreadFactory("HTTPConn DNS refresh"));
+
+	private final HostResolver					resolver;
+	private final ConcurrentMap<String, Entry>	entries;
+
+	private volatile long						negativeTTL;
+	private volatile double						refreshThreshold;
+	private volatile int						maxSize;
+
+	private final AtomicLong					hits			= new AtomicLong();
+	private final AtomicLong					misses			= new AtomicLong();
+	private final AtomicLong					negativeHits	= new AtomicLong();
+	private final AtomicLong					refreshes		= new AtomicLong();
+	private final AtomicLong					failures		= new AtomicLong();
+
+	/**
+	 * A cached resolution, or a cached failure.
+	 */
+	private static class Entry {
+		final ResolvedHost			resolved;
+		final UnknownHostException	failure;
+		final long					expiresAt;
+		final long					refreshAt;
+		volatile boolean			refreshing;
+
+		Entry(ResolvedHost resolved, UnknownHostException failure, long expiresAt, long refreshAt) {
+			this.resolved = resolved;
+			this.failure = failure;
+			this.expiresAt = expiresAt;
+			this.refreshAt = refreshAt;
+		}
+	}
+
+	/**
+	 * Create a DNSCache that resolves with the {@link SystemHostResolver}.
+	 */
+	public DNSCache() {
+		this(new SystemHostResolver());
+	}
+
+	/**
+	 * Create a DNSCache that resolves with the given resolver.
+	 * 
+	 * @param resolver
+	 *            the resolver
+	 */
+	public DNSCache(HostResolver resolver) {
+		this.resolver = resolver;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.negativeTTL = 10 * 1000;
+		this.refreshThreshold = 0.75;
+		this.maxSize = 1000;
+	}
+
+	/**
+	 * Get the DNSCache shared by the whole JVM, using the {@link SystemHostResolver}.
+	 * 
+	 * @return the shared DNSCache
+	 */
+	public static synchronized DNSCache getDefault() {
+		if (defaultCache == null) {
+			defaultCache = new DNSCache();
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Set how long failed lookups are cached.
+	 * 
+	 * @param negativeTTL
+	 *            the time in milliseconds, 0 to not cache failures
+	 */
+	public void setNegativeTTL(long negativeTTL) {
+		this.negativeTTL = negativeTTL;
+	}
+
+	/**
+	 * Set the fraction of the time to live after which a result is refreshed in the background.
+	 * 
+	 * @param refreshThreshold
+	 *            the fraction, between 0 and 1; 1 disables background refreshes
+	 */
+	public void setRefreshThreshold(double refreshThreshold) {
+		this.refreshThreshold = refreshThreshold;
+	}
+
+	/**
+	 * Set how many hosts are cached at most.
+	 * 
+	 * @param maxSize
+	 *            the number of hosts
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Resolve a host, from the cache if possible.
+	 * 
+	 * @param host
+	 *            the host name
+	 * @return the resolved host
+	 * @throws UnknownHostException
+	 *             if the host cannot be resolved, or failed to resolve recently
+	 */
+	public ResolvedHost resolve(String host) throws UnknownHostException {
+		String key = host.toLowerCase();
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(key);
+
+		if (entry != null && now < entry.expiresAt) {
+			if (entry.failure != null) {
+				negativeHits.incrementAndGet();
+				throw entry.failure;
+			}
+			hits.incrementAndGet();
+			if (now >= entry.refreshAt && !entry.refreshing) {
+				refreshLater(key, entry);
+			}
+			return entry.resolved;
+		}
+
+		misses.incrementAndGet();
+		entry = lookup(key);
+		if (entry.failure != null) {
+			throw entry.failure;
+		}
+		return entry.resolved;
+	}
+
+	/**
+	 * Resolve a host ahead of time, in the background.
+	 * 
+	 * @param host
+	 *            the host name
+	 */
+	public void prefetch(final String host) {
+		final String key = host.toLowerCase();
+		Entry entry = entries.get(key);
+		if (entry == null || System.currentTimeMillis() >= entry.refreshAt) {
+			REFRESHER.execute(new Runnable() {
+				public void run() {
+					lookup(key);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Remove a host from the cache.
+	 * 
+	 * @param host
+	 *            the host name
+	 */
+	public void invalidate(String host) {
+		entries.remove(host.toLowerCase());
+	}
+
+	/**
+	 * Remove every host from the cache.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Refresh an entry in the background. Only one refresh per entry is started.
+	 */
+	private void refreshLater(final String key, Entry entry) {
+		synchronized (entry) {
+			if (entry.refreshing) {
+				return;
+			}
+			entry.refreshing = true;
+		}
+		REFRESHER.execute(new Runnable() {
+			public void run() {
+				refreshes.incrementAndGet();
+				lookup(key);
+			}
+		});
+	}
+
+	/**
+	 * Resolve a host and cache the result, or the failure. A failure does not replace a result that is still valid,
+	 * which is only refreshed again after the negative time to live.
+	 */
+	private Entry lookup(String key) {
+		Entry entry;
+		long now;
+		try {
+			ResolvedHost resolved = resolver.resolve(key);
+			now = System.currentTimeMillis();
+			long ttl = Math.max(0, resolved.getTTL());
+			entry = new Entry(resolved, null, now + ttl, now + (long) (ttl * refreshThreshold));
+		} catch (UnknownHostException e) {
+			failures.incrementAndGet();
+			now = System.currentTimeMillis();
+			Entry current = entries.get(key);
+			if (current != null && current.failure == null && now < current.expiresAt) {
+				entry = new Entry(current.resolved, null, current.expiresAt, Math.min(current.expiresAt, now + negativeTTL));
+			} else {
+				entry = new Entry(null, e, now + negativeTTL, now + negativeTTL);
+			}
+		}
+		entries.put(key, entry);
+		if (entries.size() > maxSize) {
+			evict(now);
+		}
+		return entry;
+	}
+
+	/**
+	 * Bring the cache back to its maximum size: remove the expired hosts, then those closest to expiring.
+	 */
+	private synchronized void evict(long now) {
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			if (now >= it.next().expiresAt) {
+				it.remove();
+			}
+		}
+		while (entries.size() > maxSize) {
+			String soonest = null;
+			long expiresAt = Long.MAX_VALUE;
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				if (e.getValue().expiresAt < expiresAt) {
+					soonest = e.getKey();
+					expiresAt = e.getValue().expiresAt;
+				}
+			}
+			if (soonest == null) {
+				return;
+			}
+			entries.remove(soonest);
+		}
+	}
+
+	/**
+	 * The number of lookups answered from the cache.
+	 * 
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * The number of lookups that had to wait for the resolver.
+	 * 
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * The number of lookups answered with a cached failure.
+	 * 
+	 * @return the number of negative hits
+	 */
+	public long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	/**
+	 * The number of background refreshes started.
+	 * 
+	 * @return the number of refreshes
+	 */
+	public long getRefreshes() {
+		return refreshes.get();
+	}
+
+	/**
+	 * The number of failed resolutions.
+	 * 
+	 * @return the number of failures
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * The number of hosts in the cache, including failures.
+	 * 
+	 * @return the number of hosts in the cache
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DNSCache [hosts=" + size() + ", hits=" + hits + ", misses=" + misses + ", negativeHits=" + negativeHits + ", refreshes="
+				+ refreshes + ", failures=" + failures + "]";
+	}
+}
@@ -0,0 +1,381 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+
+import com.cklab.httpconn.request.HTTPRequest;
+import com.cklab.httpconn.util.BodyDecoder;
+import com.cklab.httpconn.util.ServerSentEvent;
+import com.cklab.httpconn.util.ServerSentEventListener;
+
+/**
+ * EventStream class.
+ * 
+ * Reads a <code>text/event-stream</code> (Server-Sent Events) and hands its events to a
+ * {@link ServerSentEventListener} as they arrive. The stream is read on a thread of its own, without the read timeout
+ * and deadline of the reader: it only fails once the server has sent nothing, not even a comment, for the idle
+ * timeout.
+ * 
+ * When the stream ends or fails it is reconnected after the reconnection delay, which the server can change with a
+ * <code>retry</code> field, sending the ID of the last event received as <code>Last-Event-ID</code> so that the server
+ * resumes after it. Failures in a row double the delay, up to {@link #MAX_RECONNECT_DELAY}. A stream the server ends
+ * with 204 No Content, or answers with anything else than 200 and <code>text/event-stream</code> (5xx aside), is not
+ * reconnected. Streams that end normally leave their connection to the keep-alive cache for the next one. An
+ * exception thrown by the listener for an event fails the connection like a read error does.
+ * 
+ * @author cklab
+ * 
+ */
+public class EventStream {
+
+	/**
+	 * The longest delay between reconnections, in milliseconds.
+	 */
+	public static final long				MAX_RECONNECT_DELAY	= 60 * 1000;
+
+	private static final Charset			UTF_8				= Charset.forName("UTF-8");
+
+	private final HTTPReader				rdr;
+	private final HTTPRequest				req;
+	private final ServerSentEventListener	listener;
+
+	private int								idleTimeout;
+	private long							reconnectDelay;
+	private String							lastEventId;
+
+	private volatile boolean				closed;
+	private volatile HTTPRequest			current;
+
+	private long							events;
+	private long							connections;
+
+	/**
+	 * Create an EventStream, see {@link #start()}.
+	 * 
+	 * @param rdr
+	 *            the reader of the host of the stream
+	 * @param req
+	 *            the request of the stream, a copy of which is sent on every connection
+	 * @param listener
+	 *            the listener of the events
+	 */
+	public EventStream(HTTPReader rdr, HTTPRequest req, ServerSentEventListener listener) {
+		this.rdr = rdr;
+		this.req = req;
+		this.listener = listener;
+		this.idleTimeout = 60 * 1000;
+		this.reconnectDelay = 3 * 1000;
+		this.lastEventId = "";
+	}
+
+	/**
+	 * Connect and read the stream in the background, until it is {@link #close() closed}.
+	 */
+	public void start() {
+		HTTPReader.EXECUTOR.execute(new Runnable() {
+			public void run() {
+				runStream();
+			}
+		});
+	}
+
+	/**
+	 * Stop reading the stream and close its connection. No event is delivered afterwards, save one being handed to the
+	 * listener right now.
+	 */
+	public void close() {
+		closed = true;
+		HTTPRequest attempt = current;
+		if (attempt != null) {
+			attempt.cancel();
+		}
+		synchronized (this) {
+			// wakes up a reconnection that is waiting
+			notifyAll();
+		}
+	}
+
+	private void runStream() {
+		int failures = 0;
+		while (!closed) {
+			HTTPRequest attempt = newAttempt();
+			current = attempt;
+			if (closed) {
+				break;
+			}
+
+			Exception failure;
+			boolean reconnect = true;
+			long received = getEventCount();
+			HttpURLConnection conn = null;
+			InputStream body = null;
+			try {
+				rdr.startDeadline(attempt);
+				conn = rdr.openResponse(attempt);
+				int status = attempt.getStatusCode();
+				String contentType = attempt.getContentType();
+				if (status == HttpURLConnection.HTTP_NO_CONTENT) {
+					failure = new EOFException("The server ended the stream of " + rdr.getAbsoluteURI(attempt));
+					reconnect = false;
+				} else if (status != HttpURLConnection.HTTP_OK) {
+					failure = new IOException("Server returned HTTP response code: " + status + " for URL: " + rdr.getAbsoluteURI(attempt));
+					reconnect = status >= 500;
+				} else if (contentType == null || !contentType.toLowerCase().startsWith("text/event-stream")) {
+					failure = new IOException("Not an event stream: " + contentType + " for URL: " + rdr.getAbsoluteURI(attempt));
+					reconnect = false;
+				} else {
+					synchronized (this) {
+						connections++;
+					}
+					body = new AbortableInputStream(conn.getInputStream(), attempt);
+					read(body);
+					failure = new EOFException("The stream of " + rdr.getAbsoluteURI(attempt) + " ended");
+				}
+			} catch (IOException e) {
+				failure = e;
+			} catch (RuntimeException e) {
+				// thrown by the listener: the event was delivered, the stream resumes after it
+				failure = e;
+			}
+
+			attempt.setConnection(null);
+			if (failure instanceof EOFException && body != null) {
+				// read to the end, the connection can be reused
+				try {
+					body.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			} else if (conn != null) {
+				HTTPReader.abort(conn);
+			}
+
+			if (closed) {
+				break;
+			}
+			try {
+				listener.onError(failure, reconnect);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			if (!reconnect) {
+				closed = true;
+				break;
+			}
+
+			failures = getEventCount() > received ? 0 : failures + 1;
+			waitToReconnect(failures);
+		}
+		current = null;
+	}
+
+	private HTTPRequest newAttempt() {
+		HTTPRequest attempt = req.clone();
+		attempt.removeHeader("Accept");
+		attempt.addHeader("Accept", "text/event-stream");
+		attempt.addHeader("Cache-Control", "no-cache");
+		String id = getLastEventId();
+		if (id.length() > 0) {
+			attempt.removeHeader("Last-Event-ID");
+			attempt.addHeader("Last-Event-ID", id);
+		}
+		// the stream lasts as long as the server keeps it open, only silence fails it
+		attempt.setReadTimeout(getIdleTimeout());
+		attempt.setDeadline(0);
+		return attempt;
+	}
+
+	private void waitToReconnect(int failures) {
+		long delay = getReconnectDelay();
+		for (int i = 1; i < failures && delay < MAX_RECONNECT_DELAY; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, MAX_RECONNECT_DELAY);
+
+		long until = System.currentTimeMillis() + delay;
+		synchronized (this) {
+			long left;
+			while (!closed && (left = until - System.currentTimeMillis()) > 0) {
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					closed = true;
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse the events of the stream, see the <code>text/event-stream</code> format of the HTML specification.
+	 */
+	private void read(InputStream body) throws IOException {
+		BodyDecoder in = new BodyDecoder(body, "UTF-8", UTF_8);
+		try {
+			// the ID is only committed once its event is dispatched, a connection lost in the middle of an event
+			// resumes before it
+			String id = getLastEventId();
+			String type = "";
+			StringBuilder data = new StringBuilder();
+			String line;
+			while ((line = in.readLine()) != null && !closed) {
+				if (line.length() == 0) {
+					// a blank line dispatches the event
+					setLastEventId(id);
+					if (data.length() > 0) {
+						data.setLength(data.length() - 1);
+						ServerSentEvent event = new ServerSentEvent(id, type.length() > 0 ? type : "message", data.toString());
+						synchronized (this) {
+							events++;
+						}
+						listener.onEvent(event);
+					}
+					type = "";
+					data.setLength(0);
+					continue;
+				}
+				if (line.charAt(0) == ':') {
+					// a comment, servers send them to keep the stream alive
+					continue;
+				}
+
+				String field = line;
+				String value = "";
+				int colon = line.indexOf(':');
+				if (colon >= 0) {
+					field = line.substring(0, colon);
+					value = line.substring(colon + 1);
+					if (value.startsWith(" ")) {
+						value = value.substring(1);
+					}
+				}
+
+				if (field.equals("event")) {
+					type = value;
+				} else if (field.equals("data")) {
+					data.append(value).append('\n');
+				} else if (field.equals("id")) {
+					if (value.indexOf('\0') < 0) {
+						id = value;
+					}
+				} else if (field.equals("retry")) {
+					if (value.length() > 0 && value.length() < 18 && isDigits(value)) {
+						setReconnectDelay(Long.parseLong(value));
+					}
+				}
+				// other fields are ignored
+			}
+			// an event without its blank line is incomplete, and dropped
+		} finally {
+			in.release();
+		}
+	}
+
+	private static boolean isDigits(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Set how long the server may send nothing before the stream is reconnected. Applies from the next connection.
+	 * 
+	 * @param idleTimeout
+	 *            the time in milliseconds, 0 to wait forever; 60 seconds by default
+	 */
+	public synchronized void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public synchronized int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Set the delay before reconnecting. The server replaces it with a <code>retry</code> field.
+	 * 
+	 * @param reconnectDelay
+	 *            the delay in milliseconds, 3 seconds by default
+	 */
+	public synchronized void setReconnectDelay(long reconnectDelay) {
+		this.reconnectDelay = reconnectDelay;
+	}
+
+	public synchronized long getReconnectDelay() {
+		return reconnectDelay;
+	}
+
+	/**
+	 * Set the ID of the last event received, to resume a stream read before. Applies from the next connection.
+	 * 
+	 * @param lastEventId
+	 *            the ID, empty for none
+	 */
+	public synchronized void setLastEventId(String lastEventId) {
+		this.lastEventId = lastEventId == null ? "" : lastEventId;
+	}
+
+	public synchronized String getLastEventId() {
+		return lastEventId;
+	}
+
+	/**
+	 * Whether or not the stream is over: closed, or ended by the server.
+	 * 
+	 * @return true if no more events are delivered, false otherwise.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Get the number of events delivered.
+	 * 
+	 * @return the number of events
+	 */
+	public synchronized long getEventCount() {
+		return events;
+	}
+
+	/**
+	 * Get the number of times the stream was opened, the first time included.
+	 * 
+	 * @return the number of connections
+	 */
+	public synchronized long getConnectionCount() {
+		return connections;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "EventStream [uri=" + rdr.getAbsoluteURI(req) + ", lastEventId=" + lastEventId + ", events=" + events + ", connections="
+				+ connections + ", closed=" + closed + "]";
+	}
+}
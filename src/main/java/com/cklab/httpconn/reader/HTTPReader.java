@@ -21,9 +21,10 @@
  ******************************************************************************/
 package com.cklab.httpconn.reader;
 
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Authenticator;
 import java.net.BindException;
 import java.net.HttpURLConnection;
@@ -33,25 +34,38 @@ import java.net.PasswordAuthentication;
 import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 
 import com.cklab.httpconn.request.Get;
 import com.cklab.httpconn.request.HTTPRequest;
+import com.cklab.httpconn.request.HTTPResponse;
+import com.cklab.httpconn.request.RequestTemplate;
+import com.cklab.httpconn.util.CompressingOutputStream;
+import com.cklab.httpconn.util.DaemonThreadFactory;
 import com.cklab.httpconn.util.FormData;
+import com.cklab.httpconn.util.HeaderMap;
 import com.cklab.httpconn.util.Redirect;
+import com.cklab.httpconn.util.ServerSentEventListener;
+import com.cklab.httpconn.util.URIReference;
 
 /**
  * HTTPReader class.
@@ -65,12 +79,29 @@ public class HTTPReader extends Thread implements Cloneable {
 
 	public static final int				HTTP_SERVICE_UNAVAILABLE	= 503;
 
+	/**
+	 * The chunk size used when a streamed request body is too large for a fixed Content-Length.
+	 */
+	private static final int			STREAMING_CHUNK_SIZE		= 64 * 1024;
+
+	/**
+	 * Aborts the connections of requests that exceed their deadline or write timeout.
+	 */
+	private static final ScheduledExecutorService	WATCHDOG	= Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("HTTPConn watchdog"));
+	private static final ExecutorService			ABORTER		= Executors.newCachedThreadPool(new DaemonThreadFactory("HTTPConn abort"));
+
+	/**
+	 * Executes the requests given to {@link #submit(HTTPRequest)}, and reads the bodies of {@link BodyPublisher}s and
+	 * the {@link EventStream}s.
+	 */
+	static final ExecutorService					EXECUTOR	= Executors.newCachedThreadPool(new DaemonThreadFactory("HTTPConn exec"));
+
 	/**
 	 * The User-Agent that is sent to the HTTP server.
 	 */
 	public static String				USER_AGENT					= "HTTPConn for Java";
 
-	private static boolean				DEBUG;
+	static boolean						DEBUG;
 
 	private String						site;
 
@@ -85,6 +116,29 @@ public class HTTPReader extends Thread implements Cloneable {
 	private boolean						handleCookies;
 	private boolean						addDefaultHeaders;
 	private HostnameVerifier			hostnameVerifier;
+	private DNSCache					dnsCache;
+	private TLSContext					tlsContext;
+	private HTTPReaderRegistry			readerRegistry;
+	private RedirectCache				redirectCache;
+	private int							maxRedirects;
+	private RequestCoalescer			requestCoalescer;
+	private HedgePolicy					hedgePolicy;
+	private RequestCompression			requestCompression;
+	private RequestScheduler			requestScheduler;
+	private int							connectTimeout;
+	private int							readTimeout;
+	private int							writeTimeout;
+	private long						deadline;
+	private boolean						drainRedirectBodies;
+	private int							redirectDrainLimit;
+	private long						expectContinueThreshold;
+
+	// when this reader last sent a request of its own, its connection then went back to the keep-alive cache
+	private volatile long				lastExchange;
+
+	// "http://site/" and "https://site/", built once per site rather than for every request
+	private String						httpPrefix;
+	private String						httpsPrefix;
 
 	public HTTPReader() {
 		this(null);
@@ -159,6 +213,11 @@ public class HTTPReader extends Thread implements Cloneable {
 		this.handleCookies = true;
 		this.useProxy = false;
 		this.addDefaultHeaders = true;
+		this.maxRedirects = 20;
+		this.redirectDrainLimit = 4 * 1024;
+		this.expectContinueThreshold = -1;
+		this.connectTimeout = 15 * 1000;
+		this.readTimeout = 15 * 1000;
 	}
 
 	/**
@@ -177,8 +236,366 @@ public class HTTPReader extends Thread implements Cloneable {
 	 * @param req
 	 *            the request to execute.
 	 */
-	public void exec(HTTPRequest req) {
-		exec(req, true);
+	public void exec(final HTTPRequest req) {
+		if (req != null) {
+			startDeadline(req);
+		}
+
+		if (req != null && requestCoalescer != null && requestCoalescer.isCoalescable(req)) {
+			String key = requestCoalescer.key(getAbsoluteURI(req), req, handleCookies ? getCookies() : req.getCookies());
+			requestCoalescer.execute(key, req, new Runnable() {
+				public void run() {
+					execRequest(req);
+				}
+			});
+		} else {
+			execRequest(req);
+		}
+
+		// the request records it, see HTTPRequest#isTimedOut()
+		if (DEBUG && req != null && req.isTimedOut()) {
+			System.err.println("Deadline exceeded, aborted: " + getAbsoluteURI(req));
+		}
+	}
+
+	/**
+	 * Execute a request template on this host. The template is not changed, so it can be executed again, or from other
+	 * threads at the same time; an HTTPReader sends one request at a time, give each thread its own reader (see
+	 * {@link #copySettings(HTTPReader)}) for them to run in parallel.
+	 * 
+	 * @param template
+	 *            the template to execute.
+	 * @return the response of this execution.
+	 */
+	public HTTPResponse exec(RequestTemplate template) {
+		HTTPRequest req = template.newRequest();
+		exec(req);
+		return new HTTPResponse(req);
+	}
+
+	/**
+	 * Execute an HTTPRequest on this host in the background.
+	 * 
+	 * Cancelling the returned future {@link HTTPRequest#cancel() cancels} the request: connecting, sending or reading
+	 * is aborted and the connection closed, and so is the redirect being followed.
+	 * 
+	 * @param req
+	 *            the request to execute.
+	 * @return the future of the execution, which gives back the request once executed
+	 */
+	public Future<HTTPRequest> submit(final HTTPRequest req) {
+		FutureTask<HTTPRequest> execution = new FutureTask<HTTPRequest>(new Callable<HTTPRequest>() {
+			public HTTPRequest call() {
+				exec(req);
+				return req;
+			}
+		}) {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(false);
+				if (cancelled) {
+					req.cancel();
+				}
+				return cancelled;
+			}
+		};
+		EXECUTOR.execute(execution);
+		return execution;
+	}
+
+	/**
+	 * Execute a request template on this host in the background, see {@link #exec(RequestTemplate)}.
+	 * 
+	 * Cancelling the returned future cancels this execution only.
+	 * 
+	 * @param template
+	 *            the template to execute.
+	 * @return the future of the execution, which gives back its response
+	 */
+	public Future<HTTPResponse> submit(RequestTemplate template) {
+		final HTTPRequest req = template.newRequest();
+		FutureTask<HTTPResponse> execution = new FutureTask<HTTPResponse>(new Callable<HTTPResponse>() {
+			public HTTPResponse call() {
+				exec(req);
+				return new HTTPResponse(req);
+			}
+		}) {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(false);
+				if (cancelled) {
+					req.cancel();
+				}
+				return cancelled;
+			}
+		};
+		EXECUTOR.execute(execution);
+		return execution;
+	}
+
+	/**
+	 * Execute an HTTPRequest on this host, publishing its response body as it is read instead of keeping it. The request
+	 * is sent when the publisher is subscribed to, see {@link BodyPublisher} and {@link BodySubscription}.
+	 * 
+	 * @param req
+	 *            the request to execute.
+	 * @return the publisher of the body
+	 */
+	public BodyPublisher publish(HTTPRequest req) {
+		return new BodyPublisher(this, req);
+	}
+
+	/**
+	 * Open a Server-Sent Events stream of this host, delivering its events to a listener until it is closed; see
+	 * {@link EventStream} to change its idle timeout or reconnection delay before starting it.
+	 * 
+	 * @param req
+	 *            the request of the stream
+	 * @param listener
+	 *            the listener of the events
+	 * @return the started stream
+	 */
+	public EventStream openEventStream(HTTPRequest req, ServerSentEventListener listener) {
+		EventStream stream = new EventStream(this, req, listener);
+		stream.start();
+		return stream;
+	}
+
+	/**
+	 * Open a WebSocket on this host, see {@link WebSocket}. The handshake is sent with the cookies, User-Agent, proxy
+	 * and TLS settings of this reader.
+	 * 
+	 * @param req
+	 *            the GET request of the WebSocket, with any additional headers for the handshake
+	 * @param deflate
+	 *            whether or not to offer permessage-deflate to the server
+	 * @return the open WebSocket
+	 * @throws IOException
+	 *             if the connection or the handshake failed
+	 */
+	public WebSocket openWebSocket(HTTPRequest req, boolean deflate) throws IOException {
+		return new WebSocket(this, req, deflate);
+	}
+
+	/**
+	 * Download a resource of this host into a file, fetching several byte ranges of it at once when the host supports
+	 * it. Running the download again after a failure resumes it, see {@link SegmentedDownload}.
+	 * 
+	 * @param req
+	 *            the GET request of the resource
+	 * @param file
+	 *            the file to download into
+	 * @param segments
+	 *            the number of ranges fetched at once
+	 * @return the completed download
+	 * @throws IOException
+	 *             if the download failed
+	 */
+	public SegmentedDownload download(HTTPRequest req, File file, int segments) throws IOException {
+		if (handleCookies) {
+			req.setCookies(getCookies());
+		}
+		SegmentedDownload download = new SegmentedDownload(this, req, file, segments);
+		download.run();
+		return download;
+	}
+
+	/**
+	 * Execute a request, hedging it if this reader has a {@link HedgePolicy}.
+	 * 
+	 * @param req
+	 *            the request to execute.
+	 */
+	private void execRequest(HTTPRequest req) {
+		if (req != null && hedgePolicy != null && hedgePolicy.isHedgeable(req)) {
+			execHedged(req);
+			return;
+		}
+
+		execAttempt(req);
+	}
+
+	/**
+	 * Execute a request, and a second attempt of it on another connection if the first one has not answered with its
+	 * headers after the delay of the {@link HedgePolicy}. The first attempt to complete wins, the other one is
+	 * cancelled and its response copied into the request.
+	 * 
+	 * @param req
+	 *            the request to execute.
+	 */
+	private void execHedged(HTTPRequest req) {
+		final HedgePolicy policy = hedgePolicy;
+		final long delay = policy.begin();
+		if (delay < 0) {
+			// not enough latencies observed yet to tell what a slow response is
+			execAttempt(req);
+			if (req.getStatusCode() > 0) {
+				policy.record(req.getResponseTime());
+			}
+			return;
+		}
+
+		// both attempts run on clones, the caller may reuse its request once we return
+		final HTTPRequest primary = req.clone();
+		final HTTPRequest hedge = req.clone();
+		primary.setTimeoutsFrom(req);
+		hedge.setTimeoutsFrom(req);
+		req.addDependent(primary);
+		req.addDependent(hedge);
+		final AtomicReference<HTTPRequest> winner = new AtomicReference<HTTPRequest>();
+
+		// the cookies as the primary sends them, the primary changes them once it has its response
+		final HashMap<String, FormData> sentCookies = new HashMap<String, FormData>(cookies);
+
+		// the timer only starts the hedge, which runs on a thread of its own
+		Future<?> hedging = WATCHDOG.schedule(new Runnable() {
+			public void run() {
+				if (primary.getStatusCode() > 0 || winner.get() != null || !policy.tryHedge()) {
+					return;
+				}
+				policy.submit(new Runnable() {
+					public void run() {
+						if (winner.get() != null) {
+							return;
+						}
+
+						// the hedge must not wait for the lock of this reader, it runs on a twin with the same cookies
+						// and settings
+						HTTPReader twin = new HTTPReader(site, port, sentCookies, followRedirects);
+						twin.copySettings(HTTPReader.this);
+						twin.setRequestCoalescer(null);
+						twin.setHedgePolicy(null);
+
+						if (DEBUG) {
+							System.out.println("Hedging " + getAbsoluteURI(hedge) + " after " + delay + "ms");
+						}
+						twin.execAttempt(hedge);
+						if (hedge.getStatusCode() > 0 && winner.compareAndSet(null, hedge)) {
+							primary.cancel();
+						}
+					}
+				});
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+
+		execAttempt(primary);
+		req.removeDependent(primary);
+
+		HTTPRequest result;
+		if (winner.compareAndSet(null, primary)) {
+			hedging.cancel(false);
+			hedge.cancel();
+			result = primary;
+		} else {
+			policy.hedgeWon();
+			result = hedge;
+			if (handleCookies) {
+				readCookies(hedge);
+			}
+		}
+
+		if (result.getStatusCode() > 0) {
+			policy.record(result.getResponseTime());
+		}
+		req.removeDependent(hedge);
+		req.copyResponse(result);
+		req.setResponseTime(result.getResponseTime());
+		req.setTimedOut(result.isTimedOut());
+	}
+
+	/**
+	 * Execute a request, going straight to the target of a remembered permanent redirect if there is one.
+	 * 
+	 * @param req
+	 *            the request to execute.
+	 */
+	private void execAttempt(HTTPRequest req) {
+		if (req != null && redirectCache != null && req.getMethod().equals("GET")) {
+			// a permanent redirect we already know about: go straight to its target
+			URIReference target = redirectCache.lookup(getAbsoluteURI(req));
+			if (target != null) {
+				execRedirected(req, target);
+				return;
+			}
+		}
+
+		execAndFollow(req);
+	}
+
+	/**
+	 * Execute a request and follow its redirects, without looking at the {@link RedirectCache}.
+	 * 
+	 * @param req
+	 *            the request to execute.
+	 */
+	private void execAndFollow(HTTPRequest req) {
+		RequestScheduler scheduler = requestScheduler;
+		if (req != null && scheduler != null) {
+			// wait for our turn rather than for the lock, the redirects are scheduled by the readers following them
+			if (!scheduler.acquire(this, req)) {
+				return;
+			}
+			try {
+				exec(req, true);
+			} finally {
+				scheduler.release(this);
+			}
+		} else {
+			exec(req, true);
+		}
+
+		// redirects are followed without holding the lock on this reader: readers are shared through the registry, and
+		// two hosts redirecting to each other must not deadlock
+		if (req != null && req.getRedirect() != null && followRedirects && !req.getRedirect().isFollowed()
+				&& !req.isCancelled() && !req.isTimedOut()) {
+			// in case there was a redirect from our request, we will build the entire chain
+			followRedirect(req);
+		}
+	}
+
+	/**
+	 * Execute a request on the target of a remembered permanent redirect. The page and SSL setting of the request are
+	 * only changed for this execution.
+	 * 
+	 * @param req
+	 *            the request
+	 * @param target
+	 *            the final target of the request
+	 */
+	private void execRedirected(HTTPRequest req, URIReference target) {
+		String page = req.getPage();
+		boolean useSSL = req.isUsingSSL();
+
+		URIReference self = URIReference.parse(getURLPrefix(target.isHttps()));
+		HTTPReader rdr = this;
+		if (target.getAuthority() != null && !target.getAuthority().equalsIgnoreCase(self.getAuthority())) {
+			rdr = getReaderRegistry().getReader(target, this);
+		}
+
+		if (DEBUG) {
+			System.out.println("Remembered redirect: " + getAbsoluteURI(req) + " -> " + target);
+		}
+
+		req.setPage(target.getPage());
+		req.useSSL(target.isHttps());
+		try {
+			rdr.execAndFollow(req);
+		} finally {
+			req.setPage(page);
+			req.useSSL(useSSL);
+		}
+	}
+
+	/**
+	 * Execute an HTTPRequest on this HTTPReader, deciding once whether its body is compressed.
+	 * 
+	 * @param req
+	 *            The HTTPRequest to execute
+	 * @param retry
+	 *            whether or not a the request should be re-attempted in case of failure
+	 */
+	private void exec(HTTPRequest req, boolean retry) {
+		exec(req, retry, req != null ? getCompression(req) : null);
 	}
 
 	/**
@@ -189,144 +606,521 @@ public class HTTPReader extends Thread implements Cloneable {
 	 *            The HTTPRequest to execute
 	 * @param retry
 	 *            whether or not a the request should be re-attempted in case of failure
+	 * @param compression
+	 *            the compression the body is sent with, or null
 	 */
 
-	private synchronized void exec(HTTPRequest req, boolean retry) {
+	private synchronized void exec(HTTPRequest req, boolean retry, RequestCompression compression) {
 		HttpURLConnection conn = null;
+		boolean expecting = false;
 
 		if (req == null) {
 			System.err.println("Null Request to exec()");
 			return;
 		}
 
+		if (req.isCancelled()) {
+			return;
+		}
+		if (req.getExpiresAt() > 0 && System.currentTimeMillis() >= req.getExpiresAt()) {
+			req.setTimedOut(true);
+			return;
+		}
+
 		req.setBody(null);
+		req.setRedirect(null);
 
 		if (handleCookies) {
 			req.setCookies(getCookies());
 		}
 
+		Future<?> watchdog = null;
 		try {
 
 			// we manually handle these by building Redirect objects, so the connection should never follow redirects
 			HttpURLConnection.setFollowRedirects(false);
 
-			// build a HttpURLConnection for the HTTPRequest we were given
-			conn = getHttpURLConnection(req);
+			// build a HttpURLConnection for the HTTPRequest we were given; the retry does without the expectation, in case
+			// the server ignored it
+			expecting = retry && isExpectingContinue(req);
+			conn = getHttpURLConnection(req, expecting, compression);
+			req.setConnection(conn);
+
+			// a server trickling its response resets the read timeout with every byte, only closing the connection
+			// enforces the deadline
+			if (req.getExpiresAt() > 0) {
+				watchdog = abortAt(req, conn, req.getExpiresAt(), true);
+			}
 
 			// and we're off!
+			long sentAt = System.currentTimeMillis();
 			conn.connect();
+			lastExchange = sentAt;
 
-			if (req.getMethod().equals("POST") || req.getMethod().equals("PUT")) {
-				// for a POST method, we need to send the post data: do that here
-				DataOutputStream oStream = new DataOutputStream(conn.getOutputStream());
-				oStream.writeBytes(req.getFormData());
-				oStream.flush();
-				oStream.close();
+			if (writeRequestBody(req, conn, expecting, compression)) {
+				// we should be done with our end of the contract, it's time to parse the response from the HTTP Server
+				parseServerResponse(req, conn, sentAt);
+			} else {
+				// turned down before the body was sent, the connection only kept the status code
+				req.setResponseTime(System.currentTimeMillis() - sentAt);
+				req.setStatusCode(conn.getResponseCode());
+				req.setHeaders(new HeaderMap());
+				if (DEBUG) {
+					System.out.println("Body not sent, rejected with " + req.getStatusCode() + ": " + getAbsoluteURI(req));
+				}
 			}
 
-			// we should be done with our end of the contract, it's time to parse the response from the HTTP Server
-			parseServerResponse(req, conn);
-
 			conn.disconnect();
 			conn = null;
+			req.setConnection(null);
 
 		} catch (BindException be) {
 			if (conn != null) {
 				// System.out.println("Conn: "+conn.getURL());
 			}
+			req.setConnection(null);
+			if (req.isCancelled() || req.isTimedOut())
+				return;
 			be.printStackTrace();
 			try {
 				// Thread.sleep(5*1000);
 			} catch (Exception ex) {
 			}
 			if (retry)
-				exec(req, false);
+				exec(req, false, compression);
 		} catch (Exception e) {
-			e.printStackTrace();
+			req.setConnection(null);
+			if (req.isCancelled() || req.isTimedOut())
+				return;
+			if (!(e instanceof ContinueTimeoutException)) {
+				e.printStackTrace();
+			}
 			try {
 				// Thread.sleep(5*1000);
 			} catch (Exception ex) {
 			}
 			if (retry)
-				exec(req, false);
+				exec(req, false, compression);
+		} finally {
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
 		}
 
 		req = null;
 	}
 
-	public void setAddDefaultHeaders(boolean addDefaultHeaders) {
-		this.addDefaultHeaders = addDefaultHeaders;
+	/**
+	 * The server neither accepted nor rejected a body sent with <code>Expect: 100-continue</code> in time.
+	 */
+	private static class ContinueTimeoutException extends SocketTimeoutException {
+
+		private static final long	serialVersionUID	= 1L;
+
+		ContinueTimeoutException(String message) {
+			super(message);
+		}
 	}
 
 	/**
-	 * After we have setup the connection and sent our request, we will parse the response.
+	 * Send the body of a POST or PUT request, within the write timeout.
 	 * 
-	 * This method currently serves a subroutine for {@link #exec(HTTPRequest, boolean)} to populate the
-	 * {@link HTTPRequest} with the server's response.
+	 * With <code>Expect: 100-continue</code>, the server is given up to the read timeout of the connection (5 seconds
+	 * without one) to accept or reject the body before it is sent. A server that does not answer in time fails the
+	 * attempt with a {@link SocketTimeoutException}, and the retry sends the body without asking.
 	 * 
 	 * @param req
+	 *            the request
 	 * @param conn
+	 *            the connected connection it is executed on
+	 * @param expecting
+	 *            whether or not the request was sent with <code>Expect: 100-continue</code>
+	 * @param compression
+	 *            the compression the body is sent with, or null
+	 * @return false if the server rejected the body before it was sent, true otherwise
 	 * @throws IOException
 	 */
-	private void parseServerResponse(HTTPRequest req, HttpURLConnection conn) throws IOException {
+	private boolean writeRequestBody(HTTPRequest req, HttpURLConnection conn, boolean expecting,
+			RequestCompression compression) throws IOException {
+		if (req.getMethod().equals("POST") || req.getMethod().equals("PUT")) {
+			// for a POST method, we need to send the post data: do that here
+			int timeout = req.getWriteTimeout() >= 0 ? req.getWriteTimeout() : writeTimeout;
+			Future<?> writeWatchdog = null;
+			if (timeout > 0) {
+				writeWatchdog = abortAt(req, conn, System.currentTimeMillis() + timeout, false);
+			}
+			CompressingOutputStream compressed = null;
+			try {
+				OutputStream oStream;
+				try {
+					// with an expectation, this waits for the go-ahead of the server
+					oStream = conn.getOutputStream();
+				} catch (ProtocolException e) {
+					// the connection keeps the status code of a rejection
+					if (expecting && conn.getResponseCode() > 0) {
+						return false;
+					}
+					throw e;
+				} catch (SocketTimeoutException e) {
+					if (expecting) {
+						throw new ContinueTimeoutException("No answer to Expect: 100-continue from " + getAbsoluteURI(req));
+					}
+					throw e;
+				}
+				if (compression != null) {
+					compressed = compression.wrap(oStream);
+					oStream = compressed;
+				}
+				req.writeFormData(oStream);
+				oStream.flush();
+				oStream.close();
+				if (compressed != null) {
+					compression.record(compressed);
+				}
+			} finally {
+				if (compressed != null) {
+					compressed.end();
+				}
+				if (writeWatchdog != null) {
+					writeWatchdog.cancel(false);
+				}
+			}
+		}
+		return true;
+	}
 
-		InputStream iStream = conn.getInputStream();
+	/**
+	 * Send a request and read the head of the response: its status code, headers and cookies. The body is left to
+	 * the caller, who closes the connection; redirects are not followed.
+	 * 
+	 * @param req
+	 *            the request, whose deadline has started
+	 * @return the connection, with the body of the response ready to be read
+	 * @throws IOException
+	 */
+	HttpURLConnection openResponse(HTTPRequest req) throws IOException {
+		if (handleCookies) {
+			req.setCookies(getCookies());
+		}
+		HttpURLConnection.setFollowRedirects(false);
+		RequestCompression compression = getCompression(req);
+		HttpURLConnection conn = getHttpURLConnection(req, false, compression);
+		req.setConnection(conn);
+		try {
+			long sentAt = System.currentTimeMillis();
+			conn.connect();
+			lastExchange = sentAt;
+			writeRequestBody(req, conn, false, compression);
+			readResponseHead(req, conn, sentAt);
+		} catch (IOException e) {
+			req.setConnection(null);
+			abort(conn);
+			throw e;
+		}
+		return conn;
+	}
+
+	/**
+	 * Tell the request about the status code, headers and cookies of its response.
+	 */
+	private void readResponseHead(HTTPRequest req, HttpURLConnection conn, long sentAt) throws IOException {
+		req.setResponseTime(System.currentTimeMillis() - sentAt);
 
 		// let's tell the HTTPRequest a little about the response
 		req.setStatusCode(conn.getResponseCode());
-		req.setHeaders(conn.getHeaderFields());
+		req.setHeaders(HeaderMap.fromConnection(conn));
 
 		if (handleCookies) {
 			readCookies(req);
 		}
+	}
+
+	/**
+	 * Start the clock of a request: its deadline, or ours, covers the whole redirect chain and the retries.
+	 * 
+	 * @param req
+	 *            the request about to be executed
+	 */
+	void startDeadline(HTTPRequest req) {
+		long total = req.getDeadline() >= 0 ? req.getDeadline() : deadline;
+		req.setExpiresAt(total > 0 ? System.currentTimeMillis() + total : 0);
+	}
+
+	/**
+	 * Close a connection without waiting: closing it waits for the read in progress to return, which must not hold up
+	 * the thread aborting it. The connection is not reused, its response was not fully read.
+	 * 
+	 * @param conn
+	 *            the connection
+	 */
+	public static void abort(final HttpURLConnection conn) {
+		ABORTER.execute(new Runnable() {
+			public void run() {
+				conn.disconnect();
+			}
+		});
+	}
+
+	/**
+	 * Close the connection of a request at a given time, aborting its I/O.
+	 * 
+	 * @param req
+	 *            the request
+	 * @param conn
+	 *            the connection it is executed on
+	 * @param at
+	 *            the time in milliseconds since the epoch
+	 * @param deadline
+	 *            true if this is the deadline of the request, which is then marked timed out
+	 * @return the scheduled abort, to cancel once the I/O is over
+	 */
+	static Future<?> abortAt(final HTTPRequest req, final HttpURLConnection conn, long at, final boolean deadline) {
+		return WATCHDOG.schedule(new Runnable() {
+			public void run() {
+				if (deadline) {
+					req.setTimedOut(true);
+				}
+				abort(conn);
+			}
+		}, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	public void setAddDefaultHeaders(boolean addDefaultHeaders) {
+		this.addDefaultHeaders = addDefaultHeaders;
+	}
+
+	/**
+	 * After we have setup the connection and sent our request, we will parse the response.
+	 * 
+	 * This method currently serves a subroutine for {@link #exec(HTTPRequest, boolean)} to populate the
+	 * {@link HTTPRequest} with the server's response.
+	 * 
+	 * @param req
+	 * @param conn
+	 * @param sentAt
+	 *            when the request was sent
+	 * @throws IOException
+	 */
+	private void parseServerResponse(HTTPRequest req, HttpURLConnection conn, long sentAt) throws IOException {
+
+		InputStream iStream = new AbortableInputStream(conn.getInputStream(), req);
+		readResponseHead(req, conn, sentAt);
 
 		// find out if we had a redirect from this request
-		Get redirect = new Get(conn.getHeaderField("Location"));
-		if (redirect.getPage() != null) {
-			// yup, there's a redirect!
-			String host = getSite();
-			String page = redirect.getPage();
+		String location = conn.getHeaderField("Location");
+		if (location != null) {
+			// yup, there's a redirect! resolve it against the URL we just requested (RFC 3986)
+			URIReference base = URIReference.parse(conn.getURL().toString());
+			URIReference target = base.resolve(location);
+
+			Get redirect = new Get(target.getPage(), target.isHttps());
+			redirect.setTimeoutsFrom(req);
+			// the hop is scheduled again by the reader following it
+			redirect.setPriority(req.getPriority());
+			redirect.setMaxBodySize(req.getMaxBodySize());
+			redirect.setStopWhen(req.getStopWhen());
+			// the JSON comes with the end of the chain
+			redirect.setJsonResponse(req.getJsonResponse());
+
+			// keep track of the chain to detect loops and limit the number of hops
+			List<String> history = new ArrayList<String>(req.getRedirectHistory());
+			history.add(base.toString());
+			redirect.setRedirectHistory(history);
+
+			int status = req.getStatusCode();
+			if (redirectCache != null && req.getMethod().equals("GET") && (status == 301 || status == 308)) {
+				redirectCache.remember(base.toString(), target, conn.getHeaderField("Cache-Control"));
+			}
+
+			Redirect redir;
+
+			// here we determine whether the site leads to an external site (hence we cannot use this HTTPReader), or we
+			// are staying local
+			if (target.getAuthority() == null || target.getAuthority().equalsIgnoreCase(base.getAuthority())) {
+				redir = new Redirect(this, redirect);
+			} else {
+				// reuse the reader of that host, it keeps its cookies and gets our settings when it is created
+				redir = new Redirect(getReaderRegistry().getReader(target, this), redirect);
+			}
+
+			req.setRedirect(redir);
+		}
+
+		if ((drainRedirectBodies || req.getJsonResponse() != null) && followRedirects && req.getRedirect() != null
+				&& req.getStatusCode() / 100 == 3) {
+			// nobody reads the body of a redirect, and it is no JSON: skip it without decoding so the hop can start right
+			// away
+			if (!drain(iStream, redirectDrainLimit)) {
+				// too large to drain, closing the socket is cheaper than reading it
+				conn.disconnect();
+			}
+			iStream = null;
+		} else {
+			// read the body of the request
+			req.readBody(iStream);
+		}
+
+		if (req.isTruncated()) {
+			// the rest of the body is unwanted, reading it to keep the connection alive could take longer than the request
+			conn.disconnect();
+			iStream = null;
+		}
+
+		// we should be done with this stream here, release the resource
+		if (iStream != null) {
+			try {
+				iStream.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+	}
+
+	/**
+	 * Open connections to this host ahead of the first requests, so that they do not pay for the DNS lookup, the TCP
+	 * connection and the TLS handshake. The connections wait in the keep-alive cache of the JVM, see
+	 * {@link ConnectionWarmer}.
+	 * 
+	 * @param connections
+	 *            the number of connections to open
+	 * @return the number of connections established
+	 */
+	public int preconnect(int connections) {
+		return preconnect(connections, false);
+	}
+
+	/**
+	 * Open connections to this host ahead of the first requests, see {@link #preconnect(int)}.
+	 * 
+	 * @param connections
+	 *            the number of connections to open
+	 * @param useSSL
+	 *            whether or not the connections use SSL
+	 * @return the number of connections established
+	 */
+	public int preconnect(int connections, boolean useSSL) {
+		return ConnectionWarmer.getDefault().warmUp(this, connections, useSSL);
+	}
+
+	/**
+	 * Keep a minimum number of idle connections open to this host.
+	 * 
+	 * @param minIdle
+	 *            the number of connections, 0 to stop keeping them open
+	 * @param useSSL
+	 *            whether or not the connections use SSL
+	 */
+	public void keepWarm(int minIdle, boolean useSSL) {
+		if (minIdle <= 0) {
+			ConnectionWarmer.getDefault().stopKeepingWarm(this);
+		} else {
+			ConnectionWarmer.getDefault().keepWarm(this, minIdle, useSSL);
+		}
+	}
 
-			if (redirect.getPage().startsWith("https")) {
-				redirect.useSSL(true);
+	/**
+	 * When this reader last sent a request, leaving a connection to this host in the keep-alive cache once answered.
+	 * 
+	 * @return the time in milliseconds, 0 if it never did
+	 */
+	long getLastExchange() {
+		return lastExchange;
+	}
+
+	/**
+	 * Open a connection to this host and leave it in the keep-alive cache, by sending a HEAD request for the root page.
+	 * This does not hold the lock of the reader, so several connections can be opened at once.
+	 * 
+	 * @param useSSL
+	 *            whether or not the connection uses SSL
+	 * @param connected
+	 *            counted down once connected (or failed to), the request is only sent when it reaches zero so that
+	 *            connections opened together are not taken from each other; may be null
+	 * @return true if the server answered
+	 */
+	boolean openIdleConnection(boolean useSSL, CountDownLatch connected) {
+		HTTPRequest req = new HTTPRequest("HEAD", "", useSSL);
+		HttpURLConnection conn = null;
+		boolean arrived = false;
+		try {
+			conn = getHttpURLConnection(req);
+			conn.connect();
+
+			if (connected != null) {
+				connected.countDown();
+				arrived = true;
+				connected.await(conn.getConnectTimeout(), TimeUnit.MILLISECONDS);
+			}
+			int status = conn.getResponseCode();
+
+			// whatever the answer, the connection only goes back to the cache once its response has been read
+			InputStream iStream = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+			if (iStream != null && !drain(iStream, 4 * 1024)) {
+				conn.disconnect();
+				return false;
+			}
+			return status > 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			conn.disconnect();
+			return false;
+		} catch (IOException e) {
+			if (DEBUG) {
+				System.err.println("preconnect(): " + e.getMessage());
 			}
-
-			if (redirect.getPage().startsWith("http")) {
-				host = getHostFromURI(redirect.getPage());
-				page = getPageFromURI(redirect.getPage());
+			if (conn != null) {
+				conn.disconnect();
 			}
-			redirect.setPage(page);
-
-			Redirect redir;
-
-			// here we determine whether the site leads to an external site (hence we cannot use this HTTPReader), or we
-			// are staying local
-			if (host.equals(getSite()) || host.equals("")) {
-				redir = new Redirect(this, redirect);
-			} else {
-				redir = new Redirect(new HTTPReader(host), redirect);
+			return false;
+		} finally {
+			if (connected != null && !arrived) {
+				connected.countDown();
 			}
-
-			req.setRedirect(redir);
 		}
+	}
 
-		// read the body of the request
-		req.readBody(iStream);
-
-		// we should be done with this stream here, release the resource
-		if (iStream != null) {
-			try {
+	/**
+	 * Read and discard a response body, up to the given number of bytes. A fully read stream is closed, which returns
+	 * the connection to the keep-alive cache.
+	 * 
+	 * @param iStream
+	 *            the body
+	 * @param limit
+	 *            the maximum number of bytes to read
+	 * @return true if the body was drained and the stream closed, false if it is larger than the limit.
+	 */
+	private static boolean drain(InputStream iStream, int limit) {
+		// no overflow for a limit of Integer.MAX_VALUE, nor for a body past 2 GB
+		byte[] skip = new byte[(int) Math.min(limit + 1L, 4096)];
+		long total = 0;
+		try {
+			int n;
+			while (total <= limit && (n = iStream.read(skip)) != -1) {
+				total += n;
+			}
+			if (total <= limit) {
 				iStream.close();
-			} catch (Exception e) {
-				e.printStackTrace();
+				return true;
 			}
+		} catch (IOException e) {
+			// the connection is not reusable either way
 		}
+		return false;
+	}
 
-		if (req.getRedirect() != null && followRedirects && !req.getRedirect().isFollowed()) {
-			// in case there was a redirect from our request, we will build the entire chain
-			followRedirect(req);
-		}
-
+	/**
+	 * Creates and returns a HttpURLConnection associated with the {@link HTTPRequest}
+	 * 
+	 * @param req
+	 *            the request
+	 * @return the appropriate HttpUrlConnection (can be HttpsURLConnection if the {@link HTTPRequest} is using SSL).
+	 * @throws MalformedURLException
+	 * @throws IOException
+	 * @throws ProtocolException
+	 */
+	HttpURLConnection getHttpURLConnection(HTTPRequest req) throws MalformedURLException, IOException, ProtocolException {
+		return getHttpURLConnection(req, false, null);
 	}
 
 	/**
@@ -334,26 +1128,22 @@ public class HTTPReader extends Thread implements Cloneable {
 	 * 
 	 * @param req
 	 *            the request
+	 * @param expectContinue
+	 *            whether or not the body of a POST or PUT is sent with <code>Expect: 100-continue</code>
+	 * @param compression
+	 *            the compression the body of a POST or PUT is sent with, or null
 	 * @return the appropriate HttpUrlConnection (can be HttpsURLConnection if the {@link HTTPRequest} is using SSL).
 	 * @throws MalformedURLException
 	 * @throws IOException
 	 * @throws ProtocolException
 	 */
-	private HttpURLConnection getHttpURLConnection(HTTPRequest req) throws MalformedURLException, IOException, ProtocolException {
+	private HttpURLConnection getHttpURLConnection(HTTPRequest req, boolean expectContinue, RequestCompression compression)
+			throws MalformedURLException, IOException, ProtocolException {
 		HttpURLConnection conn;
 
-		// in order to use a URLConnection, we need the protocol in the front: find the correct protocol to use
-		String urlStr = site;
-		if (!site.startsWith("http")) {
-			if (req.isUsingSSL()) {
-				urlStr = "https://" + site;
-			} else {
-				urlStr = "http://" + site;
-			}
-		}
-
 		// construct the URL object and create the connection
-		URL url = new URL(urlStr + "/" + req.getPage());
+		URL url = new URL(getURLPrefix(req.isUsingSSL()) + req.getPage());
+
 		if (useProxy && proxy != null) {
 			if (req.isUsingSSL()) {
 				conn = (HttpsURLConnection) url.openConnection(proxy);
@@ -379,6 +1169,12 @@ public class HTTPReader extends Thread implements Cloneable {
 			sslConnection.setHostnameVerifier(hostnameVerifier);
 		}
 
+		// share the SSL context (and so its session cache) between connections, so handshakes can be resumed
+		if (req.isUsingSSL() && tlsContext != null) {
+			HttpsURLConnection sslConnection = (HttpsURLConnection) conn;
+			sslConnection.setSSLSocketFactory(tlsContext.getSocketFactory());
+		}
+
 		// set up the request -- TODO: do the request properties need further customization by the user?
 		if (addDefaultHeaders) {
 			conn.setRequestProperty("User-Agent", getUserAgent());
@@ -389,14 +1185,39 @@ public class HTTPReader extends Thread implements Cloneable {
 
 		
 		if (req.getMethod().equals("POST") || req.getMethod().equals("PUT")) {
-			conn.setRequestProperty("Content-Length", ""+req.getFormData().length());
-		}
-		// add the user's custom headers
-		if (req.getHeadersToSend() != null) {
-			for (Entry<String, List<String>> entry : req.getHeadersToSend().entrySet()) {
-				for (String value : entry.getValue()) {
-					conn.setRequestProperty(entry.getKey(), value);
+			if (compression != null) {
+				// the compressed length is only known once sent
+				if (req.getFormDataContentType() != null) {
+					conn.setRequestProperty("Content-Type", req.getFormDataContentType());
+				}
+				conn.setRequestProperty("Content-Encoding", compression.getEncoding().getName());
+				conn.setChunkedStreamingMode(STREAMING_CHUNK_SIZE);
+			} else if (req.isStreamingFormData()) {
+				// stream the body instead of letting the connection buffer it, uploaded files can be larger than the heap
+				conn.setRequestProperty("Content-Type", req.getFormDataContentType());
+				long length = req.getFormDataLength();
+				if (length <= Integer.MAX_VALUE) {
+					conn.setFixedLengthStreamingMode((int) length);
+				} else {
+					conn.setChunkedStreamingMode(STREAMING_CHUNK_SIZE);
 				}
+			} else if (expectContinue) {
+				// the connection only waits for the server before sending a streamed body
+				conn.setFixedLengthStreamingMode(req.getFormData().length());
+			} else {
+				conn.setRequestProperty("Content-Length", ""+req.getFormData().length());
+			}
+			if (expectContinue) {
+				conn.setRequestProperty("Expect", "100-continue");
+			}
+		}
+		// add the user's custom headers, the first value replaces our default and the others are added to it
+		HeaderMap headersToSend = req.getHeadersToSend();
+		for (int i = 0; i < headersToSend.count(); i++) {
+			if (headersToSend.isFirst(i)) {
+				conn.setRequestProperty(headersToSend.getName(i), headersToSend.getValue(i));
+			} else {
+				conn.addRequestProperty(headersToSend.getName(i), headersToSend.getValue(i));
 			}
 		}
 
@@ -410,14 +1231,47 @@ public class HTTPReader extends Thread implements Cloneable {
 
 		conn.setRequestMethod(req.getMethod());
 
-		// TODO these are not yet customizable, perhaps they should be variables that can be defined by the user
-		conn.setConnectTimeout(15 * 1000);
-		conn.setReadTimeout(15 * 1000);
+		// the timeouts of the request win over ours, and neither may run past the deadline
+		int connect = req.getConnectTimeout() >= 0 ? req.getConnectTimeout() : connectTimeout;
+		int read = req.getReadTimeout() >= 0 ? req.getReadTimeout() : readTimeout;
+		if (req.getExpiresAt() > 0) {
+			long remaining = Math.max(1, req.getExpiresAt() - System.currentTimeMillis());
+			connect = (int) (connect == 0 ? Math.min(remaining, Integer.MAX_VALUE) : Math.min(connect, remaining));
+			read = (int) (read == 0 ? Math.min(remaining, Integer.MAX_VALUE) : Math.min(read, remaining));
+		}
+		conn.setConnectTimeout(connect);
+		conn.setReadTimeout(read);
 		conn.setUseCaches(false);
 
 		return conn;
 	}
 
+	/**
+	 * Get the URL every page of this host starts with, e.g. "https://example.org/".
+	 * 
+	 * @param useSSL
+	 *            whether or not the URL is for SSL
+	 * @return the URL prefix, ending with a '/'
+	 */
+	private String getURLPrefix(boolean useSSL) {
+		String prefix = useSSL ? httpsPrefix : httpPrefix;
+		if (prefix == null) {
+			// in order to use a URLConnection, we need the protocol in the front: find the correct protocol to use
+			String urlStr = site;
+			if (!site.startsWith("http")) {
+				urlStr = (useSSL ? "https://" : "http://") + site;
+			}
+			prefix = urlStr + "/";
+
+			if (useSSL) {
+				httpsPrefix = prefix;
+			} else {
+				httpPrefix = prefix;
+			}
+		}
+		return prefix;
+	}
+
 	/**
 	 * Read the cookies from an HTTPRequest
 	 * 
@@ -425,29 +1279,20 @@ public class HTTPReader extends Thread implements Cloneable {
 	 */
 	public synchronized void readCookies(HTTPRequest req) {
 
-		Map<String, List<String>> headers = req.getHeaders();
+		HeaderMap headers = req.getHeaders();
 		if (headers == null) {
 			if (DEBUG) {
 				System.err.println("readCookies(): NULL headers for " + req.getPage());
 			}
 			return;
 		}
-		Iterator<String> it = headers.keySet().iterator();
-		ArrayList<String> reversed = new ArrayList<String>();
-
-		while (it.hasNext()) {
-			String key = it.next();
-			List<String> h = headers.get(key);
-			// System.out.println(key);
-
-			if (key != null && key.equalsIgnoreCase("set-cookie")) {
-				for (String value : h)
-					if (key != null && value != null)
-						reversed.add(0, value);
-			}
+		List<String> setCookies = headers.get("Set-Cookie");
+		if (setCookies == null) {
+			return;
 		}
 
-		for (String value : reversed) {
+		// in the order they were received, a later cookie replaces an earlier one of the same name
+		for (String value : setCookies) {
 			String cookie_string = value.split(";")[0];
 
 			String cookie_name = cookie_string.split("=")[0];
@@ -470,6 +1315,8 @@ public class HTTPReader extends Thread implements Cloneable {
 	 */
 	public void setSite(String site) {
 		this.site = site;
+		this.httpPrefix = null;
+		this.httpsPrefix = null;
 	}
 
 	/**
@@ -627,14 +1474,7 @@ public class HTTPReader extends Thread implements Cloneable {
 	 * @return the full URI to the given HTTPRequest page on this host.
 	 */
 	public String getAbsoluteURI(HTTPRequest req) {
-		String uri;
-		if (req.isUsingSSL())
-			uri = "https://";
-		else
-			uri = "http://";
-
-		uri += site + "/" + req.getPage();
-		return uri;
+		return getURLPrefix(req.isUsingSSL()) + req.getPage();
 	}
 
 	/**
@@ -656,6 +1496,42 @@ public class HTTPReader extends Thread implements Cloneable {
 		return useProxy;
 	}
 
+	/**
+	 * Get the address to connect to for a host, from the {@link DNSCache} if there is one.
+	 * 
+	 * @param host
+	 *            the host name
+	 * @param port
+	 *            the port
+	 * @return the resolved address, or an address resolved by the JVM
+	 * @throws UnknownHostException
+	 *             if the cache knows the host cannot be resolved
+	 */
+	InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+		DNSCache cache = dnsCache;
+		if (cache == null) {
+			return new InetSocketAddress(host, port);
+		}
+		return new InetSocketAddress(cache.resolve(host).getAddresses()[0], port);
+	}
+
+	/**
+	 * Get the proxy requests are executed through.
+	 * 
+	 * @return the proxy, or null if none is used
+	 */
+	Proxy getActiveProxy() {
+		return useProxy ? proxy : null;
+	}
+
+	boolean isHandlingCookies() {
+		return handleCookies;
+	}
+
+	boolean isAddingDefaultHeaders() {
+		return addDefaultHeaders;
+	}
+
 	/**
 	 * Read the page.
 	 * 
@@ -667,9 +1543,8 @@ public class HTTPReader extends Thread implements Cloneable {
 		if (req == null)
 			return false;
 
-		Scanner in = req.getScanner();
-		while (in.hasNextLine()) {
-			in.nextLine();
+		for (Iterator<String> lines = req.lines().iterator(); lines.hasNext();) {
+			lines.next();
 		}
 		return true;
 	}
@@ -686,6 +1561,23 @@ public class HTTPReader extends Thread implements Cloneable {
 		HTTPReader redirRdr = originalReq.getRedirect().getHTTPReader();
 		HTTPRequest redirReq = originalReq.getRedirect().getHTTPRequest();
 
+		List<String> history = redirReq.getRedirectHistory();
+		// the redirect is left unfollowed on the request, see Redirect#isFollowed()
+		if (history.size() > maxRedirects) {
+			if (DEBUG) {
+				System.err.println("Too many redirects (" + history.size() + "), not following: " + redirRdr.getAbsoluteURI(redirReq));
+			}
+			return;
+		}
+		// a page may redirect to itself once (e.g. after setting a cookie), a third visit is a loop
+		String target = redirRdr.getAbsoluteURI(redirReq);
+		if (history.indexOf(target) != history.lastIndexOf(target)) {
+			if (DEBUG) {
+				System.err.println("Redirect loop, not following: " + target);
+			}
+			return;
+		}
+
 		if (redirRdr.getSite().equals(getSite()) && this != redirRdr) {
 			// same cookies for the same site...
 			if (handleCookies) {
@@ -702,7 +1594,18 @@ public class HTTPReader extends Thread implements Cloneable {
 		}
 
 		originalReq.getRedirect().setFollowed(true);
-		redirRdr.exec(redirReq);
+		// not through exec(), the hop is part of this execution and keeps its deadline
+		redirRdr.execRequest(redirReq);
+		originalReq.setTimedOut(redirReq.isTimedOut());
+		if (redirReq.isTruncated()) {
+			// the body the caller gets at the end of the chain is incomplete
+			originalReq.setTruncated(true);
+		}
+
+		if (drainRedirectBodies) {
+			// this hop is behind us, only the end of the chain is of interest
+			originalReq.releaseBody();
+		}
 
 	}
 
@@ -714,12 +1617,10 @@ public class HTTPReader extends Thread implements Cloneable {
 	 * @return the host
 	 */
 	public static String getHostFromURI(String uri) {
+		URIReference ref = URIReference.parse(uri);
 		String host = "";
-		if (uri.charAt(uri.length() - 1) != '/')
-			uri += "/";
-		Matcher m = Pattern.compile("(?:http|https)://(.*?)(/|\\?)(.+)").matcher(uri);
-		if (m.find()) {
-			host = m.group(1);
+		if (isHttpScheme(ref) && ref.getAuthority() != null) {
+			host = ref.getAuthority();
 		}
 		if (DEBUG)
 			System.out.println("getHostFromURI: [" + uri + "]");
@@ -734,23 +1635,20 @@ public class HTTPReader extends Thread implements Cloneable {
 	 * @return the page name
 	 */
 	public static String getPageFromURI(String uri) {
+		URIReference ref = URIReference.parse(uri);
 		String page = "";
-		// if (uri.charAt(uri.length()-1) != '/')
-		// uri+="/";
-		Matcher m = Pattern.compile("(?:http|https)://(.*?)/(.+)?").matcher(uri);
-		if (m.find()) {
-			page = m.group(2);
-		}
-		if (page == null)
-			return "";
-		if (page.endsWith("/")) {
-			// page = page.substring(0, page.length()-1);
+		if (isHttpScheme(ref)) {
+			page = ref.getPage();
 		}
 		if (DEBUG)
 			System.out.println("getPageFromURI: [" + page + "]");
 		return page;
 	}
 
+	private static boolean isHttpScheme(URIReference ref) {
+		return "http".equalsIgnoreCase(ref.getScheme()) || "https".equalsIgnoreCase(ref.getScheme());
+	}
+
 	/**
 	 * Add a cookie to be used.
 	 * 
@@ -855,6 +1753,335 @@ public class HTTPReader extends Thread implements Cloneable {
 		this.followRedirects = redir;
 	}
 
+	/**
+	 * Connect the {@link WebSocket}s of this HTTPReader to the addresses resolved by a {@link DNSCache}, see
+	 * {@link DNSCache#getDefault()}.
+	 * 
+	 * The cache has no effect on HTTP and HTTPS requests: HttpURLConnection can only be given a host name, which it
+	 * resolves itself through the JVM's own cache (the <code>networkaddress.cache.ttl</code> security property). Nor
+	 * does it apply to WebSockets opened through a proxy, which resolves the host.
+	 * 
+	 * @param dnsCache
+	 *            the DNS cache, or null to leave resolution to the connection.
+	 */
+	public void setDNSCache(DNSCache dnsCache) {
+		this.dnsCache = dnsCache;
+	}
+
+	/**
+	 * Get the {@link DNSCache} used by this HTTPReader.
+	 * 
+	 * @return the DNS cache, or null if none is used.
+	 */
+	public DNSCache getDNSCache() {
+		return dnsCache;
+	}
+
+	/**
+	 * Use a shared {@link TLSContext} for the HTTPS connections of this HTTPReader, see {@link TLSContext#getDefault()}.
+	 * 
+	 * @param tlsContext
+	 *            the TLS context, or null to use the JVM's default SSL socket factory.
+	 */
+	public void setTLSContext(TLSContext tlsContext) {
+		this.tlsContext = tlsContext;
+	}
+
+	/**
+	 * Get the {@link TLSContext} used by this HTTPReader.
+	 * 
+	 * @return the TLS context, or null if none is used.
+	 */
+	public TLSContext getTLSContext() {
+		return tlsContext;
+	}
+
+	/**
+	 * Remember permanent redirects (301 and 308) of GET requests, and send later GET requests straight to their
+	 * final target.
+	 * 
+	 * @param redirectCache
+	 *            the cache, e.g. {@link RedirectCache#getDefault()}, or null to always ask the server.
+	 */
+	public void setRedirectCache(RedirectCache redirectCache) {
+		this.redirectCache = redirectCache;
+	}
+
+	/**
+	 * Get the {@link RedirectCache} used by this HTTPReader.
+	 * 
+	 * @return the redirect cache, or null if none is used.
+	 */
+	public RedirectCache getRedirectCache() {
+		return redirectCache;
+	}
+
+	/**
+	 * Set how long connecting to a server may take. Requests may override it.
+	 * 
+	 * @param connectTimeout
+	 *            the timeout in milliseconds, 0 for none; 15 seconds by default
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Set how long a single read from a server may block. Requests may override it.
+	 * 
+	 * @param readTimeout
+	 *            the timeout in milliseconds, 0 for none; 15 seconds by default
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Set how long sending the form data of a POST or PUT request may take; the connection is closed when it is
+	 * exceeded. Requests may override it.
+	 * 
+	 * @param writeTimeout
+	 *            the timeout in milliseconds, 0 for none (the default)
+	 */
+	public void setWriteTimeout(int writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * Set how long the whole execution of a request may take, redirects and retries included. When it is exceeded the
+	 * connection in use is closed, aborting its I/O, and the request is marked {@link HTTPRequest#isTimedOut() timed
+	 * out}. Requests may override it.
+	 * 
+	 * @param deadline
+	 *            the time in milliseconds, 0 for none (the default)
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Let concurrent identical GET requests on this reader share a single execution. The coalescer may be shared by
+	 * several readers.
+	 * 
+	 * @param requestCoalescer
+	 *            the coalescer to use, or null to execute every request
+	 */
+	public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+		this.requestCoalescer = requestCoalescer;
+	}
+
+	/**
+	 * Get the coalescer of this reader.
+	 * 
+	 * @return the coalescer, or null if requests are not coalesced
+	 */
+	public RequestCoalescer getRequestCoalescer() {
+		return requestCoalescer;
+	}
+
+	/**
+	 * Hedge the GET requests of this reader: when one has not answered with its headers after the delay of the policy,
+	 * a second attempt is sent on another connection and the first to complete wins. The policy may be shared by
+	 * several readers, its budget then covers all of them.
+	 * 
+	 * @param hedgePolicy
+	 *            the policy to use, or null to never hedge
+	 */
+	public void setHedgePolicy(HedgePolicy hedgePolicy) {
+		this.hedgePolicy = hedgePolicy;
+	}
+
+	/**
+	 * Get the hedge policy of this reader.
+	 * 
+	 * @return the policy, or null if requests are not hedged
+	 */
+	public HedgePolicy getHedgePolicy() {
+		return hedgePolicy;
+	}
+
+	/**
+	 * Compress the bodies of the POST and PUT requests of this reader. The compression may be shared by several
+	 * readers, its counts then cover all of them.
+	 * 
+	 * @param requestCompression
+	 *            the compression to use, or null to send bodies as they are (the default)
+	 */
+	public void setRequestCompression(RequestCompression requestCompression) {
+		this.requestCompression = requestCompression;
+	}
+
+	/**
+	 * Get the request body compression of this reader.
+	 * 
+	 * @return the compression, or null if bodies are sent as they are
+	 */
+	public RequestCompression getRequestCompression() {
+		return requestCompression;
+	}
+
+	/**
+	 * Execute the requests of this reader in the order of their priority, see {@link RequestScheduler}. The scheduler
+	 * may be shared by several readers, to limit the requests they execute at once.
+	 * 
+	 * @param requestScheduler
+	 *            the scheduler to use, or null for requests to wait for this reader in no particular order (the
+	 *            default)
+	 */
+	public void setRequestScheduler(RequestScheduler requestScheduler) {
+		this.requestScheduler = requestScheduler;
+	}
+
+	/**
+	 * Get the request scheduler of this reader.
+	 * 
+	 * @return the scheduler, or null if requests are not scheduled
+	 */
+	public RequestScheduler getRequestScheduler() {
+		return requestScheduler;
+	}
+
+	/**
+	 * Get the compression the body of a request is sent with.
+	 * 
+	 * @param req
+	 *            the request
+	 * @return the compression, or null if the body is sent as it is
+	 */
+	private RequestCompression getCompression(HTTPRequest req) {
+		RequestCompression compression = requestCompression;
+		return compression != null && compression.isCompressing(req) ? compression : null;
+	}
+
+	/**
+	 * Skip the bodies of redirect responses instead of reading them. Bodies up to the drain limit are read and
+	 * discarded without decoding, so the connection can be reused; larger ones are dropped by closing the connection.
+	 * The requests of the intermediate hops of a chain release their bodies once the next hop has been followed. With
+	 * {@link #setFollowRedirects(boolean)} off, the caller gets the redirect itself, with its body.
+	 * 
+	 * @param drainRedirectBodies
+	 *            whether or not redirect bodies should be skipped
+	 * @see #setRedirectDrainLimit(int)
+	 */
+	public void setDrainRedirectBodies(boolean drainRedirectBodies) {
+		this.drainRedirectBodies = drainRedirectBodies;
+	}
+
+	/**
+	 * Set how many bytes of a redirect body are drained to keep the connection alive, see
+	 * {@link #setDrainRedirectBodies(boolean)}.
+	 * 
+	 * @param redirectDrainLimit
+	 *            the number of bytes, 0 to always close the connection
+	 */
+	public void setRedirectDrainLimit(int redirectDrainLimit) {
+		this.redirectDrainLimit = redirectDrainLimit;
+	}
+
+	/**
+	 * Send POST and PUT bodies of at least the given size with <code>Expect: 100-continue</code>, see
+	 * {@link HTTPRequest#setExpectContinue(boolean)}.
+	 * 
+	 * @param expectContinueThreshold
+	 *            the size in bytes, -1 to only do it for the requests that ask for it (the default)
+	 */
+	public void setExpectContinueThreshold(long expectContinueThreshold) {
+		this.expectContinueThreshold = expectContinueThreshold;
+	}
+
+	public long getExpectContinueThreshold() {
+		return expectContinueThreshold;
+	}
+
+	private boolean isExpectingContinue(HTTPRequest req) {
+		if (!req.getMethod().equals("POST") && !req.getMethod().equals("PUT")) {
+			return false;
+		}
+		return req.isExpectContinue() || (expectContinueThreshold >= 0 && req.getFormDataLength() >= expectContinueThreshold);
+	}
+
+	/**
+	 * Set the maximum number of redirects followed in a row.
+	 * 
+	 * @param maxRedirects
+	 *            the maximum number of redirects
+	 */
+	public void setMaxRedirects(int maxRedirects) {
+		this.maxRedirects = maxRedirects;
+	}
+
+	/**
+	 * Set the registry that provides the HTTPReaders for redirects to other hosts.
+	 * 
+	 * @param readerRegistry
+	 *            the registry, e.g. {@link HTTPReaderRegistry#getDefault()}, or null to use one private to this reader
+	 */
+	public void setReaderRegistry(HTTPReaderRegistry readerRegistry) {
+		this.readerRegistry = readerRegistry;
+	}
+
+	/**
+	 * Get the registry that provides the HTTPReaders for redirects to other hosts. Unless one has been set, a registry
+	 * private to this reader is created on first use.
+	 * 
+	 * @return the registry
+	 */
+	public synchronized HTTPReaderRegistry getReaderRegistry() {
+		if (readerRegistry == null) {
+			readerRegistry = new HTTPReaderRegistry();
+		}
+		return readerRegistry;
+	}
+
+	/**
+	 * Copy the settings of another HTTPReader into this one: proxy, redirect and cookie handling, default headers,
+	 * hostname verifier, DNS cache, TLS context, reader registry, redirect cache and limits, request coalescer, hedge
+	 * policy, timeouts and deadline. The site and the cookies are not copied.
+	 * 
+	 * @param other
+	 *            the reader to copy the settings from
+	 */
+	public void copySettings(HTTPReader other) {
+		this.proxy = other.proxy;
+		this.useProxy = other.useProxy;
+		this.followRedirects = other.followRedirects;
+		this.handleCookies = other.handleCookies;
+		this.addDefaultHeaders = other.addDefaultHeaders;
+		this.hostnameVerifier = other.hostnameVerifier;
+		this.dnsCache = other.dnsCache;
+		this.tlsContext = other.tlsContext;
+		this.readerRegistry = other.readerRegistry;
+		this.redirectCache = other.redirectCache;
+		this.maxRedirects = other.maxRedirects;
+		this.requestCoalescer = other.requestCoalescer;
+		this.hedgePolicy = other.hedgePolicy;
+		this.requestCompression = other.requestCompression;
+		this.requestScheduler = other.requestScheduler;
+		this.connectTimeout = other.connectTimeout;
+		this.readTimeout = other.readTimeout;
+		this.writeTimeout = other.writeTimeout;
+		this.deadline = other.deadline;
+		this.drainRedirectBodies = other.drainRedirectBodies;
+		this.redirectDrainLimit = other.redirectDrainLimit;
+		this.expectContinueThreshold = other.expectContinueThreshold;
+	}
+
 	/**
 	 * Define a {@link HostnameVerifier}.
 	 * 
@@ -863,4 +2090,13 @@ public class HTTPReader extends Thread implements Cloneable {
 	public void setHostnameVerifier(HostnameVerifier hostnameVerifier) {
 		this.hostnameVerifier = hostnameVerifier;
 	}
+
+	/**
+	 * Get the {@link HostnameVerifier}.
+	 * 
+	 * @return the verifier, or null to use the default one
+	 */
+	public HostnameVerifier getHostnameVerifier() {
+		return hostnameVerifier;
+	}
 }
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.cklab.httpconn.util.URIReference;
+
+/**
+ * HTTPReaderRegistry class.
+ * 
+ * Hands out one cached {@link HTTPReader} per (scheme, host, port). Redirects to another host go through the registry
+ * of the redirecting HTTPReader (see {@link HTTPReader#setReaderRegistry(HTTPReaderRegistry)}), so following them
+ * again reuses the same reader, with its cookies, and its proxy, DNS and TLS settings.
+ * 
+ * Readers that have not been handed out for the {@link #setIdleTimeout(long) idle timeout} are evicted, and the
+ * least recently used readers are evicted beyond {@link #setMaxReaders(int) the maximum size}.
+ * 
+ * @author cklab
+ * 
+ */
+public class HTTPReaderRegistry {
+
+	private static HTTPReaderRegistry			defaultRegistry;
+
+	private final LinkedHashMap<String, Entry>	readers;
+	private HTTPReader							prototype;
+	private long								idleTimeout;
+	private int									maxReaders;
+
+	private static class Entry {
+		final HTTPReader	reader;
+		long				lastUsed;
+
+		Entry(HTTPReader reader) {
+			this.reader = reader;
+		}
+	}
+
+	/**
+	 * Create an empty registry. Readers are evicted after 5 minutes of inactivity, at most 256 readers are kept.
+	 */
+	public HTTPReaderRegistry() {
+		// access order, so that the eldest entry is the least recently used one
+		this.readers = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.idleTimeout = 5 * 60 * 1000;
+		this.maxReaders = 256;
+	}
+
+	/**
+	 * Get the registry shared by the whole JVM.
+	 * 
+	 * @return the shared registry
+	 */
+	public static synchronized HTTPReaderRegistry getDefault() {
+		if (defaultRegistry == null) {
+			defaultRegistry = new HTTPReaderRegistry();
+		}
+		return defaultRegistry;
+	}
+
+	/**
+	 * Set the HTTPReader whose settings are copied into the readers created by
+	 * {@link #getReader(String, String, int)}.
+	 * 
+	 * @param prototype
+	 *            the reader to copy settings from, or null for default settings
+	 */
+	public synchronized void setPrototype(HTTPReader prototype) {
+		this.prototype = prototype;
+	}
+
+	/**
+	 * Set how long a reader can stay unused before it is evicted.
+	 * 
+	 * @param idleTimeout
+	 *            the timeout in milliseconds
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Set how many readers are kept at most.
+	 * 
+	 * @param maxReaders
+	 *            the maximum number of readers
+	 */
+	public synchronized void setMaxReaders(int maxReaders) {
+		this.maxReaders = maxReaders;
+	}
+
+	/**
+	 * Get the reader for the given host.
+	 * 
+	 * @param scheme
+	 *            "http" or "https"
+	 * @param host
+	 *            the host
+	 * @param port
+	 *            the port, or -1 for the default port of the scheme
+	 * @return the cached reader, or a new one configured like the {@link #setPrototype(HTTPReader) prototype}
+	 */
+	public HTTPReader getReader(String scheme, String host, int port) {
+		String authority = port == -1 ? host : host + ":" + port;
+		return getReader(new URIReference(scheme, authority, "", null, null), null);
+	}
+
+	/**
+	 * Get the reader for the host of the given URI.
+	 * 
+	 * @param uri
+	 *            an absolute URI
+	 * @param settingsFrom
+	 *            the reader whose settings are copied if a new reader is created, or null to use the
+	 *            {@link #setPrototype(HTTPReader) prototype}
+	 * @return the cached reader, or a new one
+	 */
+	public synchronized HTTPReader getReader(URIReference uri, HTTPReader settingsFrom) {
+		long now = System.currentTimeMillis();
+		evictIdle(now);
+
+		String host = uri.getHost().toLowerCase();
+		int port = uri.getEffectivePort();
+		String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+		String key = scheme + "://" + host + ":" + port;
+
+		Entry entry = readers.get(key);
+		if (entry == null) {
+			boolean defaultPort = uri.getPort() == -1 || (uri.isHttps() ? port == 443 : port == 80);
+			String site = defaultPort ? host : host + ":" + port;
+
+			HTTPReader reader = new HTTPReader(site, port);
+			HTTPReader from = settingsFrom != null ? settingsFrom : prototype;
+			if (from != null) {
+				reader.copySettings(from);
+			}
+			reader.setReaderRegistry(this);
+
+			entry = new Entry(reader);
+			readers.put(key, entry);
+			while (readers.size() > maxReaders) {
+				Iterator<Entry> it = readers.values().iterator();
+				it.next();
+				it.remove();
+			}
+		}
+		entry.lastUsed = now;
+		return entry.reader;
+	}
+
+	/**
+	 * Evict the readers that have been idle for longer than the idle timeout.
+	 */
+	public synchronized void evictIdle() {
+		evictIdle(System.currentTimeMillis());
+	}
+
+	private void evictIdle(long now) {
+		// in access order: stop at the first reader that is still in use
+		Iterator<Entry> it = readers.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().lastUsed <= idleTimeout) {
+				break;
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * Remove every reader from the registry.
+	 */
+	public synchronized void clear() {
+		readers.clear();
+	}
+
+	/**
+	 * The number of readers in the registry.
+	 * 
+	 * @return the number of readers
+	 */
+	public synchronized int size() {
+		return readers.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder("HTTPReaderRegistry [");
+		for (Map.Entry<String, Entry> e : readers.entrySet()) {
+			sb.append(e.getKey()).append(' ');
+		}
+		return sb.append("]").toString();
+	}
+}
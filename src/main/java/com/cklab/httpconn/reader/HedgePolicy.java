@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.cklab.httpconn.request.HTTPRequest;
+import com.cklab.httpconn.util.DaemonThreadFactory;
+
+/**
+ * HedgePolicy class.
+ * 
+ * Decides when {@link HTTPReader} sends a second attempt of a slow GET request, see
+ * {@link HTTPReader#setHedgePolicy(HedgePolicy)}. The delay after which a request is hedged is either fixed, or the
+ * {@link #setPercentile(double) 95th percentile} of the time it took the last responses to arrive; no request is
+ * hedged until enough of them have been observed.
+ * 
+ * Hedging is bounded by a budget: every request earns a fraction of a hedge and every hedge spends a whole one, so that
+ * with the default budget of 0.05 at most 5% more requests are sent, in bursts of at most 10.
+ * 
+ * @author cklab
+ * 
+ */
+public class HedgePolicy {
+
+	private static final ExecutorService	HEDGER		= Executors.newCachedThreadPool(new DaemonThreadFactory("HTTPConn hedge"));
+
+	private static final int				MIN_SAMPLES	= 20;
+
+	private long							fixedDelay;
+	private double							percentile;
+	private long							minDelay;
+	private double							budget;
+	private double							maxBurst;
+
+	private final long[]					samples;
+	private int								sampleCount;
+	private int								samplesSinceUpdate;
+	private long							percentileDelay;
+
+	private double							tokens;
+
+	private long							requests;
+	private long							hedges;
+	private long							hedgesWon;
+	private long							denied;
+
+	/**
+	 * Create a policy hedging after the 95th percentile of the last 256 response times, with a budget of 5%.
+	 */
+	public HedgePolicy() {
+		this.fixedDelay = -1;
+		this.percentile = 0.95;
+		this.minDelay = 10;
+		this.budget = 0.05;
+		this.maxBurst = 10;
+		this.samples = new long[256];
+		this.percentileDelay = -1;
+	}
+
+	/**
+	 * Create a policy hedging after a fixed delay, with a budget of 5%.
+	 * 
+	 * @param delay
+	 *            the delay in milliseconds
+	 */
+	public HedgePolicy(long delay) {
+		this();
+		this.fixedDelay = delay;
+	}
+
+	/**
+	 * Hedge after a fixed delay instead of a percentile of the observed response times.
+	 * 
+	 * @param delay
+	 *            the delay in milliseconds, or -1 to use the percentile
+	 */
+	public synchronized void setDelay(long delay) {
+		this.fixedDelay = delay;
+	}
+
+	/**
+	 * Set the percentile of the observed response times after which requests are hedged.
+	 * 
+	 * @param percentile
+	 *            the percentile, between 0 and 1
+	 */
+	public synchronized void setPercentile(double percentile) {
+		this.percentile = percentile;
+		this.samplesSinceUpdate = samples.length;
+	}
+
+	/**
+	 * Set the shortest delay derived from the percentile, so fast servers are not hedged on noise.
+	 * 
+	 * @param minDelay
+	 *            the delay in milliseconds
+	 */
+	public synchronized void setMinDelay(long minDelay) {
+		this.minDelay = minDelay;
+	}
+
+	/**
+	 * Set the budget: the number of hedges earned by every request.
+	 * 
+	 * @param budget
+	 *            the fraction of extra requests allowed, 0.05 for 5%
+	 */
+	public synchronized void setBudget(double budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Set how many hedges may be saved up and sent in a burst.
+	 * 
+	 * @param maxBurst
+	 *            the number of hedges
+	 */
+	public synchronized void setMaxBurst(int maxBurst) {
+		this.maxBurst = maxBurst;
+		this.tokens = Math.min(tokens, maxBurst);
+	}
+
+	/**
+	 * The delay after which requests are currently hedged.
+	 * 
+	 * @return the delay in milliseconds, or -1 if not enough responses have been observed yet
+	 */
+	public synchronized long getDelay() {
+		if (fixedDelay >= 0) {
+			return fixedDelay;
+		}
+		if (sampleCount < MIN_SAMPLES) {
+			return -1;
+		}
+		if (samplesSinceUpdate >= 16 || percentileDelay < 0) {
+			// sorting on every request is wasteful, the percentile barely moves between a few samples
+			int n = Math.min(sampleCount, samples.length);
+			long[] sorted = Arrays.copyOf(samples, n);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile * n) - 1;
+			percentileDelay = Math.max(minDelay, sorted[Math.max(0, Math.min(n - 1, index))]);
+			samplesSinceUpdate = 0;
+		}
+		return percentileDelay;
+	}
+
+	/**
+	 * Whether or not a request may be hedged: only GET and HEAD requests are, and not those that stream their response.
+	 * 
+	 * @param req
+	 *            the request
+	 * @return true if the request may be sent twice
+	 */
+	public boolean isHedgeable(HTTPRequest req) {
+		String method = req.getMethod();
+		return (method.equals("GET") || method.equals("HEAD")) && req.getJsonResponse() == null;
+	}
+
+	/**
+	 * Count a request and earn its share of the budget.
+	 * 
+	 * @return the delay after which it should be hedged, or -1
+	 */
+	synchronized long begin() {
+		requests++;
+		tokens = Math.min(maxBurst, tokens + budget);
+		return getDelay();
+	}
+
+	/**
+	 * Spend a hedge from the budget.
+	 * 
+	 * @return true if the budget allows one more hedge
+	 */
+	synchronized boolean tryHedge() {
+		if (tokens < 1) {
+			denied++;
+			return false;
+		}
+		tokens -= 1;
+		hedges++;
+		return true;
+	}
+
+	synchronized void hedgeWon() {
+		hedgesWon++;
+	}
+
+	/**
+	 * Observe the time a response took to arrive.
+	 * 
+	 * @param responseTime
+	 *            the time in milliseconds
+	 */
+	synchronized void record(long responseTime) {
+		samples[sampleCount % samples.length] = responseTime;
+		sampleCount++;
+		samplesSinceUpdate++;
+	}
+
+	Future<?> submit(Runnable hedge) {
+		return HEDGER.submit(hedge);
+	}
+
+	/**
+	 * The number of requests that could have been hedged.
+	 * 
+	 * @return the number of requests
+	 */
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	/**
+	 * The number of hedges that were sent.
+	 * 
+	 * @return the number of hedges
+	 */
+	public synchronized long getHedges() {
+		return hedges;
+	}
+
+	/**
+	 * The number of hedges that completed before the request they were hedging.
+	 * 
+	 * @return the number of hedges won
+	 */
+	public synchronized long getHedgesWon() {
+		return hedgesWon;
+	}
+
+	/**
+	 * The number of hedges that were not sent because the budget was spent.
+	 * 
+	 * @return the number of hedges denied
+	 */
+	public synchronized long getDenied() {
+		return denied;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public synchronized String toString() {
+		return "HedgePolicy [delay=" + getDelay() + ", requests=" + requests + ", hedges=" + hedges + ", hedgesWon="
+				+ hedgesWon + ", denied=" + denied + "]";
+	}
+}
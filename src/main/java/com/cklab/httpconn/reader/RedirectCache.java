@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import com.cklab.httpconn.util.URIReference;
+
+/**
+ * RedirectCache class.
+ * 
+ * Remembers permanent redirects (301 and 308) so that {@link HTTPReader#exec(com.cklab.httpconn.request.HTTPRequest)}
+ * can send a GET straight to its final target instead of paying a round trip for every hop, see
+ * {@link HTTPReader#setRedirectCache(RedirectCache)}.
+ * 
+ * Entries expire after the <code>max-age</code> of the redirect response, or the {@link #setDefaultTTL(long) default
+ * time to live}; responses marked <code>no-store</code> or <code>no-cache</code> are not remembered. The least recently
+ * used entries are evicted beyond {@link #setMaxEntries(int) the maximum size}.
+ * 
+ * @author cklab
+ * 
+ */
+public class RedirectCache {
+
+	private static RedirectCache				defaultCache;
+
+	private final LinkedHashMap<String, Entry>	entries;
+	private long								defaultTTL;
+	private int									maxEntries;
+	private int									maxHops;
+
+	private long								hits;
+	private long								misses;
+
+	private static class Entry {
+		final URIReference	target;
+		final long			expiresAt;
+
+		Entry(URIReference target, long expiresAt) {
+			this.target = target;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * Create an empty cache. Entries live for an hour by default, at most 1024 entries are kept and chains are
+	 * followed for at most 10 hops.
+	 */
+	public RedirectCache() {
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.defaultTTL = 60 * 60 * 1000;
+		this.maxEntries = 1024;
+		this.maxHops = 10;
+	}
+
+	/**
+	 * Get the cache shared by the whole JVM.
+	 * 
+	 * @return the shared cache
+	 */
+	public static synchronized RedirectCache getDefault() {
+		if (defaultCache == null) {
+			defaultCache = new RedirectCache();
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Set how long a redirect without a <code>max-age</code> is remembered.
+	 * 
+	 * @param defaultTTL
+	 *            the time in milliseconds
+	 */
+	public synchronized void setDefaultTTL(long defaultTTL) {
+		this.defaultTTL = defaultTTL;
+	}
+
+	/**
+	 * Set how many redirects are remembered at most.
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of entries
+	 */
+	public synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Set how many remembered redirects are chained at most by {@link #lookup(String)}.
+	 * 
+	 * @param maxHops
+	 *            the maximum number of hops
+	 */
+	public synchronized void setMaxHops(int maxHops) {
+		this.maxHops = maxHops;
+	}
+
+	/**
+	 * Remember a permanent redirect.
+	 * 
+	 * @param from
+	 *            the absolute URI that was requested
+	 * @param to
+	 *            the absolute URI it redirects to
+	 * @param cacheControl
+	 *            the Cache-Control header of the redirect response, or null
+	 */
+	public synchronized void remember(String from, URIReference to, String cacheControl) {
+		long ttl = defaultTTL;
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				directive = directive.trim().toLowerCase();
+				if (directive.equals("no-store") || directive.equals("no-cache")) {
+					return;
+				}
+				if (directive.startsWith("max-age=")) {
+					try {
+						ttl = Long.parseLong(directive.substring(8).trim()) * 1000;
+					} catch (NumberFormatException e) {
+						// ignore a malformed max-age
+					}
+				}
+			}
+		}
+		if (ttl <= 0) {
+			return;
+		}
+
+		entries.put(key(from), new Entry(to, System.currentTimeMillis() + ttl));
+		while (entries.size() > maxEntries) {
+			Iterator<Entry> it = entries.values().iterator();
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Find the final target of a URI, following remembered redirects. A remembered chain longer than the maximum
+	 * number of hops is followed that far, the request then goes on from there as the server redirects it.
+	 * 
+	 * @param uri
+	 *            the absolute URI
+	 * @return the final target, or the target reached after the maximum number of hops; null if the URI is not known
+	 *         to redirect, or its remembered chain loops.
+	 */
+	public synchronized URIReference lookup(String uri) {
+		long now = System.currentTimeMillis();
+		String key = key(uri);
+		URIReference target = null;
+		Set<String> visited = null;
+
+		for (int hop = 0; hop < maxHops; hop++) {
+			Entry entry = entries.get(key);
+			if (entry != null && now >= entry.expiresAt) {
+				entries.remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				break;
+			}
+
+			if (visited == null) {
+				visited = new HashSet<String>();
+				visited.add(key);
+			}
+			target = entry.target;
+			key = key(target.toString());
+			if (!visited.add(key)) {
+				// the remembered redirects loop: forget them and let the server decide again
+				for (String k : visited) {
+					entries.remove(k);
+				}
+				target = null;
+				break;
+			}
+		}
+
+		if (target == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return target;
+	}
+
+	/**
+	 * Forget the redirect of a URI.
+	 * 
+	 * @param uri
+	 *            the absolute URI
+	 */
+	public synchronized void forget(String uri) {
+		entries.remove(key(uri));
+	}
+
+	/**
+	 * Forget every redirect.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * The number of remembered redirects.
+	 * 
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * The number of lookups that found a target.
+	 * 
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * The number of lookups that did not find a target.
+	 * 
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * The fragment is never sent, it does not take part in redirects.
+	 */
+	private static String key(String uri) {
+		int hash = uri.indexOf('#');
+		return hash < 0 ? uri : uri.substring(0, hash);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		return "RedirectCache [entries=" + entries.size() + ", hits=" + hits + ", misses=" + misses + "]";
+	}
+}
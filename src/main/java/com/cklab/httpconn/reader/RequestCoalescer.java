@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.cklab.httpconn.request.Get;
+import com.cklab.httpconn.request.HTTPRequest;
+
+/**
+ * RequestCoalescer class.
+ * 
+ * Lets concurrent identical GET requests share a single execution, see
+ * {@link HTTPReader#setRequestCoalescer(RequestCoalescer)}. The first caller executes the request; callers that arrive
+ * while it is in flight wait for it and get a copy of its response instead of a round trip of their own.
+ * 
+ * Requests are identical when they have the same method, absolute URI, headers and cookies. Requests that stream their
+ * response to a {@link com.cklab.httpconn.util.JsonResponse} are never coalesced.
+ * 
+ * @author cklab
+ * 
+ */
+public class RequestCoalescer {
+
+	private static RequestCoalescer						defaultCoalescer;
+
+	// how often a waiting request checks whether it was cancelled
+	private static final long							CANCEL_POLL_INTERVAL	= 100;
+
+	private final ConcurrentHashMap<String, Flight>	inFlight;
+
+	private long										executions;
+	private long										coalesced;
+
+	private static class Flight {
+		final CountDownLatch	done	= new CountDownLatch(1);
+		int						waiters;
+		boolean					landed;
+		HTTPRequest				response;
+	}
+
+	/**
+	 * Create a coalescer with nothing in flight.
+	 */
+	public RequestCoalescer() {
+		this.inFlight = new ConcurrentHashMap<String, Flight>();
+	}
+
+	/**
+	 * Get the coalescer shared by the whole JVM.
+	 * 
+	 * @return the shared coalescer
+	 */
+	public static synchronized RequestCoalescer getDefault() {
+		if (defaultCoalescer == null) {
+			defaultCoalescer = new RequestCoalescer();
+		}
+		return defaultCoalescer;
+	}
+
+	/**
+	 * Whether or not a request may share its execution with others.
+	 * 
+	 * @param req
+	 *            the request
+	 * @return true for GET and HEAD requests that do not stream their response
+	 */
+	public boolean isCoalescable(HTTPRequest req) {
+		String method = req.getMethod();
+		return (method.equals("GET") || method.equals("HEAD")) && req.getJsonResponse() == null;
+	}
+
+	/**
+	 * Build the key identifying a request.
+	 * 
+	 * @param absoluteURI
+	 *            the URI the request is sent to
+	 * @param req
+	 *            the request
+	 * @param cookies
+	 *            the cookies sent with the request, or null
+	 * @return the key
+	 */
+	public String key(String absoluteURI, HTTPRequest req, String cookies) {
+		StringBuilder key = new StringBuilder();
+		key.append(req.getMethod()).append(' ').append(absoluteURI);
+
+		// header names are case insensitive, sort them so the order they were added in does not matter
+		Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+		headers.putAll(req.getHeadersToSend());
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			key.append('\n').append(header.getKey().toLowerCase()).append(": ").append(header.getValue());
+		}
+		if (cookies != null) {
+			key.append("\ncookie: ").append(cookies);
+		}
+		if (req.getReferrer() != null) {
+			key.append("\nreferer: ").append(req.getReferrer());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Execute a request, unless an identical one is in flight: then wait for it and copy its response into the
+	 * request.
+	 * 
+	 * @param key
+	 *            the key of the request, see {@link #key(String, HTTPRequest, String)}
+	 * @param req
+	 *            the request
+	 * @param execution
+	 *            executes the request when no identical request is in flight
+	 */
+	public void execute(String key, HTTPRequest req, Runnable execution) {
+		while (true) {
+			Flight flight = new Flight();
+			Flight leader = inFlight.putIfAbsent(key, flight);
+
+			if (leader == null) {
+				lead(key, req, flight, execution);
+				return;
+			}
+
+			synchronized (leader) {
+				if (leader.landed) {
+					// it finished while we were looking, take our own turn
+					continue;
+				}
+				leader.waiters++;
+			}
+
+			if (!await(leader, req)) {
+				return;
+			}
+
+			if (leader.response == null) {
+				// the execution failed or was aborted before producing a response, try on our own
+				execution.run();
+				return;
+			}
+
+			req.copyResponse(leader.response);
+			synchronized (this) {
+				coalesced++;
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Wait for the leader of a flight to land, within the deadline of the waiting request.
+	 * 
+	 * @return false if the waiting request was cancelled or its deadline passed
+	 */
+	private boolean await(Flight leader, HTTPRequest req) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				if (req.isCancelled()) {
+					return false;
+				}
+				long wait = CANCEL_POLL_INTERVAL;
+				if (req.getExpiresAt() > 0) {
+					wait = Math.min(wait, req.getExpiresAt() - System.currentTimeMillis());
+					if (wait <= 0) {
+						req.setTimedOut(true);
+						return false;
+					}
+				}
+				try {
+					if (leader.done.await(wait, TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void lead(String key, HTTPRequest req, Flight flight, Runnable execution) {
+		boolean completed = false;
+		try {
+			execution.run();
+			completed = true;
+		} finally {
+			synchronized (flight) {
+				flight.landed = true;
+				// an aborted response is only the leader's, the waiters send their own request
+				if (completed && flight.waiters > 0 && !req.isCancelled() && !req.isTimedOut()) {
+					// the caller may reuse its request as soon as we return, the waiters get a snapshot
+					HTTPRequest snapshot = new Get();
+					snapshot.copyResponse(req);
+					flight.response = snapshot;
+				}
+			}
+			inFlight.remove(key, flight);
+			flight.done.countDown();
+
+			synchronized (this) {
+				executions++;
+			}
+		}
+	}
+
+	/**
+	 * The number of requests currently in flight.
+	 * 
+	 * @return the number of requests
+	 */
+	public int getInFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * The number of requests that were executed.
+	 * 
+	 * @return the number of executions
+	 */
+	public synchronized long getExecutions() {
+		return executions;
+	}
+
+	/**
+	 * The number of requests that got the response of another one, which is the number of round trips saved.
+	 * 
+	 * @return the number of coalesced requests
+	 */
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "RequestCoalescer [inFlight=" + getInFlight() + ", executions=" + getExecutions() + ", coalesced="
+				+ getCoalesced() + "]";
+	}
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import com.cklab.httpconn.request.HTTPRequest;
+import com.cklab.httpconn.util.CompressingOutputStream;
+import com.cklab.httpconn.util.ContentEncoding;
+
+/**
+ * RequestCompression class.
+ * 
+ * Compresses the bodies of POST and PUT requests sent by an {@link HTTPReader}, see
+ * {@link HTTPReader#setRequestCompression(RequestCompression)}. The body is compressed as it is sent, with chunked
+ * transfer since its compressed length is not known up front, and the Content-Encoding header is set accordingly.
+ * 
+ * Bodies smaller than {@link #setThreshold(long) the threshold} are sent as they are, as are the bodies of requests
+ * that set their own Content-Encoding header. The server has to accept compressed requests, which most do not unless
+ * configured to.
+ * 
+ * The compression ratio and the time spent compressing are added up, so one instance can be shared by several readers
+ * to measure them together.
+ * 
+ * @author cklab
+ * 
+ */
+public class RequestCompression {
+
+	private final ContentEncoding	encoding;
+	private long					threshold;
+	private int						level;
+
+	private long					compressed;
+	private long					skipped;
+	private long					bytesIn;
+	private long					bytesOut;
+	private long					compressionTime;
+
+	/**
+	 * Compress request bodies of at least 1KB with the default compression level.
+	 * 
+	 * @param encoding
+	 *            the content coding to compress with
+	 */
+	public RequestCompression(ContentEncoding encoding) {
+		if (encoding == null) {
+			throw new IllegalArgumentException("No content coding");
+		}
+		this.encoding = encoding;
+		this.threshold = 1024;
+		this.level = Deflater.DEFAULT_COMPRESSION;
+	}
+
+	public ContentEncoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Set the size under which bodies are sent uncompressed, the framing of a small body can outweigh what it saves.
+	 * 
+	 * @param threshold
+	 *            the size in bytes
+	 */
+	public synchronized void setThreshold(long threshold) {
+		this.threshold = threshold;
+	}
+
+	public synchronized long getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Set the compression level, trading CPU time against bandwidth.
+	 * 
+	 * @param level
+	 *            from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}, or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public synchronized void setLevel(int level) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.level = level;
+	}
+
+	public synchronized int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Whether or not the body of a request is to be compressed. This is decided once per execution of the request, the
+	 * retry sends the body the same way; a body smaller than the threshold is counted as skipped.
+	 * 
+	 * @param req
+	 *            the request
+	 * @return true for a POST or PUT with a body of at least the threshold and no Content-Encoding of its own
+	 */
+	boolean isCompressing(HTTPRequest req) {
+		if (!req.getMethod().equals("POST") && !req.getMethod().equals("PUT")) {
+			return false;
+		}
+		if (req.getHeadersToSend().containsKey("Content-Encoding")) {
+			return false;
+		}
+		// a JSON body is only serialized up to the threshold, it is serialized again as it is sent
+		if (!req.isFormDataAtLeast(getThreshold())) {
+			synchronized (this) {
+				skipped++;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Wrap the stream a request body is sent on.
+	 * 
+	 * @param out
+	 *            the stream of the connection
+	 * @return the stream to write the body to, to be passed to {@link #record(CompressingOutputStream)} once closed
+	 * @throws IOException
+	 */
+	CompressingOutputStream wrap(OutputStream out) throws IOException {
+		return new CompressingOutputStream(out, encoding, getLevel());
+	}
+
+	/**
+	 * Add the counts of a body that was sent.
+	 * 
+	 * @param out
+	 *            the closed stream the body was written to
+	 */
+	synchronized void record(CompressingOutputStream out) {
+		compressed++;
+		bytesIn += out.getBytesIn();
+		bytesOut += out.getBytesOut();
+		compressionTime += out.getCompressionTime();
+	}
+
+	/**
+	 * The number of bodies that were compressed.
+	 * 
+	 * @return the number of bodies
+	 */
+	public synchronized long getCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * The number of bodies that were sent uncompressed because they were smaller than the threshold.
+	 * 
+	 * @return the number of bodies
+	 */
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * The size of the compressed bodies before compression.
+	 * 
+	 * @return the number of bytes
+	 */
+	public synchronized long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * The size of the compressed bodies as sent.
+	 * 
+	 * @return the number of bytes
+	 */
+	public synchronized long getBytesOut() {
+		return bytesOut;
+	}
+
+	/**
+	 * The compression ratio of the bodies so far, their size before compression over their size as sent.
+	 * 
+	 * @return the ratio, or 0 if nothing was compressed yet
+	 */
+	public synchronized double getRatio() {
+		return bytesOut == 0 ? 0 : (double) bytesIn / bytesOut;
+	}
+
+	/**
+	 * The time spent compressing, see {@link CompressingOutputStream#getCompressionTime()}.
+	 * 
+	 * @return the time in nanoseconds
+	 */
+	public synchronized long getCompressionTime() {
+		return compressionTime;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public synchronized String toString() {
+		return "RequestCompression [encoding=" + encoding.getName() + ", threshold=" + threshold + ", level=" + level
+				+ ", compressed=" + compressed + ", skipped=" + skipped + ", bytesIn=" + bytesIn + ", bytesOut="
+				+ bytesOut + ", ratio=" + String.format("%.2f", getRatio()) + ", compressionTime=" + compressionTime
+				/ 1000000 + "ms]";
+	}
+}
@@ -0,0 +1,332 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.cklab.httpconn.request.HTTPRequest;
+
+/**
+ * RequestScheduler class.
+ * 
+ * Decides the order in which requests waiting for an {@link HTTPReader} are executed, see
+ * {@link HTTPReader#setRequestScheduler(RequestScheduler)}. Without one, the requests of a reader wait for its lock in
+ * no particular order; with one, the request with the highest {@link HTTPRequest#setPriority(int) priority} goes
+ * first, so interactive requests skip ahead of background ones.
+ * 
+ * Requests age while they wait: every {@link #setAging(long) aging interval} spent waiting counts as one more level of
+ * priority, so low priority requests still make progress under a steady stream of high priority ones. Requests of the
+ * same rank go in order of their deadline, then in the order they arrived. A request whose deadline passes, or that is
+ * cancelled, while it waits leaves the queue without being sent.
+ * 
+ * A scheduler can be shared by several readers, e.g. through {@link HTTPReader#copySettings(HTTPReader)}: each reader
+ * still executes one request at a time, and {@link #setMaxConcurrent(int) the number of requests executed at once}
+ * by all of them can be limited, bounding the connections they open.
+ * 
+ * Only the requests executed with {@link HTTPReader#exec(HTTPRequest)} and
+ * {@link HTTPReader#submit(HTTPRequest)} are scheduled; streams, WebSockets and downloads are not.
+ * 
+ * @author cklab
+ * 
+ */
+public class RequestScheduler {
+
+	// how often a waiting request checks whether it was cancelled
+	private static final long		CANCEL_POLL_INTERVAL	= 100;
+
+	private final TreeSet<Waiter>	waiting;
+	private final Set<HTTPReader>	busy;
+	private int						maxConcurrent;
+	private long					aging;
+	private int						running;
+	private long					sequence;
+
+	private long					granted;
+	private long					queued;
+	private long					expired;
+	private long					cancelled;
+	private long					totalWait;
+	private long					maxWait;
+
+	private static class Waiter {
+		final HTTPReader	reader;
+		final long			rank;
+		final long			expiresAt;
+		final long			sequence;
+		final long			queuedAt;
+		boolean				granted;
+
+		Waiter(HTTPReader reader, long rank, long expiresAt, long sequence, long queuedAt) {
+			this.reader = reader;
+			this.rank = rank;
+			this.expiresAt = expiresAt;
+			this.sequence = sequence;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	private static final Comparator<Waiter>	ORDER	= new Comparator<Waiter>() {
+		public int compare(Waiter a, Waiter b) {
+			if (a.rank != b.rank) {
+				return a.rank > b.rank ? -1 : 1;
+			}
+			if (a.expiresAt != b.expiresAt) {
+				// no deadline goes last
+				if (a.expiresAt == 0 || b.expiresAt == 0) {
+					return a.expiresAt == 0 ? 1 : -1;
+				}
+				return a.expiresAt < b.expiresAt ? -1 : 1;
+			}
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Create a scheduler that does not limit the number of requests executed at once. Requests gain a level of
+	 * priority per second of waiting.
+	 */
+	public RequestScheduler() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create a scheduler. Requests gain a level of priority per second of waiting.
+	 * 
+	 * @param maxConcurrent
+	 *            the number of requests executed at once, by all the readers using this scheduler
+	 */
+	public RequestScheduler(int maxConcurrent) {
+		this.waiting = new TreeSet<Waiter>(ORDER);
+		this.busy = Collections.newSetFromMap(new IdentityHashMap<HTTPReader, Boolean>());
+		this.aging = 1000;
+		setMaxConcurrent(maxConcurrent);
+	}
+
+	/**
+	 * Set the number of requests executed at once, by all the readers using this scheduler.
+	 * 
+	 * @param maxConcurrent
+	 *            the number of requests, at least 1
+	 */
+	public synchronized void setMaxConcurrent(int maxConcurrent) {
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("At least one request has to be executed at once: " + maxConcurrent);
+		}
+		this.maxConcurrent = maxConcurrent;
+		dispatch();
+	}
+
+	public synchronized int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * Set how long a request waits to gain a level of priority. The requests already waiting keep the aging they were
+	 * queued with.
+	 * 
+	 * @param aging
+	 *            the time in milliseconds, 0 for priorities to be strict
+	 */
+	public synchronized void setAging(long aging) {
+		this.aging = aging;
+	}
+
+	public synchronized long getAging() {
+		return aging;
+	}
+
+	/**
+	 * Wait for the turn of a request on a reader.
+	 * 
+	 * @param reader
+	 *            the reader executing the request
+	 * @param req
+	 *            the request
+	 * @return true once it is the turn of the request, to be followed by {@link #release(HTTPReader)}; false if the
+	 *         request was cancelled, its deadline passed or the thread was interrupted while it waited
+	 */
+	synchronized boolean acquire(HTTPReader reader, HTTPRequest req) {
+		long now = System.currentTimeMillis();
+		// aging is linear and the same for everyone, so the order of the waiting requests does not change as they age
+		long rank = aging > 0 ? req.getPriority() * aging - now : req.getPriority();
+		Waiter waiter = new Waiter(reader, rank, req.getExpiresAt(), sequence++, now);
+		waiting.add(waiter);
+		dispatch();
+		if (!waiter.granted) {
+			queued++;
+		}
+
+		try {
+			while (!waiter.granted) {
+				if (req.isCancelled()) {
+					cancelled++;
+					waiting.remove(waiter);
+					return false;
+				}
+				long wait = CANCEL_POLL_INTERVAL;
+				if (waiter.expiresAt > 0) {
+					wait = Math.min(wait, waiter.expiresAt - System.currentTimeMillis());
+					if (wait <= 0) {
+						expired++;
+						waiting.remove(waiter);
+						req.setTimedOut(true);
+						return false;
+					}
+				}
+				wait(wait);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (!waiter.granted) {
+				waiting.remove(waiter);
+				return false;
+			}
+		}
+
+		long waited = System.currentTimeMillis() - waiter.queuedAt;
+		granted++;
+		totalWait += waited;
+		maxWait = Math.max(maxWait, waited);
+		return true;
+	}
+
+	/**
+	 * End the turn of a request, letting the next one go.
+	 * 
+	 * @param reader
+	 *            the reader that executed the request
+	 */
+	synchronized void release(HTTPReader reader) {
+		running--;
+		busy.remove(reader);
+		dispatch();
+	}
+
+	/**
+	 * Hand out turns to the best ranked requests whose reader is free, while the limit allows it.
+	 */
+	private void dispatch() {
+		boolean dispatched = false;
+		Iterator<Waiter> it = waiting.iterator();
+		while (running < maxConcurrent && it.hasNext()) {
+			Waiter waiter = it.next();
+			if (busy.contains(waiter.reader)) {
+				continue;
+			}
+			it.remove();
+			busy.add(waiter.reader);
+			running++;
+			waiter.granted = true;
+			dispatched = true;
+		}
+		if (dispatched) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * The number of requests waiting for their turn.
+	 * 
+	 * @return the number of requests
+	 */
+	public synchronized int getWaiting() {
+		return waiting.size();
+	}
+
+	/**
+	 * The number of requests being executed.
+	 * 
+	 * @return the number of requests
+	 */
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	/**
+	 * The number of requests that were given their turn.
+	 * 
+	 * @return the number of requests
+	 */
+	public synchronized long getGranted() {
+		return granted;
+	}
+
+	/**
+	 * The number of requests that had to wait for their turn.
+	 * 
+	 * @return the number of requests
+	 */
+	public synchronized long getQueued() {
+		return queued;
+	}
+
+	/**
+	 * The number of requests whose deadline passed while they waited.
+	 * 
+	 * @return the number of requests
+	 */
+	public synchronized long getExpired() {
+		return expired;
+	}
+
+	/**
+	 * The number of requests cancelled while they waited.
+	 * 
+	 * @return the number of requests
+	 */
+	public synchronized long getCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * The average time the requests given their turn waited for it.
+	 * 
+	 * @return the time in milliseconds
+	 */
+	public synchronized long getAverageWait() {
+		return granted == 0 ? 0 : totalWait / granted;
+	}
+
+	/**
+	 * The longest time a request waited for its turn.
+	 * 
+	 * @return the time in milliseconds
+	 */
+	public synchronized long getMaxWait() {
+		return maxWait;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public synchronized String toString() {
+		return "RequestScheduler [maxConcurrent=" + (maxConcurrent == Integer.MAX_VALUE ? "unlimited" : maxConcurrent)
+				+ ", aging=" + aging + ", running=" + running + ", waiting=" + waiting.size() + ", granted=" + granted
+				+ ", queued=" + queued + ", expired=" + expired + ", cancelled=" + cancelled + ", averageWait="
+				+ getAverageWait() + ", maxWait=" + maxWait + "]";
+	}
+}
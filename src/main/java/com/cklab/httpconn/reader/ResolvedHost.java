@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * ResolvedHost class.
+ * 
+ * The result of resolving a host name: its addresses and how long they are valid.
+ * 
+ * @author cklab
+ * 
+ */
+public class ResolvedHost {
+
+	private final String		host;
+	private final InetAddress[]	addresses;
+	private final long			ttl;
+	private final long			resolvedAt;
+
+	/**
+	 * Create a resolution result, resolved now.
+	 * 
+	 * @param host
+	 *            the host name
+	 * @param addresses
+	 *            the addresses of the host
+	 * @param ttl
+	 *            how long the addresses may be cached, in milliseconds
+	 */
+	public ResolvedHost(String host, InetAddress[] addresses, long ttl) {
+		this.host = host;
+		this.addresses = addresses;
+		this.ttl = ttl;
+		this.resolvedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Get the host name.
+	 * 
+	 * @return the host name
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Get the addresses of the host.
+	 * 
+	 * @return the addresses of the host
+	 */
+	public InetAddress[] getAddresses() {
+		return addresses.clone();
+	}
+
+	/**
+	 * Get how long the addresses may be cached.
+	 * 
+	 * @return the time to live, in milliseconds
+	 */
+	public long getTTL() {
+		return ttl;
+	}
+
+	/**
+	 * Get the time this host was resolved at.
+	 * 
+	 * @return the time, in milliseconds since the epoch
+	 */
+	public long getResolvedAt() {
+		return resolvedAt;
+	}
+
+	/**
+	 * Whether or not the addresses are past their time to live.
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if the addresses have expired, false otherwise.
+	 */
+	public boolean isExpired(long now) {
+		return now - resolvedAt >= ttl;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ResolvedHost [host=" + host + ", addresses=" + Arrays.toString(addresses) + ", ttl=" + ttl + "]";
+	}
+}
@@ -0,0 +1,554 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.cklab.httpconn.request.HTTPRequest;
+import com.cklab.httpconn.util.DaemonThreadFactory;
+
+/**
+ * SegmentedDownload class.
+ * 
+ * Downloads a resource into a file over several connections at once, each fetching its own byte range, see
+ * {@link HTTPReader#download(HTTPRequest, File, int)}. The length and the support for ranges are probed with a HEAD
+ * request first; hosts that do not support ranges, or do not tell the length, are downloaded over a single connection.
+ * 
+ * The progress of every segment is saved next to the file (<code>file.ranges</code>) while it is downloaded. An
+ * interrupted download that is run again only fetches the missing ranges, provided the resource still has the same
+ * length and validator (<code>ETag</code> or <code>Last-Modified</code>); the state file is deleted once the download
+ * is complete.
+ * 
+ * The deadline of the request covers the whole download, and cancelling the request aborts it; either way the
+ * progress is saved so that it can be resumed.
+ * 
+ * @author cklab
+ * 
+ */
+public class SegmentedDownload {
+
+	private static final ExecutorService	DOWNLOADER		= Executors.newCachedThreadPool(new DaemonThreadFactory("HTTPConn download"));
+
+	private static final int				BUFFER_SIZE		= 64 * 1024;
+	private static final long				MIN_SEGMENT		= 1024 * 1024;
+	private static final long				SAVE_INTERVAL	= 4 * 1024 * 1024;
+
+	private final HTTPReader				rdr;
+	private final HTTPRequest				req;
+	private final File						file;
+	private final File						stateFile;
+	private final int						segments;
+	private int								maxRetries;
+
+	private long							length;
+	private String							validator;
+	private boolean							segmented;
+	private boolean							resumed;
+	private volatile boolean				changed;
+
+	private long[]							starts;
+	private long[]							ends;
+	private AtomicLongArray					positions;
+	private final AtomicLong				downloaded;
+	private final AtomicLong				unsaved;
+
+	private FileChannel						channel;
+
+	/**
+	 * Create a download.
+	 * 
+	 * @param rdr
+	 *            the reader of the host
+	 * @param req
+	 *            the GET request of the resource, it is only used as a template
+	 * @param file
+	 *            the file to download into
+	 * @param segments
+	 *            the number of ranges fetched at once
+	 */
+	public SegmentedDownload(HTTPReader rdr, HTTPRequest req, File file, int segments) {
+		this.rdr = rdr;
+		this.req = req;
+		this.file = file;
+		this.stateFile = new File(file.getPath() + ".ranges");
+		this.segments = Math.max(1, segments);
+		this.maxRetries = 3;
+		this.length = -1;
+		this.downloaded = new AtomicLong();
+		this.unsaved = new AtomicLong();
+	}
+
+	/**
+	 * Set how many times a segment is retried after a failure, from where it stopped.
+	 * 
+	 * @param maxRetries
+	 *            the number of retries
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Download the resource.
+	 * 
+	 * @throws IOException
+	 *             if a segment still fails after its retries, or the download was cancelled or exceeded its deadline;
+	 *             running the download again resumes it
+	 */
+	public void run() throws IOException {
+		rdr.startDeadline(req);
+		probe();
+
+		if (segmented) {
+			plan();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (raf.length() != length) {
+					raf.setLength(length);
+				}
+				channel = raf.getChannel();
+				fetchSegments();
+			} finally {
+				channel = null;
+				raf.close();
+			}
+
+			if (!changed) {
+				stateFile.delete();
+				return;
+			}
+			// the resource changed under us, the ranges we have are worthless
+			if (HTTPReader.DEBUG) {
+				System.out.println("Resource changed, downloading again: " + rdr.getAbsoluteURI(req));
+			}
+			stateFile.delete();
+			segmented = false;
+			resumed = false;
+			downloaded.set(0);
+		}
+
+		fetchSingle();
+	}
+
+	/**
+	 * Find the length of the resource, whether the host supports ranges, and the validator of the resource.
+	 */
+	private void probe() throws IOException {
+		HTTPRequest head = new HTTPRequest("HEAD", req.getPage(), req.getReferrer(), req.isUsingSSL());
+		head.getHeadersToSend().putAll(req.getHeadersToSend());
+		head.setCookies(req.getCookies());
+
+		HttpURLConnection conn = open(head);
+		Future<?> watchdog = watch(head, conn);
+		try {
+			int status = conn.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK) {
+				// some servers do not answer HEAD, let the GET tell
+				return;
+			}
+			length = parseLong(conn.getHeaderField("Content-Length"));
+			String etag = conn.getHeaderField("ETag");
+			validator = etag != null && !etag.startsWith("W/") ? etag : conn.getHeaderField("Last-Modified");
+			segmented = "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges")) && length > 0;
+		} catch (IOException e) {
+			checkAborted();
+			throw e;
+		} finally {
+			close(head, conn, watchdog);
+		}
+	}
+
+	/**
+	 * Split the resource into ranges, or pick up the ranges of an interrupted download.
+	 */
+	private void plan() throws IOException {
+		if (loadState()) {
+			resumed = true;
+			return;
+		}
+
+		int n = (int) Math.max(1, Math.min(segments, length / MIN_SEGMENT));
+		long size = (length + n - 1) / n;
+		starts = new long[n];
+		ends = new long[n];
+		positions = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++) {
+			starts[i] = i * size;
+			ends[i] = Math.min(length, starts[i] + size) - 1;
+			positions.set(i, starts[i]);
+		}
+	}
+
+	private void fetchSegments() throws IOException {
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < starts.length; i++) {
+			if (positions.get(i) > ends[i]) {
+				continue;
+			}
+			final int segment = i;
+			results.add(DOWNLOADER.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					return fetchSegment(segment);
+				}
+			}));
+		}
+
+		int failed = 0;
+		for (Future<Boolean> result : results) {
+			try {
+				if (!result.get()) {
+					failed++;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failed++;
+			} catch (ExecutionException e) {
+				failed++;
+			}
+		}
+
+		if (failed > 0 && !changed) {
+			saveState();
+			checkAborted();
+			throw new IOException(failed + " of " + starts.length + " segments failed, run the download again to resume it");
+		}
+	}
+
+	/**
+	 * Fetch the rest of a segment, retrying from where it stopped.
+	 */
+	private boolean fetchSegment(int i) {
+		int attempts = 0;
+		while (positions.get(i) <= ends[i] && !changed) {
+			try {
+				fetchRange(i);
+			} catch (IOException e) {
+				if (changed || isAborted() || ++attempts > maxRetries) {
+					if (HTTPReader.DEBUG) {
+						System.err.println("Segment " + i + " failed: " + e.getMessage());
+					}
+					return false;
+				}
+				try {
+					Thread.sleep(500L * attempts);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return !changed;
+	}
+
+	private void fetchRange(int i) throws IOException {
+		long position = positions.get(i);
+		HTTPRequest range = req.clone();
+		range.addHeader("Range", "bytes=" + position + "-" + ends[i]);
+		if (validator != null) {
+			// if the resource changed we get all of it rather than a range of the new one
+			range.addHeader("If-Range", validator);
+		}
+
+		HttpURLConnection conn = open(range);
+		Future<?> watchdog = watch(range, conn);
+		try {
+			int status = conn.getResponseCode();
+			if (status != HttpURLConnection.HTTP_PARTIAL) {
+				if (status == HttpURLConnection.HTTP_OK) {
+					changed = true;
+				}
+				throw new IOException("Range " + position + "-" + ends[i] + " not served: " + status);
+			}
+
+			InputStream in = new AbortableInputStream(conn.getInputStream(), range);
+			byte[] buf = new byte[BUFFER_SIZE];
+			int n;
+			while (position <= ends[i] && (n = in.read(buf, 0, (int) Math.min(buf.length, ends[i] - position + 1))) != -1) {
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+				long p = position;
+				while (bb.hasRemaining()) {
+					// positional writes, the segments share the channel
+					p += channel.write(bb, p);
+				}
+				position += n;
+				positions.set(i, position);
+				downloaded.addAndGet(n);
+				if (unsaved.addAndGet(n) >= SAVE_INTERVAL) {
+					saveState();
+				}
+			}
+			in.close();
+
+			if (position <= ends[i]) {
+				throw new IOException("Range " + position + "-" + ends[i] + " ended early");
+			}
+		} finally {
+			close(range, conn, watchdog);
+		}
+	}
+
+	/**
+	 * Download the resource over a single connection.
+	 */
+	private void fetchSingle() throws IOException {
+		IOException failure = null;
+		for (int attempt = 0; attempt <= maxRetries; attempt++) {
+			HTTPRequest whole = req.clone();
+			HttpURLConnection conn = open(whole);
+			Future<?> watchdog = watch(whole, conn);
+			OutputStream out = null;
+			try {
+				int status = conn.getResponseCode();
+				if (status != HttpURLConnection.HTTP_OK) {
+					throw new IOException("Download of " + rdr.getAbsoluteURI(req) + " failed: " + status);
+				}
+
+				InputStream in = new AbortableInputStream(conn.getInputStream(), whole);
+				out = new FileOutputStream(file);
+				byte[] buf = new byte[BUFFER_SIZE];
+				long total = 0;
+				int n;
+				while ((n = in.read(buf)) != -1) {
+					out.write(buf, 0, n);
+					total += n;
+					downloaded.addAndGet(n);
+				}
+				in.close();
+				length = total;
+				return;
+			} catch (IOException e) {
+				failure = e;
+				downloaded.set(0);
+			} finally {
+				if (out != null) {
+					out.close();
+				}
+				close(whole, conn, watchdog);
+			}
+			checkAborted();
+		}
+		throw failure;
+	}
+
+	/**
+	 * Open the connection of a request of the download. The request runs within the deadline of the download, and is
+	 * cancelled along with it; {@link #close(HTTPRequest, HttpURLConnection, Future)} it once done.
+	 */
+	private HttpURLConnection open(HTTPRequest r) throws IOException {
+		checkAborted();
+		r.setTimeoutsFrom(req);
+		req.addDependent(r);
+
+		HttpURLConnection conn;
+		try {
+			conn = rdr.getHttpURLConnection(r);
+		} catch (IOException e) {
+			req.removeDependent(r);
+			throw e;
+		}
+		// a download is not a page, let the connection follow its redirects
+		conn.setInstanceFollowRedirects(true);
+		conn.setDoOutput(false);
+		r.setConnection(conn);
+		if (req.isCancelled()) {
+			// cancelled before the request had a connection to abort
+			close(r, conn, null);
+			checkAborted();
+		}
+		return conn;
+	}
+
+	/**
+	 * Close the connection of a request once the deadline of the download is exceeded: a server trickling its response
+	 * resets the read timeout with every byte.
+	 */
+	private Future<?> watch(HTTPRequest r, HttpURLConnection conn) {
+		return r.getExpiresAt() > 0 ? HTTPReader.abortAt(r, conn, r.getExpiresAt(), true) : null;
+	}
+
+	private void close(HTTPRequest r, HttpURLConnection conn, Future<?> watchdog) {
+		if (watchdog != null) {
+			watchdog.cancel(false);
+		}
+		r.setConnection(null);
+		req.removeDependent(r);
+		if (r.isTimedOut()) {
+			req.setTimedOut(true);
+		}
+		conn.disconnect();
+	}
+
+	private boolean isAborted() {
+		if (req.getExpiresAt() > 0 && System.currentTimeMillis() >= req.getExpiresAt()) {
+			req.setTimedOut(true);
+		}
+		return req.isCancelled() || req.isTimedOut();
+	}
+
+	/**
+	 * Fail once the download was cancelled or exceeded its deadline.
+	 */
+	private void checkAborted() throws IOException {
+		if (!isAborted()) {
+			return;
+		}
+		throw new IOException((req.isCancelled() ? "Download cancelled: " : "Deadline exceeded: ")
+				+ rdr.getAbsoluteURI(req));
+	}
+
+	private synchronized void saveState() {
+		unsaved.set(0);
+		Properties state = new Properties();
+		state.setProperty("length", Long.toString(length));
+		if (validator != null) {
+			state.setProperty("validator", validator);
+		}
+		state.setProperty("segments", Integer.toString(starts.length));
+		for (int i = 0; i < starts.length; i++) {
+			state.setProperty("segment." + i, starts[i] + "-" + ends[i] + "@" + positions.get(i));
+		}
+
+		try {
+			OutputStream out = new FileOutputStream(stateFile);
+			try {
+				state.store(out, "HTTPConn download of " + rdr.getAbsoluteURI(req));
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// the download goes on, only resuming it would start over
+			e.printStackTrace();
+		}
+	}
+
+	private boolean loadState() throws IOException {
+		if (!stateFile.exists() || file.length() != length) {
+			return false;
+		}
+
+		Properties state = new Properties();
+		InputStream in = new FileInputStream(stateFile);
+		try {
+			state.load(in);
+		} finally {
+			in.close();
+		}
+
+		String saved = state.getProperty("validator");
+		if (parseLong(state.getProperty("length")) != length || (saved == null ? validator != null : !saved.equals(validator))) {
+			return false;
+		}
+
+		try {
+			int n = Integer.parseInt(state.getProperty("segments"));
+			starts = new long[n];
+			ends = new long[n];
+			positions = new AtomicLongArray(n);
+			for (int i = 0; i < n; i++) {
+				String segment = state.getProperty("segment." + i);
+				int dash = segment.indexOf('-');
+				int at = segment.indexOf('@');
+				starts[i] = Long.parseLong(segment.substring(0, dash));
+				ends[i] = Long.parseLong(segment.substring(dash + 1, at));
+				positions.set(i, Long.parseLong(segment.substring(at + 1)));
+			}
+		} catch (RuntimeException e) {
+			// a damaged state file, start over
+			return false;
+		}
+		return true;
+	}
+
+	private static long parseLong(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The length of the resource.
+	 * 
+	 * @return the length in bytes, or -1 if it is not known
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * The number of bytes downloaded by this run, not counting the ranges that were already downloaded.
+	 * 
+	 * @return the number of bytes
+	 */
+	public long getDownloaded() {
+		return downloaded.get();
+	}
+
+	/**
+	 * Whether or not the resource was downloaded in ranges, rather than over a single connection.
+	 * 
+	 * @return true if ranges were used
+	 */
+	public boolean isSegmented() {
+		return segmented;
+	}
+
+	/**
+	 * Whether or not this run resumed an interrupted download.
+	 * 
+	 * @return true if the download was resumed
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "SegmentedDownload [file=" + file + ", length=" + length + ", downloaded=" + downloaded + ", segmented="
+				+ segmented + ", resumed=" + resumed + "]";
+	}
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+
+/**
+ * SystemHostResolver class.
+ * 
+ * Resolves host names with {@link InetAddress#getAllByName(String)}. Java does not expose the TTL of DNS records, so
+ * the results are given the time to live of the JVM's own cache (the <code>networkaddress.cache.ttl</code> security
+ * property, 30 seconds by default). A background refresh of the {@link DNSCache} that runs before the JVM's entry has
+ * expired is answered from that entry, so addresses can be kept for up to twice the time to live.
+ * 
+ * @author cklab
+ * 
+ */
+public class SystemHostResolver implements HostResolver {
+
+	private static final long	DEFAULT_TTL	= 30 * 1000;
+
+	private long				ttl;
+
+	/**
+	 * Create a SystemHostResolver using the JVM's cache time to live.
+	 */
+	public SystemHostResolver() {
+		this(getJVMCacheTTL());
+	}
+
+	/**
+	 * Create a SystemHostResolver with the given time to live.
+	 * 
+	 * @param ttl
+	 *            how long results may be cached, in milliseconds
+	 */
+	public SystemHostResolver(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cklab.httpconn.reader.HostResolver#resolve(java.lang.String)
+	 */
+	@Override
+	public ResolvedHost resolve(String host) throws UnknownHostException {
+		return new ResolvedHost(host, InetAddress.getAllByName(host), ttl);
+	}
+
+	/**
+	 * The time to live of the JVM's positive lookup cache.
+	 */
+	private static long getJVMCacheTTL() {
+		try {
+			String value = Security.getProperty("networkaddress.cache.ttl");
+			if (value != null) {
+				long seconds = Long.parseLong(value.trim());
+				if (seconds > 0) {
+					return seconds * 1000;
+				}
+			}
+		} catch (Exception e) {
+			// not readable or not a number: use the default
+		}
+		return DEFAULT_TTL;
+	}
+}
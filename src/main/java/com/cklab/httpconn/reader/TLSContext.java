@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * TLSContext class.
+ * 
+ * An {@link SSLContext} shared by the HTTPS connections of one or more {@link HTTPReader}s, see
+ * {@link HTTPReader#setTLSContext(TLSContext)}. Sharing the context shares its client session cache, so connections
+ * to a host that has been visited before resume the TLS session (TLS 1.2 session IDs, TLS 1.3 session tickets)
+ * instead of paying for a full handshake.
+ * 
+ * The handshakes made through this context are counted as full or resumed.
+ * 
+ * @author cklab
+ * 
+ */
+public class TLSContext {
+
+	private static final String		TLS_1_3	= "TLSv1.3";
+
+	private static TLSContext		defaultContext;
+
+	private final SSLContext		sslContext;
+	private final SSLSocketFactory	socketFactory;
+
+	private volatile String[]		enabledProtocols;
+	private volatile String[]		enabledCipherSuites;
+
+	private final AtomicLong		fullHandshakes		= new AtomicLong();
+	private final AtomicLong		resumedHandshakes	= new AtomicLong();
+
+	// the IDs of the sessions that have been negotiated, to tell resumed handshakes apart
+	private final Map<String, Boolean>	knownSessions;
+
+	/**
+	 * Create a TLSContext with a new, default initialized SSLContext. TLS 1.3 is enabled if the JVM supports it.
+	 * 
+	 * @throws GeneralSecurityException
+	 *             if no TLS implementation is available
+	 */
+	public TLSContext() throws GeneralSecurityException {
+		this(newDefaultSSLContext());
+
+		List<String> protocols = new ArrayList<String>(Arrays.asList(socketFactoryDefaults().getEnabledProtocols()));
+		if (!protocols.contains(TLS_1_3) && isSupportedProtocol(TLS_1_3)) {
+			protocols.add(0, TLS_1_3);
+			enabledProtocols = protocols.toArray(new String[protocols.size()]);
+		}
+	}
+
+	/**
+	 * Create a TLSContext around the given SSLContext, e.g. one initialized with custom key or trust managers.
+	 * 
+	 * @param sslContext
+	 *            the initialized SSLContext
+	 */
+	public TLSContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+		// a single factory instance: HttpsURLConnection only reuses kept-alive connections created by the same factory
+		this.socketFactory = new ConfiguringSocketFactory(sslContext.getSocketFactory());
+		this.knownSessions = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+			private static final long	serialVersionUID	= 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > Math.max(1024, getSessionCacheSize());
+			}
+		});
+	}
+
+	/**
+	 * Get the TLSContext shared by the whole JVM.
+	 * 
+	 * @return the shared TLSContext
+	 * @throws GeneralSecurityException
+	 *             if no TLS implementation is available
+	 */
+	public static synchronized TLSContext getDefault() throws GeneralSecurityException {
+		if (defaultContext == null) {
+			defaultContext = new TLSContext();
+		}
+		return defaultContext;
+	}
+
+	private static SSLContext newDefaultSSLContext() throws GeneralSecurityException {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, null, null);
+		return context;
+	}
+
+	/**
+	 * Get the SSLContext.
+	 * 
+	 * @return the SSLContext
+	 */
+	public SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Get the socket factory HTTPS connections are created with. It applies the enabled protocols and cipher suites
+	 * and counts handshakes.
+	 * 
+	 * @return the socket factory
+	 */
+	public SSLSocketFactory getSocketFactory() {
+		return socketFactory;
+	}
+
+	/**
+	 * Set the number of sessions kept in the client session cache.
+	 * 
+	 * @param size
+	 *            the number of sessions, 0 for no limit
+	 */
+	public void setSessionCacheSize(int size) {
+		sslContext.getClientSessionContext().setSessionCacheSize(size);
+	}
+
+	/**
+	 * Get the number of sessions kept in the client session cache.
+	 * 
+	 * @return the number of sessions, 0 for no limit
+	 */
+	public int getSessionCacheSize() {
+		SSLSessionContext sessions = sslContext.getClientSessionContext();
+		return sessions == null ? 0 : sessions.getSessionCacheSize();
+	}
+
+	/**
+	 * Set how long sessions can be resumed.
+	 * 
+	 * @param seconds
+	 *            the timeout in seconds, 0 for no limit
+	 */
+	public void setSessionTimeout(int seconds) {
+		sslContext.getClientSessionContext().setSessionTimeout(seconds);
+	}
+
+	/**
+	 * Get how long sessions can be resumed.
+	 * 
+	 * @return the timeout in seconds, 0 for no limit
+	 */
+	public int getSessionTimeout() {
+		return sslContext.getClientSessionContext().getSessionTimeout();
+	}
+
+	/**
+	 * Set the protocols enabled on new connections, e.g. <code>{"TLSv1.3", "TLSv1.2"}</code>. Protocols that the JVM
+	 * does not support are ignored.
+	 * 
+	 * @param protocols
+	 *            the protocols, or null for the defaults
+	 */
+	public void setEnabledProtocols(String[] protocols) {
+		this.enabledProtocols = protocols == null ? null : protocols.clone();
+	}
+
+	/**
+	 * Set the cipher suites enabled on new connections. Cipher suites that the JVM does not support are ignored.
+	 * 
+	 * @param cipherSuites
+	 *            the cipher suites, or null for the defaults
+	 */
+	public void setEnabledCipherSuites(String[] cipherSuites) {
+		this.enabledCipherSuites = cipherSuites == null ? null : cipherSuites.clone();
+	}
+
+	/**
+	 * The number of full handshakes.
+	 * 
+	 * @return the number of full handshakes
+	 */
+	public long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	/**
+	 * The number of abbreviated handshakes that resumed a cached session.
+	 * 
+	 * @return the number of resumed handshakes
+	 */
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TLSContext [protocol=" + sslContext.getProtocol() + ", fullHandshakes=" + fullHandshakes + ", resumedHandshakes="
+				+ resumedHandshakes + "]";
+	}
+
+	private SSLSocket socketFactoryDefaults() throws GeneralSecurityException {
+		try {
+			SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket();
+			socket.close();
+			return socket;
+		} catch (IOException e) {
+			throw new GeneralSecurityException(e.toString());
+		}
+	}
+
+	private boolean isSupportedProtocol(String protocol) throws GeneralSecurityException {
+		return Arrays.asList(socketFactoryDefaults().getSupportedProtocols()).contains(protocol);
+	}
+
+	/**
+	 * Apply the settings of this context to a new socket and start counting its handshake.
+	 */
+	private Socket configure(Socket socket) {
+		if (!(socket instanceof SSLSocket)) {
+			return socket;
+		}
+
+		SSLSocket sslSocket = (SSLSocket) socket;
+		String[] protocols = enabledProtocols;
+		if (protocols != null) {
+			sslSocket.setEnabledProtocols(supported(protocols, sslSocket.getSupportedProtocols()));
+		}
+		String[] cipherSuites = enabledCipherSuites;
+		if (cipherSuites != null) {
+			sslSocket.setEnabledCipherSuites(supported(cipherSuites, sslSocket.getSupportedCipherSuites()));
+		}
+
+		final long createdAt = System.currentTimeMillis();
+		sslSocket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+			public void handshakeCompleted(HandshakeCompletedEvent event) {
+				countHandshake(event.getSession(), createdAt);
+			}
+		});
+		return sslSocket;
+	}
+
+	/**
+	 * A session is resumed if it was negotiated before this socket was created, or carries an ID seen before.
+	 */
+	private void countHandshake(SSLSession session, long socketCreatedAt) {
+		String id = toHex(session.getId());
+		boolean seen = id.length() > 0 && knownSessions.put(id, Boolean.TRUE) != null;
+
+		if (seen || session.getCreationTime() < socketCreatedAt) {
+			resumedHandshakes.incrementAndGet();
+		} else {
+			fullHandshakes.incrementAndGet();
+		}
+	}
+
+	private static String[] supported(String[] wanted, String[] supported) {
+		List<String> supportedList = Arrays.asList(supported);
+		List<String> result = new ArrayList<String>();
+		for (String s : wanted) {
+			if (supportedList.contains(s)) {
+				result.add(s);
+			}
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Delegates to the SSLContext's factory and configures every socket it creates.
+	 */
+	private class ConfiguringSocketFactory extends SSLSocketFactory {
+
+		private final SSLSocketFactory	delegate;
+
+		ConfiguringSocketFactory(SSLSocketFactory delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return delegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return configure(delegate.createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return configure(delegate.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return configure(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return configure(delegate.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return configure(delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return configure(delegate.createSocket(address, port, localAddress, localPort));
+		}
+	}
+}
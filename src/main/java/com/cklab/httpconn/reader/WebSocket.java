@@ -0,0 +1,861 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.reader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.cklab.httpconn.request.HTTPRequest;
+import com.cklab.httpconn.util.HeaderMap;
+import com.cklab.httpconn.util.WebSocketMessage;
+
+/**
+ * WebSocket class.
+ * 
+ * A WebSocket (RFC 6455) opened with {@link HTTPReader#openWebSocket(HTTPRequest, boolean)}. The upgrade handshake is
+ * sent like the requests of the reader: with its cookies, User-Agent, proxy, TLS context and hostname verifier, plus
+ * the headers of the request. Cookies set by the handshake response are kept by the reader.
+ * 
+ * Messages are read when {@link #receive()} is called, and not before, so a slow reader holds the server back through
+ * TCP instead of piling messages up in memory; pings are answered while reading. {@link #send(String)} returns once the
+ * message is written, and blocks while the server does not read. Messages are sent in one frame; received ones are
+ * reassembled from their frames without joining them, see {@link WebSocketMessage}.
+ * 
+ * With permessage-deflate (RFC 7692) negotiated, every message sent is compressed on its own, the server may keep its
+ * compression context between messages.
+ * 
+ * One thread may receive while others send.
+ * 
+ * @author cklab
+ * 
+ */
+public class WebSocket {
+
+	/**
+	 * The status code of a normal closure.
+	 */
+	public static final int			NORMAL_CLOSURE		= 1000;
+
+	private static final int		PROTOCOL_ERROR		= 1002;
+	private static final int		INVALID_DATA		= 1007;
+	private static final int		MESSAGE_TOO_BIG		= 1009;
+	// the status code given when the server closed without one
+	private static final int		NO_STATUS			= 1005;
+	private static final int		ABNORMAL_CLOSURE	= 1006;
+
+	private static final int		OP_CONTINUATION		= 0x0;
+	private static final int		OP_TEXT				= 0x1;
+	private static final int		OP_BINARY			= 0x2;
+	private static final int		OP_CLOSE			= 0x8;
+	private static final int		OP_PING				= 0x9;
+	private static final int		OP_PONG				= 0xA;
+
+	private static final String		ACCEPT_GUID			= "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final byte[]		DEFLATE_TAIL		= { 0, 0, (byte) 0xFF, (byte) 0xFF };
+	private static final int		CHUNK_SIZE			= 8 * 1024;
+	private static final char[]		BASE64				= "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private static final Random		RANDOM				= new SecureRandom();
+
+	private final Socket			socket;
+	private final InputStream		in;
+	private final OutputStream		out;
+	private final HTTPRequest		handshake;
+	private final String			uri;
+
+	private final boolean			deflate;
+	private final boolean			serverNoContextTakeover;
+	private Deflater				deflater;
+	private Inflater				inflater;
+
+	private final Object			readLock			= new Object();
+	private final Object			writeLock			= new Object();
+	private final byte[]			maskBuffer			= new byte[CHUNK_SIZE];
+
+	private int						maxMessageSize;
+	private volatile boolean		closeSent;
+	private volatile boolean		closeReceived;
+	private volatile int			closeCode;
+	private volatile String			closeReason;
+
+	/**
+	 * Open a WebSocket, see {@link HTTPReader#openWebSocket(HTTPRequest, boolean)}.
+	 */
+	WebSocket(HTTPReader rdr, HTTPRequest req, boolean offerDeflate) throws IOException {
+		this.handshake = req;
+		this.maxMessageSize = 16 * 1024 * 1024;
+		this.closeCode = -1;
+
+		this.uri = rdr.getAbsoluteURI(req);
+		URL url = new URL(uri);
+		String host = url.getHost();
+		boolean secure = req.isUsingSSL();
+		int port = url.getPort() != -1 ? url.getPort() : (secure ? 443 : 80);
+
+		Socket s = openSocket(rdr, host, port);
+		try {
+			if (secure) {
+				s = startTLS(rdr, s, host, port);
+			}
+			// the handshake gets the read timeout of the reader, messages are waited for as long as it takes
+			s.setSoTimeout(rdr.getReadTimeout());
+			s.setTcpNoDelay(true);
+			this.socket = s;
+			this.in = new BufferedInputStream(s.getInputStream(), CHUNK_SIZE);
+			this.out = new BufferedOutputStream(s.getOutputStream(), CHUNK_SIZE);
+
+			String key = newKey();
+			sendHandshake(rdr, url, host, port, secure, key, offerDeflate);
+			HeaderMap headers = readHandshake(rdr, key);
+
+			String extensions = headers.getFirst("Sec-WebSocket-Extensions");
+			boolean accepted = false;
+			boolean noContext = false;
+			if (extensions != null) {
+				for (String param : extensions.split(";")) {
+					param = param.trim();
+					if (param.equalsIgnoreCase("permessage-deflate")) {
+						accepted = true;
+					} else if (param.equalsIgnoreCase("server_no_context_takeover")) {
+						noContext = true;
+					}
+				}
+				if (!offerDeflate || !accepted || extensions.indexOf(',') >= 0) {
+					throw new ProtocolException("Extensions not offered: " + extensions);
+				}
+			}
+			this.deflate = accepted;
+			this.serverNoContextTakeover = noContext;
+			if (deflate) {
+				deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+				inflater = new Inflater(true);
+			}
+			s.setSoTimeout(0);
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	private static Socket openSocket(HTTPReader rdr, String host, int port) throws IOException {
+		Proxy proxy = rdr.getActiveProxy();
+		int timeout = rdr.getConnectTimeout();
+		if (proxy == null || proxy.type() == Proxy.Type.DIRECT) {
+			Socket s = new Socket();
+			s.connect(rdr.resolve(host, port), timeout);
+			return s;
+		}
+		if (proxy.type() == Proxy.Type.SOCKS) {
+			Socket s = new Socket(proxy);
+			s.connect(InetSocketAddress.createUnresolved(host, port), timeout);
+			return s;
+		}
+
+		// an HTTP proxy tunnels the connection
+		InetSocketAddress address = (InetSocketAddress) proxy.address();
+		Socket s = new Socket();
+		try {
+			s.connect(address, timeout);
+			s.setSoTimeout(rdr.getReadTimeout());
+			StringBuilder connect = new StringBuilder();
+			connect.append("CONNECT ").append(host).append(':').append(port).append(" HTTP/1.1\r\n");
+			connect.append("Host: ").append(host).append(':').append(port).append("\r\n");
+			PasswordAuthentication auth = Authenticator.requestPasswordAuthentication(address.getHostName(), address.getAddress(),
+					address.getPort(), "http", null, "Basic", null, Authenticator.RequestorType.PROXY);
+			if (auth != null) {
+				String credentials = auth.getUserName() + ":" + new String(auth.getPassword());
+				connect.append("Proxy-Authorization: Basic ").append(base64(credentials.getBytes("UTF-8"))).append("\r\n");
+			}
+			connect.append("\r\n");
+			OutputStream o = s.getOutputStream();
+			o.write(connect.toString().getBytes("ISO-8859-1"));
+			o.flush();
+
+			// unbuffered, the tunnel starts right after the blank line
+			InputStream i = s.getInputStream();
+			String status = readLine(i);
+			while (readLine(i).length() > 0) {
+				// the headers of the proxy do not matter
+			}
+			String[] parts = status.split(" ");
+			if (parts.length < 2 || !parts[1].equals("200")) {
+				throw new IOException("Unable to tunnel through proxy: " + status);
+			}
+			return s;
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	private static Socket startTLS(HTTPReader rdr, Socket s, String host, int port) throws IOException {
+		SSLSocketFactory factory = rdr.getTLSContext() != null ? rdr.getTLSContext().getSocketFactory()
+				: (SSLSocketFactory) SSLSocketFactory.getDefault();
+		SSLSocket ssl = (SSLSocket) factory.createSocket(s, host, port, true);
+		HostnameVerifier verifier = rdr.getHostnameVerifier();
+		if (verifier == null) {
+			try {
+				// check the certificate against the host while handshaking, as HttpsURLConnection does
+				SSLParameters params = ssl.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(params);
+			} catch (NoSuchMethodError e) {
+				// before Java 7, the default verifier rejects what it is asked about
+				verifier = HttpsURLConnection.getDefaultHostnameVerifier();
+			}
+		}
+		ssl.startHandshake();
+		if (verifier != null && !verifier.verify(host, ssl.getSession())) {
+			ssl.close();
+			throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+		}
+		return ssl;
+	}
+
+	private void sendHandshake(HTTPReader rdr, URL url, String host, int port, boolean secure, String key, boolean offerDeflate)
+			throws IOException {
+		StringBuilder request = new StringBuilder();
+		String file = url.getFile().length() == 0 ? "/" : url.getFile();
+		request.append("GET ").append(file).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(host);
+		if (port != (secure ? 443 : 80)) {
+			request.append(':').append(port);
+		}
+		request.append("\r\n");
+
+		HeaderMap headers = new HeaderMap();
+		if (rdr.isAddingDefaultHeaders()) {
+			headers.set("User-Agent", HTTPReader.getUserAgent());
+		}
+		String cookies = rdr.isHandlingCookies() ? rdr.getCookies() : handshake.getCookies();
+		if (cookies != null && cookies.length() > 0) {
+			headers.set("Cookie", cookies);
+		}
+		if (handshake.getReferrer() != null) {
+			headers.set("Referer", handshake.getReferrer());
+		}
+		if (offerDeflate) {
+			// Java 6 has no sync flush: every message is compressed on its own (RFC 7692, section 7.2.3.4)
+			headers.set("Sec-WebSocket-Extensions", "permessage-deflate; client_no_context_takeover");
+		}
+		HeaderMap custom = handshake.getHeadersToSend();
+		for (int i = 0; i < custom.count(); i++) {
+			if (custom.isFirst(i)) {
+				headers.set(custom.getName(i), custom.getValue(i));
+			} else {
+				headers.add(custom.getName(i), custom.getValue(i));
+			}
+		}
+		// not up to the caller
+		headers.set("Upgrade", "websocket");
+		headers.set("Connection", "Upgrade");
+		headers.set("Sec-WebSocket-Key", key);
+		headers.set("Sec-WebSocket-Version", "13");
+
+		for (int i = 0; i < headers.count(); i++) {
+			request.append(headers.getName(i)).append(": ").append(headers.getValue(i)).append("\r\n");
+		}
+		request.append("\r\n");
+		out.write(request.toString().getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	private HeaderMap readHandshake(HTTPReader rdr, String key) throws IOException {
+		String status = readLine(in);
+		String[] parts = status.split(" ", 3);
+		HeaderMap headers = new HeaderMap();
+		String line;
+		while ((line = readLine(in)).length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+			}
+		}
+
+		int code = parts.length >= 2 ? parseStatus(parts[1]) : -1;
+		handshake.setStatusCode(code);
+		handshake.setHeaders(headers);
+		if (rdr.isHandlingCookies()) {
+			rdr.readCookies(handshake);
+		}
+
+		if (code != 101) {
+			throw new IOException("Server returned HTTP response code: " + code + " for WebSocket upgrade of " + rdr.getAbsoluteURI(handshake));
+		}
+		String upgrade = headers.getFirst("Upgrade");
+		String connection = headers.getFirst("Connection");
+		if (upgrade == null || !upgrade.equalsIgnoreCase("websocket") || connection == null
+				|| connection.toLowerCase().indexOf("upgrade") < 0) {
+			throw new ProtocolException("Not upgraded to a WebSocket: Upgrade=" + upgrade + ", Connection=" + connection);
+		}
+		String accept = headers.getFirst("Sec-WebSocket-Accept");
+		if (accept == null || !accept.equals(acceptFor(key))) {
+			throw new ProtocolException("Wrong Sec-WebSocket-Accept: " + accept);
+		}
+		return headers;
+	}
+
+	private static int parseStatus(String code) {
+		try {
+			return Integer.parseInt(code);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String readLine(InputStream i) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = i.read()) != '\n') {
+			if (c == -1) {
+				throw new EOFException("Connection closed during the handshake");
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.toString();
+	}
+
+	private static String newKey() {
+		byte[] nonce = new byte[16];
+		RANDOM.nextBytes(nonce);
+		return base64(nonce);
+	}
+
+	private static String acceptFor(String key) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return base64(sha1.digest((key + ACCEPT_GUID).getBytes("ISO-8859-1")));
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has SHA-1
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			// every JVM has ISO-8859-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String base64(byte[] data) {
+		StringBuilder encoded = new StringBuilder((data.length + 2) / 3 * 4);
+		for (int i = 0; i < data.length; i += 3) {
+			int b = (data[i] & 0xFF) << 16;
+			if (i + 1 < data.length) {
+				b |= (data[i + 1] & 0xFF) << 8;
+			}
+			if (i + 2 < data.length) {
+				b |= data[i + 2] & 0xFF;
+			}
+			encoded.append(BASE64[(b >> 18) & 0x3F]).append(BASE64[(b >> 12) & 0x3F]);
+			encoded.append(i + 1 < data.length ? BASE64[(b >> 6) & 0x3F] : '=');
+			encoded.append(i + 2 < data.length ? BASE64[b & 0x3F] : '=');
+		}
+		return encoded.toString();
+	}
+
+	/**
+	 * Send a text message.
+	 * 
+	 * @param text
+	 *            the message
+	 * @throws IOException
+	 *             if the message could not be sent, or the WebSocket is closing
+	 */
+	public void send(String text) throws IOException {
+		byte[] payload = text.getBytes("UTF-8");
+		sendMessage(OP_TEXT, payload, 0, payload.length);
+	}
+
+	/**
+	 * Send a binary message.
+	 * 
+	 * @param data
+	 *            the message
+	 * @throws IOException
+	 *             if the message could not be sent, or the WebSocket is closing
+	 */
+	public void send(byte[] data) throws IOException {
+		sendMessage(OP_BINARY, data, 0, data.length);
+	}
+
+	/**
+	 * Send a binary message.
+	 * 
+	 * @param data
+	 *            the message, from its position to its limit; the position is not moved
+	 * @throws IOException
+	 *             if the message could not be sent, or the WebSocket is closing
+	 */
+	public void send(ByteBuffer data) throws IOException {
+		if (data.hasArray()) {
+			sendMessage(OP_BINARY, data.array(), data.arrayOffset() + data.position(), data.remaining());
+		} else {
+			byte[] copy = new byte[data.remaining()];
+			data.duplicate().get(copy);
+			sendMessage(OP_BINARY, copy, 0, copy.length);
+		}
+	}
+
+	/**
+	 * Send a ping. Its pong is consumed by {@link #receive()}.
+	 * 
+	 * @param payload
+	 *            at most 125 bytes echoed by the server
+	 * @throws IOException
+	 */
+	public void ping(byte[] payload) throws IOException {
+		if (payload.length > 125) {
+			throw new IllegalArgumentException("A ping carries at most 125 bytes");
+		}
+		writeFrame(OP_PING, false, payload, 0, payload.length);
+	}
+
+	private void sendMessage(int opcode, byte[] payload, int offset, int length) throws IOException {
+		if (closeSent || closeReceived) {
+			throw new IOException("The WebSocket is closing");
+		}
+		if (deflate) {
+			byte[] compressed;
+			synchronized (writeLock) {
+				compressed = compress(payload, offset, length);
+			}
+			writeFrame(opcode, true, compressed, 0, compressed.length);
+		} else {
+			writeFrame(opcode, false, payload, offset, length);
+		}
+	}
+
+	private byte[] compress(byte[] payload, int offset, int length) {
+		deflater.reset();
+		deflater.setInput(payload, offset, length);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+		byte[] chunk = maskBuffer;
+		while (!deflater.finished()) {
+			int n = deflater.deflate(chunk);
+			compressed.write(chunk, 0, n);
+		}
+		return compressed.toByteArray();
+	}
+
+	private void writeFrame(int opcode, boolean compressed, byte[] payload, int offset, int length) throws IOException {
+		synchronized (writeLock) {
+			byte[] mask = new byte[4];
+			RANDOM.nextBytes(mask);
+
+			out.write(0x80 | (compressed ? 0x40 : 0) | opcode);
+			if (length <= 125) {
+				out.write(0x80 | length);
+			} else if (length <= 0xFFFF) {
+				out.write(0x80 | 126);
+				out.write(length >>> 8);
+				out.write(length);
+			} else {
+				out.write(0x80 | 127);
+				for (int shift = 56; shift >= 0; shift -= 8) {
+					out.write((int) ((long) length >>> shift));
+				}
+			}
+			out.write(mask);
+
+			// mask a chunk at a time rather than copying the whole payload
+			for (int done = 0; done < length;) {
+				int n = Math.min(maskBuffer.length, length - done);
+				for (int i = 0; i < n; i++) {
+					maskBuffer[i] = (byte) (payload[offset + done + i] ^ mask[(done + i) & 3]);
+				}
+				out.write(maskBuffer, 0, n);
+				done += n;
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Read the next message, waiting for it.
+	 * 
+	 * @return the message, or null once the WebSocket is closed
+	 * @throws IOException
+	 *             if the connection failed, or the server broke the protocol; the WebSocket is then closed
+	 */
+	public WebSocketMessage receive() throws IOException {
+		synchronized (readLock) {
+			List<ByteBuffer> fragments = null;
+			boolean text = false;
+			boolean compressed = false;
+			long size = 0;
+			while (true) {
+				if (closeReceived) {
+					return null;
+				}
+				int b0 = in.read();
+				if (b0 == -1) {
+					closeReceived = true;
+					closeCode = ABNORMAL_CLOSURE;
+					closeSocket();
+					return null;
+				}
+				int b1 = readByte();
+				boolean fin = (b0 & 0x80) != 0;
+				boolean rsv1 = (b0 & 0x40) != 0;
+				int opcode = b0 & 0x0F;
+				if ((b0 & 0x30) != 0 || (b1 & 0x80) != 0) {
+					throw fail(PROTOCOL_ERROR, "Reserved bits or mask set by the server");
+				}
+				long length = b1 & 0x7F;
+				if (length == 126) {
+					length = (readByte() << 8) | readByte();
+				} else if (length == 127) {
+					length = 0;
+					for (int i = 0; i < 8; i++) {
+						length = (length << 8) | readByte();
+					}
+				}
+
+				if (opcode >= OP_CLOSE) {
+					if (!fin || length > 125 || rsv1) {
+						throw fail(PROTOCOL_ERROR, "Invalid control frame");
+					}
+					byte[] payload = readPayload((int) length);
+					if (opcode == OP_PING) {
+						writeFrame(OP_PONG, false, payload, 0, payload.length);
+					} else if (opcode == OP_CLOSE) {
+						onClose(payload);
+						return null;
+					} else if (opcode != OP_PONG) {
+						throw fail(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+					}
+					continue;
+				}
+
+				if (opcode == OP_CONTINUATION) {
+					if (fragments == null || rsv1) {
+						throw fail(PROTOCOL_ERROR, "Unexpected continuation frame");
+					}
+				} else if (opcode == OP_TEXT || opcode == OP_BINARY) {
+					if (fragments != null || (rsv1 && !deflate)) {
+						throw fail(PROTOCOL_ERROR, "Unexpected data frame");
+					}
+					fragments = new ArrayList<ByteBuffer>();
+					text = opcode == OP_TEXT;
+					compressed = rsv1;
+				} else {
+					throw fail(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+				}
+
+				size += length;
+				if (length < 0 || size > maxMessageSize) {
+					throw fail(MESSAGE_TOO_BIG, "Message larger than " + maxMessageSize + " bytes");
+				}
+				fragments.add(ByteBuffer.wrap(readPayload((int) length)));
+
+				if (fin) {
+					return new WebSocketMessage(text, compressed ? inflate(fragments) : fragments);
+				}
+			}
+		}
+	}
+
+	private List<ByteBuffer> inflate(List<ByteBuffer> fragments) throws IOException {
+		if (serverNoContextTakeover || inflater.finished()) {
+			inflater.reset();
+		}
+		List<ByteBuffer> inflated = new ArrayList<ByteBuffer>();
+		byte[] chunk = new byte[CHUNK_SIZE];
+		int position = 0;
+		long size = 0;
+		try {
+			for (int i = 0; i <= fragments.size() && !inflater.finished(); i++) {
+				if (i < fragments.size()) {
+					ByteBuffer fragment = fragments.get(i);
+					inflater.setInput(fragment.array(), fragment.arrayOffset() + fragment.position(), fragment.remaining());
+				} else {
+					inflater.setInput(DEFLATE_TAIL);
+				}
+				while (true) {
+					int n = inflater.inflate(chunk, position, chunk.length - position);
+					position += n;
+					size += n;
+					if (size > maxMessageSize) {
+						throw fail(MESSAGE_TOO_BIG, "Message larger than " + maxMessageSize + " bytes");
+					}
+					if (position == chunk.length) {
+						inflated.add(ByteBuffer.wrap(chunk));
+						chunk = new byte[CHUNK_SIZE];
+						position = 0;
+					} else if (n == 0) {
+						break;
+					}
+				}
+				if (inflater.needsDictionary()) {
+					throw fail(INVALID_DATA, "Compressed message needs a dictionary");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw fail(INVALID_DATA, "Invalid compressed message: " + e.getMessage());
+		}
+		if (position > 0) {
+			inflated.add(ByteBuffer.wrap(chunk, 0, position));
+		}
+		return inflated;
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b == -1) {
+			throw new EOFException("Connection closed in the middle of a frame");
+		}
+		return b;
+	}
+
+	private byte[] readPayload(int length) throws IOException {
+		byte[] payload = new byte[length];
+		int done = 0;
+		while (done < length) {
+			int n = in.read(payload, done, length - done);
+			if (n == -1) {
+				throw new EOFException("Connection closed in the middle of a frame");
+			}
+			done += n;
+		}
+		return payload;
+	}
+
+	private void onClose(byte[] payload) throws IOException {
+		int code = NO_STATUS;
+		String reason = "";
+		if (payload.length >= 2) {
+			code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+			reason = new String(payload, 2, payload.length - 2, "UTF-8");
+		}
+		closeCode = code;
+		closeReason = reason;
+		closeReceived = true;
+		try {
+			if (!closeSent) {
+				// echo the status code, the server closes the connection then
+				sendClose(code == NO_STATUS ? NORMAL_CLOSURE : code, "");
+			}
+		} finally {
+			closeSocket();
+		}
+	}
+
+	private IOException fail(int code, String message) {
+		try {
+			if (!closeSent) {
+				sendClose(code, "");
+			}
+		} catch (IOException e) {
+			// closing anyway
+		}
+		closeReceived = true;
+		closeCode = code;
+		closeReason = message;
+		closeSocket();
+		return new ProtocolException(message);
+	}
+
+	private void sendClose(int code, String reason) throws IOException {
+		byte[] text = reason.getBytes("UTF-8");
+		byte[] payload = new byte[2 + Math.min(text.length, 123)];
+		payload[0] = (byte) (code >>> 8);
+		payload[1] = (byte) code;
+		System.arraycopy(text, 0, payload, 2, payload.length - 2);
+		synchronized (writeLock) {
+			if (closeSent) {
+				return;
+			}
+			closeSent = true;
+			writeFrame(OP_CLOSE, false, payload, 0, payload.length);
+		}
+	}
+
+	/**
+	 * Close the WebSocket normally.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		close(NORMAL_CLOSURE, "");
+	}
+
+	/**
+	 * Close the WebSocket: send a close frame, and wait up to the given time for the server to answer it. A thread in
+	 * {@link #receive()} reads the answer; otherwise the messages still on their way are read and dropped.
+	 * 
+	 * @param code
+	 *            the status code, e.g. {@link #NORMAL_CLOSURE}
+	 * @param reason
+	 *            the reason, at most 123 bytes of it are sent
+	 * @throws IOException
+	 */
+	public void close(int code, String reason) throws IOException {
+		try {
+			sendClose(code, reason);
+		} catch (IOException e) {
+			closeSocket();
+			throw e;
+		}
+		if (closeReceived) {
+			closeSocket();
+			return;
+		}
+		// the server closes the connection once it has answered
+		socket.setSoTimeout(5 * 1000);
+		try {
+			while (receive() != null) {
+				// dropped, the WebSocket is closing
+			}
+		} catch (SocketTimeoutException e) {
+			closeSocket();
+		} catch (IOException e) {
+			closeSocket();
+		}
+	}
+
+	/**
+	 * Close the connection without the closing handshake.
+	 */
+	public void abort() {
+		closeReceived = true;
+		if (closeCode == -1) {
+			closeCode = ABNORMAL_CLOSURE;
+		}
+		closeSocket();
+	}
+
+	private void closeSocket() {
+		// nothing is read past this point, the inflater is about to go
+		closeReceived = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		if (deflater != null) {
+			synchronized (writeLock) {
+				deflater.end();
+			}
+		}
+		if (inflater != null) {
+			// a read in progress fails now that the socket is closed, and gives up the lock
+			synchronized (readLock) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Set the largest message {@link #receive()} accepts; a larger one closes the WebSocket.
+	 * 
+	 * @param maxMessageSize
+	 *            the size in bytes, after decompression; 16 MB by default
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Get the handshake request, which holds the headers of the server's answer.
+	 * 
+	 * @return the handshake
+	 */
+	public HTTPRequest getHandshake() {
+		return handshake;
+	}
+
+	/**
+	 * Whether or not permessage-deflate was negotiated.
+	 * 
+	 * @return true if messages are compressed, false otherwise.
+	 */
+	public boolean isDeflating() {
+		return deflate;
+	}
+
+	/**
+	 * Whether or not the WebSocket is open: no close frame was sent or received, and the connection did not fail.
+	 * 
+	 * @return true if the WebSocket is open, false otherwise.
+	 */
+	public boolean isOpen() {
+		return !closeSent && !closeReceived && !socket.isClosed();
+	}
+
+	/**
+	 * Get the status code the WebSocket was closed with.
+	 * 
+	 * @return the status code, or -1 while it is open
+	 */
+	public int getCloseCode() {
+		return closeCode;
+	}
+
+	/**
+	 * Get the reason the WebSocket was closed for.
+	 * 
+	 * @return the reason, or null while it is open
+	 */
+	public String getCloseReason() {
+		return closeReason;
+	}
+
+	@Override
+	public String toString() {
+		return "WebSocket [uri=" + uri + ", deflate=" + deflate + ", open=" + isOpen() + ", closeCode=" + closeCode + "]";
+	}
+}
@@ -21,10 +21,20 @@
  ******************************************************************************/
 package com.cklab.httpconn.request;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.CharBuffer;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
@@ -32,11 +42,21 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.cklab.httpconn.reader.HTTPReader;
+import com.cklab.httpconn.util.BodyDecoder;
+import com.cklab.httpconn.util.BodyPredicate;
+import com.cklab.httpconn.util.BoundedInputStream;
+import com.cklab.httpconn.util.CountingOutputStream;
+import com.cklab.httpconn.util.FilePart;
 import com.cklab.httpconn.util.FormData;
+import com.cklab.httpconn.util.HeaderMap;
 import com.cklab.httpconn.util.InputTag;
+import com.cklab.httpconn.util.JsonBody;
+import com.cklab.httpconn.util.JsonResponse;
+import com.cklab.httpconn.util.JsonStreamWriter;
+import com.cklab.httpconn.util.Lines;
+import com.cklab.httpconn.util.MultipartBody;
 import com.cklab.httpconn.util.PostFormat;
 import com.cklab.httpconn.util.Redirect;
-import com.eclipsesource.json.JsonObject;
 
 /**
  * HTTPRequest class.
@@ -49,25 +69,69 @@ import com.eclipsesource.json.JsonObject;
 
 public class HTTPRequest implements Cloneable {
 
-	private Map<String, List<String>>	headers;
+	// bodies without a charset in their header, byte order mark or meta tag
+	private static final Charset		DEFAULT_CHARSET	= Charset.forName("UTF-8");
+
+	private static final Pattern		INPUT_NAME		= Pattern.compile("<input.*?name=\"(.*?)\".*?>");
+	private static final Pattern		INPUT_VALUE		= Pattern.compile("<input.*?value=\"(.*?)\".*?>");
+	private static final Pattern		INPUT_TYPE		= Pattern.compile("<input.*?type=\"(.*?)\".*?>");
+
+	private HeaderMap					headers;
 	private ArrayList<InputTag>			inputs;
 
-	private Map<String, List<String>>	headersToSend;
+	private HeaderMap					headersToSend;
 	protected List<FormData>			postFields;
+	protected List<FilePart>			fileParts;
 	protected String					method;
 	protected String					page;
 	protected String					referrer;
 	protected String					cookies;
 
 	protected PostFormat				postFormat;
+	private String						multipartBoundary;
+	private JsonBody					jsonBody;
 
 	private StringBuilder				body;
+	private Charset						bodyCharset;
 	private int							statusCode;
 
 	private boolean						useSSL;
 
 	private Redirect					redirect;
 
+	private JsonResponse				jsonResponse;
+
+	private long						maxBodySize;
+	private boolean						expectContinue;
+	private int							priority;
+	private BodyPredicate				stopWhen;
+	private boolean						truncated;
+
+	private List<String>				redirectHistory;
+
+	private long						responseTime;
+
+	// -1 to use the timeouts of the HTTPReader
+	private int							connectTimeout;
+	private int							readTimeout;
+	private int							writeTimeout;
+	private long						deadline;
+
+	// when the current execution must be over, 0 if it has no deadline
+	private long						expiresAt;
+	private volatile boolean			timedOut;
+
+	// set while the request is executed, so another thread can abort it
+	private volatile HttpURLConnection	connection;
+	private volatile boolean			cancelled;
+
+	// requests executed on behalf of this one, e.g. hedged attempts, cancelled along with it
+	private final List<HTTPRequest>		dependents;
+
+	// the template this request executes, whose headers and body it shares until a header is changed
+	private RequestTemplate				template;
+	private boolean						sharedHeaders;
+
 	
 
 	/**
@@ -147,40 +211,128 @@ public class HTTPRequest implements Cloneable {
 		this.body = new StringBuilder();
 
 		this.inputs = new ArrayList<InputTag>();
-		this.headersToSend = new HashMap<String, List<String>>();
+		this.headersToSend = new HeaderMap();
 		this.postFields = postFields;
+		this.fileParts = new ArrayList<FilePart>();
 		this.postFormat = PostFormat.QUERY;
+		this.redirectHistory = new ArrayList<String>();
+		this.connectTimeout = -1;
+		this.readTimeout = -1;
+		this.writeTimeout = -1;
+		this.deadline = -1;
+		this.maxBodySize = -1;
+		this.dependents = new ArrayList<HTTPRequest>();
+	}
+
+	/**
+	 * Create the request of one execution of a template, see {@link RequestTemplate#newRequest()}.
+	 * 
+	 * @param template
+	 *            the template to execute
+	 */
+	HTTPRequest(RequestTemplate template) {
+		this(template.getMethod(), template.getPage(), new ArrayList<FormData>(), template.getReferrer(), null, template.isUsingSSL());
+		this.template = template;
+		this.headersToSend = template.getHeadersToSend();
+		this.sharedHeaders = true;
+		this.connectTimeout = template.getConnectTimeout();
+		this.readTimeout = template.getReadTimeout();
+		this.writeTimeout = template.getWriteTimeout();
+		this.deadline = template.getDeadline();
+		this.maxBodySize = template.getMaxBodySize();
+		this.expectContinue = template.isExpectContinue();
+		this.priority = template.getPriority();
+		this.stopWhen = template.getStopWhen();
 	}
 
 	public void setPostFormat(PostFormat postFormat) {
 		this.postFormat = postFormat;
 	}
 
+	/**
+	 * Get the format used to send the form data.
+	 * 
+	 * @return the format used to send the form data.
+	 */
+	public PostFormat getPostFormat() {
+		return postFormat;
+	}
+
 	/**
 	 * Read the page and store necessary information.
 	 * 
+	 * The body is decoded with the charset of the Content-Type header, else the one of a byte order mark, else the one
+	 * of an HTML meta tag, else UTF-8; see {@link BodyDecoder}.
+	 * 
+	 * If a {@link JsonResponse} is set, the body is parsed into it while it is read instead, and {@link #getBody()}
+	 * stays empty.
+	 * 
 	 * TODO FIXME switch to an HTML Parser for the inputs: Potential solutions include JSoup/TagSoup/JTidy
 	 */
 	public void readBody(InputStream iStream) {
 		// to avoid potential memory leak
 		// -- if this HTTPRequest is read multiple times for some reason, `body` can get arbitrarily large
 		body.setLength(0);
+		truncated = false;
+
+		BoundedInputStream bounded = null;
+		if (maxBodySize >= 0) {
+			bounded = new BoundedInputStream(iStream, maxBodySize);
+			iStream = bounded;
+		}
 
-		// TODO revise, don't use regex here
-		Scanner in = new Scanner(iStream);
-		Pattern inputNamePattern = Pattern.compile("<input.*?name=\"(.*?)\".*?>");
-		Pattern inputValuePattern = Pattern.compile("<input.*?value=\"(.*?)\".*?>");
-		Pattern inputTypePattern = Pattern.compile("<input.*?type=\"(.*?)\".*?>");
-		while (in.hasNextLine()) {
-			String buf = in.nextLine();
-			body.append(buf + "\r\n");
+		if (jsonResponse != null) {
+			try {
+				// JSON defaults to UTF-8 rather than the platform charset
+				jsonResponse.parse(new InputStreamReader(iStream, getCharset("UTF-8")));
+			} catch (IOException e) {
+				// kept in the JsonResponse, see JsonResponse#getException()
+				e.printStackTrace();
+			}
+			truncated = bounded != null && bounded.isExceeded();
+			return;
+		}
+
+		BodyDecoder in;
+		try {
+			in = new BodyDecoder(iStream, getCharset(null), DEFAULT_CHARSET);
+		} catch (IOException e) {
+			// a read that fails ends the body, the caller closes the connection
+			return;
+		}
+		bodyCharset = in.getCharset();
+
+		try {
+			readLines(in);
+		} catch (IOException e) {
+			// a read that fails ends the body, the caller closes the connection
+		} finally {
+			in.release();
+		}
+
+		if (bounded != null && bounded.isExceeded()) {
+			truncated = true;
+		}
+	}
+
+	private void readLines(BodyDecoder in) throws IOException {
+		String buf;
+		while ((buf = in.readLine()) != null) {
+			body.append(buf).append("\r\n");
+
+			if (stopWhen != null && stopWhen.matches(body, buf)) {
+				// we have what we came for, the rest is not read
+				truncated = true;
+				break;
+			}
 
 			if (buf.contains("<input")) {
 				// separate all the <input>'s
 
-				Matcher m_name = inputNamePattern.matcher(buf);
-				Matcher m_value = inputValuePattern.matcher(buf);
-				Matcher m_type = inputTypePattern.matcher(buf);
+				// TODO revise, don't use regex here
+				Matcher m_name = INPUT_NAME.matcher(buf);
+				Matcher m_value = INPUT_VALUE.matcher(buf);
+				Matcher m_type = INPUT_TYPE.matcher(buf);
 				while (m_name.find() && m_value.find() && m_type.find()) {
 
 					String name = m_name.group(1).trim();
@@ -192,21 +344,108 @@ public class HTTPRequest implements Cloneable {
 		}
 	}
 
+	/**
+	 * Send the body of this POST or PUT with <code>Expect: 100-continue</code>: the server can reject the request, e.g.
+	 * for expired credentials or a full quota, before the body is sent. The rejection is then the response, with its
+	 * status code and without headers or body.
+	 * 
+	 * @param expectContinue
+	 *            true to wait for the server before sending the body, false to send it right away (the default)
+	 * @see HTTPReader#setExpectContinueThreshold(long)
+	 */
+	public void setExpectContinue(boolean expectContinue) {
+		this.expectContinue = expectContinue;
+	}
+
+	public boolean isExpectContinue() {
+		return expectContinue;
+	}
+
+	/**
+	 * Set the priority of this request over the others waiting for the same {@link HTTPReader}, when it has a
+	 * {@link com.cklab.httpconn.reader.RequestScheduler}.
+	 * 
+	 * @param priority
+	 *            higher goes first; 0 by default, negative for background work
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Set the largest response body that is read, in bytes. Reading stops at that size, the body is then
+	 * {@link #isTruncated() truncated} and the connection closed.
+	 * 
+	 * @param maxBodySize
+	 *            the size in bytes, -1 for no limit (the default)
+	 */
+	public void setMaxBodySize(long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	public long getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	/**
+	 * Stop reading the response body as soon as a predicate matches, e.g. once the title or a token has been read. The
+	 * body is then {@link #isTruncated() truncated} and the connection closed. Not used for a {@link JsonResponse}.
+	 * 
+	 * @param stopWhen
+	 *            the predicate, evaluated after every line; null to read the whole body
+	 */
+	public void setStopWhen(BodyPredicate stopWhen) {
+		this.stopWhen = stopWhen;
+	}
+
+	public BodyPredicate getStopWhen() {
+		return stopWhen;
+	}
+
+	/**
+	 * Whether or not the body was not read to its end, because of the maximum body size or the stop predicate.
+	 * 
+	 * @return true if the body is incomplete
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Mark the body of this request as incomplete, e.g. when the redirect it led to stopped reading early.
+	 * 
+	 * @param truncated
+	 *            whether or not the body is incomplete
+	 */
+	public void setTruncated(boolean truncated) {
+		this.truncated = truncated;
+	}
+
 	/**
 	 * Get the form data.
 	 * 
-	 * Note: This is the key-value pair that is sent as a result of a POST request.
+	 * Note: This is the key-value pair that is sent as a result of a POST request. For {@link PostFormat#MULTIPART}
+	 * this only contains the in-memory fields, query encoded; the body itself is written by
+	 * {@link #writeFormData(OutputStream)}.
 	 * 
 	 * @return the form data.
 	 */
 	public String getFormData() {
+		if (template != null) {
+			return template.getFormData();
+		}
 		if (postFormat == PostFormat.JSON) {
-			JsonObject data = new JsonObject();
-			for (FormData fd : postFields) {
-				String value = fd.getValue();
-				data.add(fd.getName(), value);
+			StringWriter data = new StringWriter();
+			try {
+				writeJson(data);
+			} catch (IOException e) {
+				// a StringWriter does not throw
+				e.printStackTrace();
 			}
-			
 			return data.toString();
 		} else {
 			StringBuilder formData = new StringBuilder();
@@ -227,6 +466,211 @@ public class HTTPRequest implements Cloneable {
 		}
 	}
 
+	/**
+	 * Write the form data to the stream the request body is sent on.
+	 * 
+	 * For {@link PostFormat#MULTIPART} the files are streamed from disk, {@link PostFormat#JSON} is serialized straight
+	 * into the stream as UTF-8, otherwise this writes {@link #getFormData()}.
+	 * 
+	 * @param out
+	 *            the stream to write to; it is not closed.
+	 * @throws IOException
+	 */
+	public void writeFormData(OutputStream out) throws IOException {
+		if (template != null) {
+			template.writeBody(out);
+		} else if (postFormat == PostFormat.MULTIPART) {
+			getMultipartBody().writeTo(out);
+		} else if (postFormat == PostFormat.JSON) {
+			// the encoder allocates on every small write, so the tokens are buffered first
+			Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			writeJson(writer);
+			writer.flush();
+		} else {
+			DataOutputStream oStream = new DataOutputStream(out);
+			oStream.writeBytes(getFormData());
+			oStream.flush();
+		}
+	}
+
+	/**
+	 * Get the number of bytes {@link #writeFormData(OutputStream)} will write.
+	 * 
+	 * @return the length of the form data in bytes.
+	 */
+	public long getFormDataLength() {
+		if (template != null) {
+			return template.getBodyLength();
+		}
+		if (postFormat == PostFormat.MULTIPART) {
+			return getMultipartBody().getContentLength();
+		}
+		if (postFormat == PostFormat.JSON) {
+			// serialize once into a counter rather than into memory
+			CountingOutputStream counter = new CountingOutputStream();
+			try {
+				writeFormData(counter);
+			} catch (IOException e) {
+				// the counter does not throw
+				e.printStackTrace();
+			}
+			return counter.getCount();
+		}
+		return getFormData().length();
+	}
+
+	/**
+	 * Whether or not the form data is at least a given number of bytes long. Unlike {@link #getFormDataLength()}, a
+	 * JSON body is only serialized until it reaches that length.
+	 * 
+	 * @param length
+	 *            the length in bytes
+	 * @return true if {@link #writeFormData(OutputStream)} writes at least that many bytes
+	 */
+	public boolean isFormDataAtLeast(final long length) {
+		if (template != null || postFormat != PostFormat.JSON) {
+			return getFormDataLength() >= length;
+		}
+		if (length <= 0) {
+			return true;
+		}
+
+		final IOException reached = new IOException("Length reached");
+		OutputStream counter = new CountingOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				super.write(b);
+				check();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				super.write(b, off, len);
+				check();
+			}
+
+			private void check() throws IOException {
+				if (getCount() >= length) {
+					throw reached;
+				}
+			}
+		};
+		try {
+			writeFormData(counter);
+		} catch (IOException e) {
+			if (e == reached) {
+				return true;
+			}
+			// the counter only throws once the length is reached
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	/**
+	 * Whether or not the form data is written with {@link #writeFormData(OutputStream)} in streaming mode, rather than
+	 * sent as {@link #getFormData()}.
+	 * 
+	 * @return true for {@link PostFormat#MULTIPART} and {@link PostFormat#JSON}, false otherwise.
+	 */
+	public boolean isStreamingFormData() {
+		return template != null || postFormat == PostFormat.MULTIPART || postFormat == PostFormat.JSON;
+	}
+
+	/**
+	 * Get the Content-Type the form data has to be sent with.
+	 * 
+	 * @return the Content-Type, or null to use the default of the connection.
+	 */
+	public String getFormDataContentType() {
+		if (template != null) {
+			return template.getContentType();
+		}
+		if (postFormat == PostFormat.MULTIPART) {
+			return getMultipartBody().getContentType();
+		}
+		if (postFormat == PostFormat.JSON) {
+			return "application/json; charset=UTF-8";
+		}
+		return null;
+	}
+
+	/**
+	 * Set a typed JSON body, see {@link com.cklab.httpconn.util.JsonObjectBody} and
+	 * {@link com.cklab.httpconn.util.JsonArrayBody}. This switches the request to {@link PostFormat#JSON} and replaces
+	 * the form fields in the body.
+	 * 
+	 * @param jsonBody
+	 *            the body, or null to send the form fields as a JSON object of strings.
+	 */
+	public void setJsonBody(JsonBody jsonBody) {
+		this.jsonBody = jsonBody;
+		if (jsonBody != null) {
+			postFormat = PostFormat.JSON;
+		}
+	}
+
+	/**
+	 * Get the typed JSON body.
+	 * 
+	 * @return the typed JSON body, or null if the form fields are sent.
+	 */
+	public JsonBody getJsonBody() {
+		return jsonBody;
+	}
+
+	/**
+	 * Write the JSON body, or the form fields as a JSON object of strings if there is none.
+	 */
+	private void writeJson(Writer writer) throws IOException {
+		JsonStreamWriter out = new JsonStreamWriter(writer);
+		if (jsonBody != null) {
+			jsonBody.writeJson(out);
+		} else {
+			out.beginObject();
+			for (FormData fd : postFields) {
+				out.name(fd.getName());
+				out.value(fd.getValue());
+			}
+			out.endObject();
+		}
+	}
+
+	/**
+	 * Build the multipart body for the current fields and files. The boundary is kept for the lifetime of this
+	 * request so that the Content-Type header and the body always agree.
+	 */
+	MultipartBody getMultipartBody() {
+		if (multipartBoundary == null) {
+			multipartBoundary = MultipartBody.newBoundary();
+		}
+		return new MultipartBody(multipartBoundary, postFields, fileParts);
+	}
+
+	/**
+	 * Add a file to be uploaded. This switches the request to {@link PostFormat#MULTIPART}.
+	 * 
+	 * @param fp
+	 *            the file to upload
+	 */
+	public void addFilePart(FilePart fp) {
+		if (fp == null || fp.invalid()) {
+			System.err.println("Invalid file part for " + getMethod() + " object: " + fp);
+			return;
+		}
+		fileParts.add(fp);
+		postFormat = PostFormat.MULTIPART;
+	}
+
+	/**
+	 * Get the files to be uploaded.
+	 * 
+	 * @return the files to be uploaded.
+	 */
+	public List<FilePart> getFileParts() {
+		return fileParts;
+	}
+
 	/**
 	 * Set the form data.
 	 * 
@@ -279,12 +723,8 @@ public class HTTPRequest implements Cloneable {
 	 * @param headerValue
 	 */
 	public void addHeader(String headerKey, String headerValue) {
-		List<String> values = headersToSend.get(headerKey);
-		if (values == null) {
-			values = new ArrayList<String>();
-			headersToSend.put(headerKey, values);
-		}
-		values.add(headerValue);
+		unshareHeaders();
+		headersToSend.add(headerKey, headerValue);
 	}
 	
 	/**
@@ -294,15 +734,26 @@ public class HTTPRequest implements Cloneable {
 	 * @param headerValue
 	 */
 	public void removeHeader(String headerKey) {
+		unshareHeaders();
 		headersToSend.remove(headerKey);
 	}
 
+	private void unshareHeaders() {
+		if (sharedHeaders) {
+			headersToSend = new HeaderMap(headersToSend);
+			sharedHeaders = false;
+		}
+	}
+
 	/**
 	 * The headers to be sent to the server. This will replace any default headers set by the {@link HTTPReader}.
 	 * 
+	 * The headers of a request created from a {@link RequestTemplate} belong to the template: change them with
+	 * {@link #addHeader(String, String)} and {@link #removeHeader(String)} only.
+	 * 
 	 * @return
 	 */
-	public Map<String, List<String>> getHeadersToSend() {
+	public HeaderMap getHeadersToSend() {
 		return headersToSend;
 	}
 
@@ -316,21 +767,36 @@ public class HTTPRequest implements Cloneable {
 	 *            the headers received from the server
 	 */
 	public void setHeaders(Map<String, List<String>> headers) {
-		this.headers = headers;
+		if (headers == null || headers instanceof HeaderMap) {
+			this.headers = (HeaderMap) headers;
+		} else {
+			this.headers = new HeaderMap(headers);
+		}
 	}
 
 	/**
 	 * Get the headers.
 	 * 
-	 * The Map keys are Strings that represent the response-header field names. Each Map value is a List of Strings that
-	 * represents the corresponding field values
+	 * The Map keys are Strings that represent the response-header field names, looked up regardless of their case.
+	 * Each Map value is a List of Strings that represents the corresponding field values
 	 * 
 	 * @return the headers received from the server
 	 */
-	public Map<String, List<String>> getHeaders() {
+	public HeaderMap getHeaders() {
 		return headers;
 	}
 
+	/**
+	 * Get the first value of a response header.
+	 * 
+	 * @param name
+	 *            the name of the header, in any case
+	 * @return the value, or null if the server did not send it
+	 */
+	public String getHeader(String name) {
+		return headers == null ? null : headers.getFirst(name);
+	}
+
 	/**
 	 * Set the referrer.
 	 * 
@@ -412,14 +878,59 @@ public class HTTPRequest implements Cloneable {
 	 * @return
 	 */
 	public String getContentType() {
-		String contentType = null;
-		if (headers != null) {
-			List<String> types = headers.get("Content-Type");
-			if (types.size() > 0) {
-				contentType = types.get(0);
+		return getHeader("Content-Type");
+	}
+
+	/**
+	 * Get the charset from the Content-Type response header.
+	 * 
+	 * @param defaultCharset
+	 *            the charset to return if the header does not name a supported one
+	 * @return the charset name
+	 */
+	public String getCharset(String defaultCharset) {
+		String contentType = getContentType();
+		if (contentType == null) {
+			return defaultCharset;
+		}
+
+		for (String param : contentType.split(";")) {
+			param = param.trim();
+			if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+				String charset = param.substring(8).trim();
+				if (charset.length() > 1 && charset.startsWith("\"") && charset.endsWith("\"")) {
+					charset = charset.substring(1, charset.length() - 1);
+				}
+				try {
+					if (Charset.isSupported(charset)) {
+						return charset;
+					}
+				} catch (IllegalArgumentException e) {
+					// illegal charset name, use the default
+				}
 			}
 		}
-		return contentType;
+		return defaultCharset;
+	}
+
+	/**
+	 * Parse the response body as JSON while it is read, instead of buffering it as text. See {@link JsonResponse}. When
+	 * the request is redirected, the body of the redirect is skipped and the JSON is parsed from the end of the chain.
+	 * 
+	 * @param jsonResponse
+	 *            the JsonResponse to parse into, or null to read the body as text.
+	 */
+	public void setJsonResponse(JsonResponse jsonResponse) {
+		this.jsonResponse = jsonResponse;
+	}
+
+	/**
+	 * Get the JsonResponse the body is parsed into.
+	 * 
+	 * @return the JsonResponse, or null if the body is read as text.
+	 */
+	public JsonResponse getJsonResponse() {
+		return jsonResponse;
 	}
 
 	/**
@@ -444,10 +955,30 @@ public class HTTPRequest implements Cloneable {
 	 * Get a Scanner object to read the body of this HTTP Request.
 	 * 
 	 * @see #getInputStream()
+	 * @see #lines()
 	 * @return a Scanner object to read the body of this HTTP Request.
 	 */
 	public Scanner getScanner() {
-		return new Scanner(body.toString());
+		return new Scanner(CharBuffer.wrap(body));
+	}
+
+	/**
+	 * Get the lines of the body, read as they are iterated over rather than copied first.
+	 * 
+	 * @return the lines of the body
+	 */
+	public Iterable<String> lines() {
+		return new Lines(body);
+	}
+
+	/**
+	 * Get the charset the body was decoded with: the one of the Content-Type header, else the one of a byte order
+	 * mark, else the one of an HTML meta tag, else UTF-8.
+	 * 
+	 * @return the charset, or null if no body was read.
+	 */
+	public Charset getBodyCharset() {
+		return bodyCharset;
 	}
 
 	/**
@@ -463,6 +994,42 @@ public class HTTPRequest implements Cloneable {
 			this.body = new StringBuilder(body);
 	}
 
+	/**
+	 * Drop the body and the input tags read from it, including the memory held for them.
+	 */
+	public void releaseBody() {
+		this.body = new StringBuilder();
+		this.inputs.clear();
+	}
+
+	/**
+	 * Copy the response of another request into this one: its status code, headers, body, input tags, truncation,
+	 * response time, redirect and redirect history. The headers are copied, editing them does not change the other
+	 * request.
+	 * 
+	 * @param other
+	 *            the request that was executed
+	 */
+	public void copyResponse(HTTPRequest other) {
+		this.statusCode = other.statusCode;
+		this.headers = other.headers != null ? new HeaderMap(other.headers) : null;
+		this.body = new StringBuilder(other.body);
+		this.inputs = new ArrayList<InputTag>(other.inputs);
+		this.truncated = other.truncated;
+		this.responseTime = other.responseTime;
+		this.redirect = other.redirect;
+		this.redirectHistory = other.redirectHistory;
+	}
+
+	/**
+	 * Get the template this request executes.
+	 * 
+	 * @return the template, or null if the request was not created from one.
+	 */
+	public RequestTemplate getTemplate() {
+		return template;
+	}
+
 	/**
 	 * Get the body of this page (the content of this page)
 	 * 
@@ -576,13 +1143,246 @@ public class HTTPRequest implements Cloneable {
 		this.redirect = redir;
 	}
 
+	/**
+	 * Set the time it took the server to answer with its headers.
+	 * 
+	 * @param responseTime
+	 *            the time in milliseconds
+	 */
+	public void setResponseTime(long responseTime) {
+		this.responseTime = responseTime;
+	}
+
+	/**
+	 * Get the time it took the server to answer with its headers, the last time this request was executed.
+	 * 
+	 * @return the time in milliseconds
+	 */
+	public long getResponseTime() {
+		return responseTime;
+	}
+
+	/**
+	 * Set how long connecting to the server may take, overriding the timeout of the {@link HTTPReader}.
+	 * 
+	 * @param connectTimeout
+	 *            the timeout in milliseconds, 0 for none, -1 to use the timeout of the reader
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Set how long a single read from the server may block, overriding the timeout of the {@link HTTPReader}.
+	 * 
+	 * @param readTimeout
+	 *            the timeout in milliseconds, 0 for none, -1 to use the timeout of the reader
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Set how long sending the form data may take, overriding the timeout of the {@link HTTPReader}.
+	 * 
+	 * @param writeTimeout
+	 *            the timeout in milliseconds, 0 for none, -1 to use the timeout of the reader
+	 */
+	public void setWriteTimeout(int writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * Set how long the whole execution of this request may take, redirects and retries included, overriding the
+	 * deadline of the {@link HTTPReader}. When it is exceeded the I/O in progress is aborted and the request is
+	 * {@link #isTimedOut() timed out}.
+	 * 
+	 * @param deadline
+	 *            the time in milliseconds, 0 for none, -1 to use the deadline of the reader
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Set when the current execution of this request must be over. This is used by {@link HTTPReader}, which starts the
+	 * clock when the request is executed.
+	 * 
+	 * @param expiresAt
+	 *            the time in milliseconds since the epoch, 0 for no deadline
+	 */
+	public void setExpiresAt(long expiresAt) {
+		this.expiresAt = expiresAt;
+		this.timedOut = false;
+	}
+
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	/**
+	 * Use the timeouts of another request, and the deadline of its current execution. Redirects and hedged attempts
+	 * are executed within the limits of the request they come from.
+	 * 
+	 * @param other
+	 *            the request to copy the timeouts from
+	 */
+	public void setTimeoutsFrom(HTTPRequest other) {
+		this.connectTimeout = other.connectTimeout;
+		this.readTimeout = other.readTimeout;
+		this.writeTimeout = other.writeTimeout;
+		this.deadline = other.deadline;
+		setExpiresAt(other.expiresAt);
+	}
+
+	/**
+	 * Mark this request as having exceeded its deadline.
+	 * 
+	 * @param timedOut
+	 *            whether or not the deadline was exceeded
+	 */
+	public void setTimedOut(boolean timedOut) {
+		this.timedOut = timedOut;
+	}
+
+	/**
+	 * Whether or not the last execution of this request was aborted because it exceeded its deadline.
+	 * 
+	 * @return true if the deadline was exceeded
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Set the connection this request is being executed on. This is used by {@link HTTPReader} so the request can be
+	 * cancelled from another thread.
+	 * 
+	 * @param connection
+	 *            the connection, or null once the execution is over
+	 */
+	public void setConnection(HttpURLConnection connection) {
+		this.connection = connection;
+		if (connection != null && cancelled) {
+			// cancelled while the connection was being set up
+			HTTPReader.abort(connection);
+		}
+	}
+
+	/**
+	 * Cancel this request: its connection is closed, which aborts the I/O in progress, and it is not retried. The
+	 * redirect being followed and the attempts executed on its behalf, if any, are cancelled as well. A cancelled
+	 * request stays cancelled, use {@link #clone()} to execute it again.
+	 * 
+	 * This returns right away, the thread executing the request stops on its next read or write.
+	 */
+	public void cancel() {
+		cancelled = true;
+
+		HttpURLConnection conn = connection;
+		if (conn != null) {
+			HTTPReader.abort(conn);
+		}
+
+		Redirect redir = redirect;
+		if (redir != null && redir.getHTTPRequest() != null) {
+			redir.getHTTPRequest().cancel();
+		}
+
+		HTTPRequest[] attempts;
+		synchronized (dependents) {
+			attempts = dependents.toArray(new HTTPRequest[dependents.size()]);
+		}
+		for (HTTPRequest attempt : attempts) {
+			attempt.cancel();
+		}
+	}
+
+	/**
+	 * Cancel another request along with this one, while it is executed on behalf of this one.
+	 * 
+	 * @param dependent
+	 *            the other request
+	 */
+	public void addDependent(HTTPRequest dependent) {
+		synchronized (dependents) {
+			dependents.add(dependent);
+		}
+		if (cancelled) {
+			dependent.cancel();
+		}
+	}
+
+	/**
+	 * Stop cancelling another request along with this one.
+	 * 
+	 * @param dependent
+	 *            the other request
+	 */
+	public void removeDependent(HTTPRequest dependent) {
+		synchronized (dependents) {
+			dependents.remove(dependent);
+		}
+	}
+
+	/**
+	 * Whether or not this request was cancelled.
+	 * 
+	 * @return true if {@link #cancel()} was called
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Get the URIs that redirected to this request, in order. Empty unless this request was created by a
+	 * {@link Redirect}.
+	 * 
+	 * @return the URIs that redirected to this request
+	 */
+	public List<String> getRedirectHistory() {
+		return redirectHistory;
+	}
+
+	/**
+	 * Set the URIs that redirected to this request.
+	 * 
+	 * @param redirectHistory
+	 *            the URIs that redirected to this request, in order
+	 */
+	public void setRedirectHistory(List<String> redirectHistory) {
+		this.redirectHistory = redirectHistory;
+	}
+
 	/**
 	 * Clone this HTTP Request.
 	 * <p>
 	 * Cloned attributes are: <br/>
 	 * HTTP Method <br/>
 	 * Page <br/>
-	 * Post Data <br/>
+	 * Post Data, Post Format, File Parts and JSON Body <br/>
+	 * Headers to send <br/>
+	 * Timeouts and deadline <br/>
+	 * Maximum body size and stop predicate <br/>
+	 * Expect: 100-continue <br/>
+	 * Priority <br/>
+	 * Template <br/>
 	 * Referrer <br/>
 	 * Cookies <br/>
 	 * SSL Support<br/>
@@ -592,6 +1392,19 @@ public class HTTPRequest implements Cloneable {
 	 */
 	public HTTPRequest clone() {
 		HTTPRequest clone = new HTTPRequest(method, page, postFields, referrer, cookies, useSSL);
+		clone.fileParts = fileParts;
+		clone.jsonBody = jsonBody;
+		clone.postFormat = postFormat;
+		clone.connectTimeout = connectTimeout;
+		clone.readTimeout = readTimeout;
+		clone.writeTimeout = writeTimeout;
+		clone.deadline = deadline;
+		clone.maxBodySize = maxBodySize;
+		clone.expectContinue = expectContinue;
+		clone.priority = priority;
+		clone.stopWhen = stopWhen;
+		clone.headersToSend = new HeaderMap(headersToSend);
+		clone.template = template;
 
 		// are there any other attributes we want to copy besides the basics?
 		return clone;
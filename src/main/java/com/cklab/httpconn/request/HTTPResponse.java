@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.request;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.cklab.httpconn.util.HeaderMap;
+import com.cklab.httpconn.util.InputTag;
+import com.cklab.httpconn.util.Lines;
+import com.cklab.httpconn.util.Redirect;
+
+/**
+ * HTTPResponse class.
+ * 
+ * What one execution of a request gave back: the status code, headers, body and input tags, and the redirect to
+ * follow. It does not change once created, unlike the response state of an {@link HTTPRequest}, which is overwritten
+ * by its next execution.
+ * 
+ * @author cklab
+ * 
+ */
+public class HTTPResponse {
+
+	private final RequestTemplate	template;
+	private final int				statusCode;
+	private final HeaderMap			headers;
+	private final String			body;
+	private final Charset			bodyCharset;
+	private final List<InputTag>	inputs;
+	private final Redirect			redirect;
+	private final List<String>		redirectHistory;
+	private final long				responseTime;
+	private final boolean			truncated;
+	private final boolean			timedOut;
+	private final boolean			cancelled;
+
+	/**
+	 * Capture the response of an executed request.
+	 * 
+	 * @param req
+	 *            the request that was executed
+	 */
+	public HTTPResponse(HTTPRequest req) {
+		this.template = req.getTemplate();
+		this.statusCode = req.getStatusCode();
+		this.headers = req.getHeaders() == null ? null : new HeaderMap(req.getHeaders());
+		this.body = req.getBody();
+		this.bodyCharset = req.getBodyCharset();
+		this.inputs = Collections.unmodifiableList(new ArrayList<InputTag>(req.getInputFields()));
+		this.redirect = req.getRedirect();
+		this.redirectHistory = Collections.unmodifiableList(new ArrayList<String>(req.getRedirectHistory()));
+		this.responseTime = req.getResponseTime();
+		this.truncated = req.isTruncated();
+		this.timedOut = req.isTimedOut();
+		this.cancelled = req.isCancelled();
+	}
+
+	/**
+	 * Get the template that was executed.
+	 * 
+	 * @return the template, or null if the request was not created from one.
+	 */
+	public RequestTemplate getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Get the status code.
+	 * 
+	 * @return the status code, or 0 if no response was read.
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Get the headers received from the server.
+	 * 
+	 * @return a copy of the headers, or null if no response was read.
+	 */
+	public HeaderMap getHeaders() {
+		return headers == null ? null : new HeaderMap(headers);
+	}
+
+	/**
+	 * Get the first value of a response header.
+	 * 
+	 * @param name
+	 *            the name of the header, in any case
+	 * @return the value, or null if the server did not send it
+	 */
+	public String getHeader(String name) {
+		return headers == null ? null : headers.getFirst(name);
+	}
+
+	/**
+	 * Get the body of the page.
+	 * 
+	 * @return the body, empty if none was read.
+	 */
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * Get the lines of the body, read as they are iterated over rather than copied first.
+	 * 
+	 * @return the lines of the body
+	 */
+	public Iterable<String> lines() {
+		return new Lines(body);
+	}
+
+	/**
+	 * Get the charset the body was decoded with.
+	 * 
+	 * @return the charset, or null if no body was read.
+	 */
+	public Charset getBodyCharset() {
+		return bodyCharset;
+	}
+
+	/**
+	 * Get all the <code>input</code> tags on the page.
+	 * 
+	 * @return the input tags, in page order.
+	 */
+	public List<InputTag> getInputFields() {
+		return inputs;
+	}
+
+	/**
+	 * Get the redirect the server answered with.
+	 * 
+	 * @return the redirect, or null if the server did not redirect.
+	 */
+	public Redirect getRedirect() {
+		return redirect;
+	}
+
+	/**
+	 * Get the response at the end of the redirects that were followed.
+	 * 
+	 * @return the last response, this one if no redirect was followed.
+	 */
+	public HTTPResponse getFinalResponse() {
+		if (redirect == null || !redirect.isFollowed()) {
+			return this;
+		}
+		HTTPRequest last = redirect.getHTTPRequest();
+		while (last.getRedirect() != null && last.getRedirect().isFollowed()) {
+			last = last.getRedirect().getHTTPRequest();
+		}
+		return new HTTPResponse(last);
+	}
+
+	/**
+	 * Get the pages that redirected to this one.
+	 * 
+	 * @return the pages, in the order they were requested.
+	 */
+	public List<String> getRedirectHistory() {
+		return redirectHistory;
+	}
+
+	/**
+	 * Get the time it took the server to answer with its headers.
+	 * 
+	 * @return the time in milliseconds
+	 */
+	public long getResponseTime() {
+		return responseTime;
+	}
+
+	/**
+	 * Whether or not the body was cut short by the maximum body size or the stop predicate.
+	 * 
+	 * @return true if the body is incomplete, false otherwise.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Whether or not the execution ran past its deadline.
+	 * 
+	 * @return true if the deadline was exceeded, false otherwise.
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Whether or not the execution was cancelled.
+	 * 
+	 * @return true if it was cancelled, false otherwise.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * The String representation of this response.
+	 */
+	public String toString() {
+		return "[status_code=" + statusCode + ",template=" + template + ",body_length=" + body.length() + ",truncated=" + truncated + "]";
+	}
+}
@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cklab.httpconn.reader.HTTPReader;
+import com.cklab.httpconn.util.BodyPredicate;
+import com.cklab.httpconn.util.FilePart;
+import com.cklab.httpconn.util.FormData;
+import com.cklab.httpconn.util.HeaderMap;
+import com.cklab.httpconn.util.MultipartBody;
+import com.cklab.httpconn.util.PostFormat;
+
+/**
+ * RequestTemplate class.
+ * 
+ * An immutable snapshot of an {@link HTTPRequest}: its method, page, headers, body, timeouts and body limits. The
+ * snapshot is validated once and its body encoded once, so the same template can be executed any number of times,
+ * from any number of threads, with {@link HTTPReader#exec(RequestTemplate)}. Every execution gives back its own
+ * {@link HTTPResponse} and leaves the template untouched.
+ * 
+ * Multipart bodies keep their fields encoded, the uploaded files are streamed from disk on every execution.
+ * 
+ * @author cklab
+ * 
+ */
+public final class RequestTemplate {
+
+	// the methods HttpURLConnection accepts
+	private static final String[]	METHODS	= { "GET", "POST", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE" };
+
+	private final String			method;
+	private final String			page;
+	private final String			referrer;
+	private final boolean			useSSL;
+
+	private final HeaderMap			headersToSend;
+
+	// either the encoded body, or the multipart body streaming the files
+	private final String			formData;
+	private final byte[]			body;
+	private final MultipartBody		multipartBody;
+	private final String			contentType;
+
+	private final int				connectTimeout;
+	private final int				readTimeout;
+	private final int				writeTimeout;
+	private final long				deadline;
+	private final long				maxBodySize;
+	private final boolean			expectContinue;
+	private final int				priority;
+	private final BodyPredicate		stopWhen;
+
+	/**
+	 * Create a template of the given request. Later changes to the request do not change the template.
+	 * 
+	 * @param req
+	 *            the request to take the method, page, headers, body, timeouts and body limits of.
+	 * @throws IllegalArgumentException
+	 *             if the method is not supported, the page is missing or a header would break the request.
+	 */
+	public RequestTemplate(HTTPRequest req) {
+		this.method = req.getMethod() == null ? null : req.getMethod().toUpperCase();
+		this.page = req.getPage();
+		this.referrer = req.getReferrer();
+		this.useSSL = req.isUsingSSL();
+		this.headersToSend = new HeaderMap(req.getHeadersToSend());
+		this.connectTimeout = req.getConnectTimeout();
+		this.readTimeout = req.getReadTimeout();
+		this.writeTimeout = req.getWriteTimeout();
+		this.deadline = req.getDeadline();
+		this.maxBodySize = req.getMaxBodySize();
+		this.expectContinue = req.isExpectContinue();
+		this.priority = req.getPriority();
+		this.stopWhen = req.getStopWhen();
+
+		validate();
+
+		this.formData = req.getFormData();
+		if (req.getPostFormat() == PostFormat.MULTIPART) {
+			// copy the fields, a later change to one of them must not change the body
+			List<FormData> fields = new ArrayList<FormData>();
+			for (FormData fd : req.postFields) {
+				fields.add(new FormData(fd.getName(), fd.getValue()));
+			}
+			String boundary = req.getMultipartBody().getBoundary();
+			this.multipartBody = new MultipartBody(boundary, fields, new ArrayList<FilePart>(req.getFileParts()));
+			this.contentType = multipartBody.getContentType();
+			this.body = null;
+		} else {
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+			try {
+				req.writeFormData(encoded);
+			} catch (IOException e) {
+				// a ByteArrayOutputStream does not throw
+				e.printStackTrace();
+			}
+			this.body = encoded.toByteArray();
+			this.multipartBody = null;
+			String type = req.getFormDataContentType();
+			this.contentType = type != null ? type : "application/x-www-form-urlencoded";
+		}
+	}
+
+	private void validate() {
+		boolean known = false;
+		for (String m : METHODS) {
+			known |= m.equals(method);
+		}
+		if (!known) {
+			throw new IllegalArgumentException("Unsupported method: " + method);
+		}
+		if (page == null) {
+			throw new IllegalArgumentException("No page to request");
+		}
+		checkValue("page", page);
+		if (referrer != null) {
+			checkValue("Referer", referrer);
+		}
+		for (int i = 0; i < headersToSend.count(); i++) {
+			String name = headersToSend.getName(i);
+			if (name.length() == 0 || name.indexOf(':') >= 0) {
+				throw new IllegalArgumentException("Invalid header name: " + name);
+			}
+			checkValue(name, name);
+			checkValue(name, headersToSend.getValue(i));
+		}
+	}
+
+	private static void checkValue(String name, String value) {
+		if (value == null) {
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\r' || c == '\n' || c == 0) {
+				throw new IllegalArgumentException("Line break in " + name + ": " + value);
+			}
+		}
+	}
+
+	/**
+	 * Create the request of one execution of this template. It shares the headers and the encoded body of the template
+	 * instead of copying them: adding or removing a header on it copies them first.
+	 * 
+	 * @return a new request, ready to be executed once.
+	 */
+	public HTTPRequest newRequest() {
+		return new HTTPRequest(this);
+	}
+
+	/**
+	 * Write the encoded body.
+	 * 
+	 * @param out
+	 *            the stream to write to; it is not closed.
+	 * @throws IOException
+	 */
+	void writeBody(OutputStream out) throws IOException {
+		if (multipartBody != null) {
+			multipartBody.writeTo(out);
+		} else {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Get the number of bytes {@link #writeBody(OutputStream)} will write.
+	 * 
+	 * @return the length of the body in bytes.
+	 */
+	long getBodyLength() {
+		return multipartBody != null ? multipartBody.getContentLength() : body.length;
+	}
+
+	String getFormData() {
+		return formData;
+	}
+
+	/**
+	 * Get the Content-Type the body is sent with.
+	 * 
+	 * @return the Content-Type
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Get the HTTP method.
+	 * 
+	 * @return the method, in upper case
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Get the page to request.
+	 * 
+	 * @return the page
+	 */
+	public String getPage() {
+		return page;
+	}
+
+	/**
+	 * Get the referrer.
+	 * 
+	 * @return the referrer, or null
+	 */
+	public String getReferrer() {
+		return referrer;
+	}
+
+	/**
+	 * Whether or not the request is sent over SSL.
+	 * 
+	 * @return true if SSL is used, false otherwise.
+	 */
+	public boolean isUsingSSL() {
+		return useSSL;
+	}
+
+	/**
+	 * The headers sent to the server. They are shared by every execution and must not be modified.
+	 * 
+	 * @return the headers to send
+	 */
+	HeaderMap getHeadersToSend() {
+		return headersToSend;
+	}
+
+	int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	int getReadTimeout() {
+		return readTimeout;
+	}
+
+	int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	long getDeadline() {
+		return deadline;
+	}
+
+	long getMaxBodySize() {
+		return maxBodySize;
+	}
+
+	boolean isExpectContinue() {
+		return expectContinue;
+	}
+
+	int getPriority() {
+		return priority;
+	}
+
+	BodyPredicate getStopWhen() {
+		return stopWhen;
+	}
+
+	/**
+	 * The String representation of this template.
+	 */
+	public String toString() {
+		return "[method=" + method + ",page=" + page + ",referrer=" + referrer + ",form_data=" + formData + ",useSSL=" + useSSL + "]";
+	}
+}
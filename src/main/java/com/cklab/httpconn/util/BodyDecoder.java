@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * BodyDecoder class.
+ * 
+ * Decodes a response body line by line. The charset is the one of the Content-Type header, else the one of a byte
+ * order mark, else the one of an HTML meta tag within the first {@value #SNIFF_LIMIT} bytes, else the fallback.
+ * Malformed input is replaced rather than failing the read.
+ * 
+ * The byte and char buffers are kept per thread and reused by the next body decoded on that thread, once
+ * {@link #release()} has been called.
+ * 
+ * @author cklab
+ * 
+ */
+public class BodyDecoder {
+
+	/**
+	 * How many bytes at the start of a body are searched for a meta charset.
+	 */
+	public static final int					SNIFF_LIMIT		= 1024;
+
+	private static final int				BUFFER_SIZE		= 8 * 1024;
+
+	private static final Pattern			META_CHARSET	= Pattern.compile(
+			"<meta[^>]*?charset\\s*=\\s*[\"']?\\s*([a-z0-9_:.\\-]+)", Pattern.CASE_INSENSITIVE);
+
+	private static final Charset			UTF_8			= Charset.forName("UTF-8");
+
+	private static final ThreadLocal<Buffers>	BUFFERS		= new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	private static class Buffers {
+		final ByteBuffer	bytes	= ByteBuffer.allocate(BUFFER_SIZE);
+		final CharBuffer	chars	= CharBuffer.allocate(BUFFER_SIZE);
+		CharsetDecoder		decoder;
+		boolean				inUse;
+	}
+
+	private final InputStream		in;
+	private final Charset			charset;
+	private final CharsetDecoder	decoder;
+	private Buffers					buffers;
+	private ByteBuffer				bytes;
+	private CharBuffer				chars;
+	private final StringBuilder		line;
+	private boolean					eof;
+	private boolean					finished;
+	private boolean					skipLF;
+
+	/**
+	 * Create a BodyDecoder. Up to {@value #SNIFF_LIMIT} bytes are read right away when the header names no charset.
+	 * 
+	 * @param in
+	 *            the body
+	 * @param headerCharset
+	 *            the charset named by the Content-Type header, or null
+	 * @param fallback
+	 *            the charset used when none is found
+	 * @throws IOException
+	 */
+	public BodyDecoder(InputStream in, String headerCharset, Charset fallback) throws IOException {
+		this.in = in;
+		this.line = new StringBuilder();
+
+		Buffers local = BUFFERS.get();
+		if (local.inUse) {
+			// a body decoded while another one is, on the same thread
+			local = new Buffers();
+		}
+		local.inUse = true;
+		this.buffers = local;
+		this.bytes = local.bytes;
+		this.chars = local.chars;
+		bytes.clear();
+
+		Charset found = forName(headerCharset);
+		try {
+			if (found != null) {
+				// only as far as a byte order mark could go, a stream of events must not wait for more
+				while (!eof && (bytes.position() == 0 || isMarkPrefix(bytes.array(), bytes.position()))) {
+					readSome();
+				}
+			} else {
+				prefill(SNIFF_LIMIT);
+			}
+		} catch (IOException e) {
+			// the caller never gets a decoder to release
+			release();
+			throw e;
+		}
+		byte[] head = bytes.array();
+		int length = bytes.position();
+		int bom = 0;
+		if (length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+			bom = 3;
+			found = found != null ? found : UTF_8;
+		} else if (length >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF) {
+			bom = 2;
+			found = found != null ? found : Charset.forName("UTF-16BE");
+		} else if (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE) {
+			bom = 2;
+			found = found != null ? found : Charset.forName("UTF-16LE");
+		}
+		if (found == null) {
+			found = sniffMeta(head, length);
+		}
+		this.charset = found != null ? found : fallback;
+		if (bom > 0 && !charset.name().startsWith("UTF")) {
+			// the header named a charset the mark does not belong to, leave the bytes alone
+			bom = 0;
+		}
+
+		bytes.flip();
+		bytes.position(bom);
+
+		CharsetDecoder reused = local.decoder;
+		if (reused != null && reused.charset().equals(charset)) {
+			reused.reset();
+		} else {
+			reused = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			local.decoder = reused;
+		}
+		this.decoder = reused;
+
+		chars.clear();
+		chars.flip();
+	}
+
+	private static Charset forName(String name) {
+		if (name == null) {
+			return null;
+		}
+		try {
+			return Charset.isSupported(name) ? Charset.forName(name) : null;
+		} catch (IllegalArgumentException e) {
+			// illegal charset name
+			return null;
+		}
+	}
+
+	private static boolean isMarkPrefix(byte[] head, int length) {
+		int first = head[0] & 0xFF;
+		if (length == 1) {
+			return first == 0xEF || first == 0xFE || first == 0xFF;
+		}
+		return length == 2 && first == 0xEF && (head[1] & 0xFF) == 0xBB;
+	}
+
+	private static Charset sniffMeta(byte[] head, int length) {
+		// ASCII compatible, which is all the tag needs
+		Matcher m = META_CHARSET.matcher(new String(head, 0, length, Charset.forName("ISO-8859-1")));
+		if (!m.find()) {
+			return null;
+		}
+		Charset charset = forName(m.group(1));
+		if (charset != null && charset.name().startsWith("UTF-16")) {
+			// a page that could be read as ASCII to find the tag is not UTF-16
+			return UTF_8;
+		}
+		return charset;
+	}
+
+	private void prefill(int want) throws IOException {
+		while (!eof && bytes.position() < want) {
+			int n = in.read(bytes.array(), bytes.position(), want - bytes.position());
+			if (n < 0) {
+				eof = true;
+			} else {
+				bytes.position(bytes.position() + n);
+			}
+		}
+	}
+
+	private void readSome() throws IOException {
+		int n = in.read(bytes.array(), bytes.position(), bytes.remaining());
+		if (n < 0) {
+			eof = true;
+		} else {
+			bytes.position(bytes.position() + n);
+		}
+	}
+
+	/**
+	 * Get the charset the body is decoded with.
+	 * 
+	 * @return the charset
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * Read the next line, which ends with a line feed, a carriage return or both.
+	 * 
+	 * @return the line without its end, or null at the end of the body.
+	 * @throws IOException
+	 */
+	public String readLine() throws IOException {
+		while (true) {
+			while (chars.hasRemaining()) {
+				char c = chars.get();
+				if (skipLF) {
+					skipLF = false;
+					if (c == '\n') {
+						continue;
+					}
+				}
+				if (c == '\n' || c == '\r') {
+					skipLF = c == '\r';
+					String l = line.toString();
+					line.setLength(0);
+					return l;
+				}
+				line.append(c);
+			}
+			if (!fill()) {
+				if (line.length() > 0) {
+					String l = line.toString();
+					line.setLength(0);
+					return l;
+				}
+				return null;
+			}
+		}
+	}
+
+	private boolean fill() throws IOException {
+		chars.clear();
+		while (chars.position() == 0 && !finished) {
+			// decode what was read before reading more, which can block
+			CoderResult result = decoder.decode(bytes, chars, eof);
+			if (eof) {
+				if (result.isUnderflow() && decoder.flush(chars).isUnderflow()) {
+					finished = true;
+				}
+			} else if (chars.position() == 0) {
+				bytes.compact();
+				int n = in.read(bytes.array(), bytes.position(), bytes.remaining());
+				if (n < 0) {
+					eof = true;
+				} else {
+					bytes.position(bytes.position() + n);
+				}
+				bytes.flip();
+			}
+		}
+		chars.flip();
+		return chars.hasRemaining();
+	}
+
+	/**
+	 * Give the buffers back for the next body decoded on this thread. The stream is not closed.
+	 */
+	public void release() {
+		if (buffers != null) {
+			buffers.inUse = false;
+			buffers = null;
+			// an empty view, so that reading on returns the end of the body
+			chars = CharBuffer.allocate(0);
+			finished = true;
+			eof = true;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+/**
+ * BodyPredicate interface.
+ * 
+ * Decides when to stop reading a response body, see
+ * {@link com.cklab.httpconn.request.HTTPRequest#setStopWhen(BodyPredicate)}. It is evaluated after every line, so
+ * reading stops as soon as what is needed has arrived.
+ * 
+ * @author cklab
+ * 
+ */
+public interface BodyPredicate {
+
+	/**
+	 * Called for every line of the body as it is read.
+	 * 
+	 * @param body
+	 *            the body read so far, including the line
+	 * @param line
+	 *            the line just read, without its line terminator
+	 * @return true to stop reading
+	 */
+	public boolean matches(CharSequence body, String line);
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * BoundedInputStream class.
+ * 
+ * Ends after a given number of bytes, whatever the length of the underlying stream. Used to stop reading a response
+ * body that is larger than needed.
+ * 
+ * @author cklab
+ * 
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+	private long	remaining;
+	private boolean	exceeded;
+
+	/**
+	 * Create a BoundedInputStream.
+	 * 
+	 * @param in
+	 *            the underlying stream
+	 * @param limit
+	 *            the number of bytes that can be read
+	 */
+	public BoundedInputStream(InputStream in, long limit) {
+		super(in);
+		this.remaining = limit;
+	}
+
+	/**
+	 * Whether or not the underlying stream had more bytes than the limit. This is only known once the limit has been
+	 * reached.
+	 * 
+	 * @return true if bytes were left unread
+	 */
+	public boolean isExceeded() {
+		return exceeded;
+	}
+
+	private boolean atLimit() throws IOException {
+		if (remaining > 0) {
+			return false;
+		}
+		if (!exceeded && in.read() != -1) {
+			// one byte past the limit tells a body that was cut from one that just fits
+			exceeded = true;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (atLimit()) {
+			return -1;
+		}
+		int b = in.read();
+		if (b != -1) {
+			remaining--;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (atLimit()) {
+			return -1;
+		}
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n > 0) {
+			remaining -= n;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (atLimit()) {
+			return 0;
+		}
+		long skipped = in.skip(Math.min(n, remaining));
+		remaining -= skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
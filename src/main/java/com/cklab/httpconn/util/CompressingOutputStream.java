@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * CompressingOutputStream class.
+ * 
+ * Compresses what is written through it with a {@link ContentEncoding}, as it is written: only a buffer of compressed
+ * output is held in memory. It counts the bytes written to it and to the underlying stream, and the CPU time the
+ * compression took.
+ * 
+ * @author cklab
+ * 
+ */
+public class CompressingOutputStream extends DeflaterOutputStream {
+
+	private static final int			BUFFER_SIZE	= 8 * 1024;
+	private static final byte[]			GZIP_HEADER	= { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+	private static final ThreadMXBean	THREADS		= ManagementFactory.getThreadMXBean();
+
+	private final CountingOutputStream	counter;
+	private final TimedDeflater			deflater;
+	private final CRC32					crc;
+	private long						bytesIn;
+	private boolean						finished;
+
+	/**
+	 * A Deflater that adds up the time spent compressing, without the time spent writing the output.
+	 */
+	private static class TimedDeflater extends Deflater {
+
+		private final boolean	cpuTime;
+		private long			time;
+
+		TimedDeflater(int level, boolean nowrap) {
+			super(level, nowrap);
+			this.cpuTime = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+		}
+
+		@Override
+		public int deflate(byte[] b, int off, int len) {
+			long start = now();
+			try {
+				return super.deflate(b, off, len);
+			} finally {
+				time += now() - start;
+			}
+		}
+
+		private long now() {
+			return cpuTime ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+		}
+	}
+
+	/**
+	 * Create a CompressingOutputStream.
+	 * 
+	 * @param out
+	 *            the stream the compressed bytes are written to
+	 * @param encoding
+	 *            the content coding to compress with
+	 * @param level
+	 *            the compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}, or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}
+	 * @throws IOException
+	 */
+	public CompressingOutputStream(OutputStream out, ContentEncoding encoding, int level) throws IOException {
+		this(new CountingOutputStream(out), new TimedDeflater(level, encoding == ContentEncoding.GZIP), encoding);
+	}
+
+	private CompressingOutputStream(CountingOutputStream counter, TimedDeflater deflater, ContentEncoding encoding)
+			throws IOException {
+		super(counter, deflater, BUFFER_SIZE);
+		this.counter = counter;
+		this.deflater = deflater;
+		if (encoding == ContentEncoding.GZIP) {
+			this.crc = new CRC32();
+			counter.write(GZIP_HEADER);
+		} else {
+			this.crc = null;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		super.write(b, off, len);
+		if (crc != null) {
+			crc.update(b, off, len);
+		}
+		bytesIn += len;
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		super.finish();
+		if (crc != null) {
+			// the gzip trailer: the CRC-32 and the size of the input, both little endian
+			writeInt((int) crc.getValue());
+			writeInt((int) bytesIn);
+		}
+		finished = true;
+	}
+
+	private void writeInt(int i) throws IOException {
+		counter.write(i & 0xff);
+		counter.write((i >> 8) & 0xff);
+		counter.write((i >> 16) & 0xff);
+		counter.write((i >> 24) & 0xff);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Release the native memory of the compressor, without finishing the stream. Used when the body could not be sent.
+	 */
+	public void end() {
+		deflater.end();
+	}
+
+	/**
+	 * Get the number of bytes written to this stream.
+	 * 
+	 * @return the number of uncompressed bytes
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * Get the number of bytes written to the underlying stream, headers and trailers included.
+	 * 
+	 * @return the number of compressed bytes
+	 */
+	public long getBytesOut() {
+		return counter.getCount();
+	}
+
+	/**
+	 * Get the time spent compressing, in nanoseconds. This is the CPU time of the writing thread where the JVM measures
+	 * it, the elapsed time otherwise.
+	 * 
+	 * @return the time spent compressing
+	 */
+	public long getCompressionTime() {
+		return deflater.time;
+	}
+}
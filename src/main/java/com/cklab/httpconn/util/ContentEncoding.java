@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+/**
+ * The content codings a request body can be compressed with.
+ * 
+ * @author cklab
+ * 
+ */
+public enum ContentEncoding {
+	/** RFC 1952 gzip, the most widely accepted */
+	GZIP("gzip"),
+	/** RFC 1950 zlib, slightly smaller than gzip */
+	DEFLATE("deflate");
+
+	private final String	name;
+
+	private ContentEncoding(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Get the name of the coding, as sent in the Content-Encoding header.
+	 * 
+	 * @return the name of the coding
+	 */
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * CountingOutputStream class.
+ * 
+ * Counts the bytes written through it. Without a target stream the bytes are discarded, which is used to measure a
+ * body before it is sent.
+ * 
+ * @author cklab
+ * 
+ */
+public class CountingOutputStream extends OutputStream {
+
+	private OutputStream	out;
+	private long			count;
+
+	/**
+	 * Create a CountingOutputStream that discards what is written to it.
+	 */
+	public CountingOutputStream() {
+		this(null);
+	}
+
+	/**
+	 * Create a CountingOutputStream that forwards what is written to it.
+	 * 
+	 * @param out
+	 *            the target stream, or null to discard the bytes
+	 */
+	public CountingOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Get the number of bytes written so far.
+	 * 
+	 * @return the number of bytes written so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (out != null)
+			out.write(b);
+		count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (out != null)
+			out.write(b, off, len);
+		count += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (out != null)
+			out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (out != null)
+			out.close();
+	}
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.File;
+import java.net.URLConnection;
+
+/**
+ * FilePart class.
+ * 
+ * Used for specifying a file to upload in a <code>multipart/form-data</code> request. The content of the file is never
+ * loaded into memory, it is streamed from disk when the request is sent.
+ * 
+ * @author cklab
+ * 
+ */
+public class FilePart {
+
+	public static final String	DEFAULT_CONTENT_TYPE	= "application/octet-stream";
+
+	private String				name, fileName, contentType;
+	private File				file;
+
+	/**
+	 * Construct a FilePart for the given form field name and file. The content type is guessed from the file name.
+	 * 
+	 * @param name
+	 *            the name of the form field
+	 * @param file
+	 *            the file to upload
+	 */
+	public FilePart(String name, File file) {
+		this(name, file, null);
+	}
+
+	/**
+	 * Construct a FilePart for the given form field name, file and content type.
+	 * 
+	 * @param name
+	 *            the name of the form field
+	 * @param file
+	 *            the file to upload
+	 * @param contentType
+	 *            the content type of the file, or null to guess it from the file name
+	 */
+	public FilePart(String name, File file, String contentType) {
+		this(name, file, file == null ? null : file.getName(), contentType);
+	}
+
+	/**
+	 * Construct a FilePart for the given form field name, file, file name and content type.
+	 * 
+	 * @param name
+	 *            the name of the form field
+	 * @param file
+	 *            the file to upload
+	 * @param fileName
+	 *            the file name reported to the server
+	 * @param contentType
+	 *            the content type of the file, or null to guess it from the file name
+	 */
+	public FilePart(String name, File file, String fileName, String contentType) {
+		this.name = name;
+		this.file = file;
+		this.fileName = fileName;
+
+		if (contentType == null && fileName != null) {
+			contentType = URLConnection.guessContentTypeFromName(fileName);
+		}
+		this.contentType = contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+	}
+
+	/**
+	 * Get the name of the form field.
+	 * 
+	 * @return the name of the form field.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the file to upload.
+	 * 
+	 * @return the file to upload.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the file name reported to the server.
+	 * 
+	 * @return the file name reported to the server.
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Get the content type of the file.
+	 * 
+	 * @return the content type of the file.
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Get the number of bytes that will be uploaded for this part.
+	 * 
+	 * @return the size of the file in bytes.
+	 */
+	public long getLength() {
+		return file.length();
+	}
+
+	/**
+	 * Determine whether or not this FilePart is valid.
+	 * 
+	 * @return true if the name is null or the file is not a readable regular file; false otherwise.
+	 */
+	public boolean invalid() {
+		if (name == null || file == null || !file.isFile() || !file.canRead())
+			return true;
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "FilePart [name=" + name + ", file=" + file + ", contentType=" + contentType + "]";
+	}
+}
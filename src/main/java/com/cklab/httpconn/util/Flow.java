@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+/**
+ * Flow class.
+ * 
+ * The interfaces of a stream of items with demand-driven backpressure, the same as <code>java.util.concurrent.Flow</code>
+ * of Java 9 and the Reactive Streams specification, for the Java versions without them. A subscriber requests the
+ * number of items it can take, and the publisher never sends more.
+ * 
+ * @author cklab
+ * 
+ */
+public final class Flow {
+
+	private Flow() {
+	}
+
+	/**
+	 * A source of items, sent to each of its subscribers as they request them.
+	 * 
+	 * @param <T>
+	 *            the type of the items
+	 */
+	public static interface Publisher<T> {
+
+		/**
+		 * Add a subscriber. It is first given its {@link Subscription} with
+		 * {@link Subscriber#onSubscribe(Subscription)}, and then only as many items as it requests.
+		 * 
+		 * @param subscriber
+		 *            the subscriber
+		 */
+		public void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * A receiver of items. Its methods are called one at a time, never concurrently.
+	 * 
+	 * @param <T>
+	 *            the type of the items
+	 */
+	public static interface Subscriber<T> {
+
+		/**
+		 * Called before any other method, with the subscription to request items on.
+		 * 
+		 * @param subscription
+		 *            the subscription
+		 */
+		public void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called with the next item, once it has been requested.
+		 * 
+		 * @param item
+		 *            the item
+		 */
+		public void onNext(T item);
+
+		/**
+		 * Called when the publisher failed; no other method is called afterwards.
+		 * 
+		 * @param throwable
+		 *            the failure
+		 */
+		public void onError(Throwable throwable);
+
+		/**
+		 * Called after the last item; no other method is called afterwards.
+		 */
+		public void onComplete();
+	}
+
+	/**
+	 * The link between a publisher and one of its subscribers.
+	 */
+	public static interface Subscription {
+
+		/**
+		 * Ask for more items. Demand adds up until it is met.
+		 * 
+		 * @param n
+		 *            the number of items, greater than 0
+		 */
+		public void request(long n);
+
+		/**
+		 * Stop sending items. Items already on their way may still arrive.
+		 */
+		public void cancel();
+	}
+}
@@ -0,0 +1,496 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.net.HttpURLConnection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * HeaderMap class.
+ * 
+ * The headers of a request or a response. Names are case insensitive, as in HTTP: <code>get("content-type")</code>
+ * finds <code>Content-Type</code>. Every value is kept in a pair of flat arrays, in the order it was added, with a hash
+ * index on the names for constant time lookups; the names of common headers are interned so that they are shared by
+ * all requests.
+ * 
+ * This is a {@link Map} of names to lists of values, but the lists are built on demand and cannot be modified: use
+ * {@link #add(String, String)}, {@link #set(String, String)} and {@link #getFirst(String)} to avoid allocating them.
+ * The status line of a response is stored under the <code>null</code> name, as {@link HttpURLConnection} does.
+ * 
+ * @author cklab
+ * 
+ */
+public class HeaderMap extends AbstractMap<String, List<String>> {
+
+	private static final HeaderMap	COMMON	= new HeaderMap(64);
+
+	static {
+		String[] common = { "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Age",
+				"Allow", "Authorization", "Cache-Control", "Connection", "Content-Disposition", "Content-Encoding",
+				"Content-Language", "Content-Length", "Content-Location", "Content-Range", "Content-Type", "Cookie",
+				"Date", "ETag", "Expect", "Expires", "Host", "If-Match", "If-Modified-Since", "If-None-Match", "If-Range",
+				"Keep-Alive", "Last-Modified", "Link", "Location", "Pragma", "Range", "Referer", "Retry-After", "Server",
+				"Set-Cookie", "Strict-Transport-Security", "Transfer-Encoding", "User-Agent", "Vary", "Via",
+				"WWW-Authenticate", "X-Powered-By" };
+		for (String name : common) {
+			COMMON.add(name, name);
+		}
+	}
+
+	// entry i is the value values[i] of the header names[i]; next[i] - 1 is the next value of the same header
+	private String[]				names;
+	private String[]				values;
+	private int[]					next;
+	private int						count;
+
+	// open addressing on the names: slots[h] - 1 is the first entry of a header, 0 for an empty slot
+	private int[]					slots;
+	private int						distinct;
+
+	/**
+	 * Create an empty HeaderMap.
+	 */
+	public HeaderMap() {
+		this(8);
+	}
+
+	/**
+	 * Create an empty HeaderMap.
+	 * 
+	 * @param capacity
+	 *            the number of values it holds before growing
+	 */
+	public HeaderMap(int capacity) {
+		capacity = Math.max(capacity, 4);
+		this.names = new String[capacity];
+		this.values = new String[capacity];
+		this.next = new int[capacity];
+		this.slots = new int[tableSize(capacity)];
+	}
+
+	/**
+	 * Create a HeaderMap holding the same headers as a map.
+	 * 
+	 * @param headers
+	 *            the headers
+	 */
+	public HeaderMap(Map<String, List<String>> headers) {
+		this(headers instanceof HeaderMap ? ((HeaderMap) headers).count : headers.size() * 2);
+		if (headers instanceof HeaderMap) {
+			HeaderMap other = (HeaderMap) headers;
+			System.arraycopy(other.names, 0, names, 0, other.count);
+			System.arraycopy(other.values, 0, values, 0, other.count);
+			System.arraycopy(other.next, 0, next, 0, other.count);
+			count = other.count;
+			slots = other.slots.clone();
+			distinct = other.distinct;
+		} else {
+			putAll(headers);
+		}
+	}
+
+	/**
+	 * Read the response headers of a connection, in the order they were received. This does not go through
+	 * {@link HttpURLConnection#getHeaderFields()}, which builds a map of lists and reverses the order of repeated
+	 * headers.
+	 * 
+	 * @param conn
+	 *            the connection, once its response has arrived
+	 * @return the headers
+	 */
+	public static HeaderMap fromConnection(HttpURLConnection conn) {
+		HeaderMap headers = new HeaderMap(16);
+		for (int i = 0;; i++) {
+			String value = conn.getHeaderField(i);
+			if (value == null) {
+				break;
+			}
+			headers.add(conn.getHeaderFieldKey(i), value);
+		}
+		return headers;
+	}
+
+	private static int tableSize(int capacity) {
+		int size = 8;
+		while (size < capacity * 2) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Hash a name without regard to the case of its ASCII letters.
+	 */
+	private static int hash(String name) {
+		if (name == null) {
+			return 0;
+		}
+		int h = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean sameName(String a, String b) {
+		return a == null ? b == null : a.equalsIgnoreCase(b);
+	}
+
+	/**
+	 * Find the slot of a name: the slot holding it, or the empty slot where it belongs.
+	 */
+	private int slot(String name) {
+		int mask = slots.length - 1;
+		int h = hash(name) & mask;
+		while (slots[h] != 0 && !sameName(names[slots[h] - 1], name)) {
+			h = (h + 1) & mask;
+		}
+		return h;
+	}
+
+	/**
+	 * The first entry of a header.
+	 * 
+	 * @return the index of the entry, or -1
+	 */
+	private int first(Object name) {
+		if (name != null && !(name instanceof String)) {
+			return -1;
+		}
+		return slots[slot((String) name)] - 1;
+	}
+
+	private String intern(String name) {
+		if (name == null || this == COMMON) {
+			return name;
+		}
+		int i = COMMON.first(name);
+		return i < 0 ? name : COMMON.names[i];
+	}
+
+	/**
+	 * Add a value to a header, after its other values.
+	 * 
+	 * @param name
+	 *            the name of the header
+	 * @param value
+	 *            the value
+	 */
+	public void add(String name, String value) {
+		if (count == names.length) {
+			int capacity = count * 2;
+			names = Arrays.copyOf(names, capacity);
+			values = Arrays.copyOf(values, capacity);
+			next = Arrays.copyOf(next, capacity);
+		}
+		if ((distinct + 1) * 2 > slots.length) {
+			rehash(tableSize(distinct + 1));
+		}
+
+		int h = slot(name);
+		int i = count++;
+		values[i] = value;
+		next[i] = 0;
+		if (slots[h] == 0) {
+			names[i] = intern(name);
+			slots[h] = i + 1;
+			distinct++;
+		} else {
+			// the same name as the first value, so that the name is only stored once
+			int last = slots[h] - 1;
+			names[i] = names[last];
+			while (next[last] != 0) {
+				last = next[last] - 1;
+			}
+			next[last] = i + 1;
+		}
+	}
+
+	/**
+	 * Replace the values of a header with a single value.
+	 * 
+	 * @param name
+	 *            the name of the header
+	 * @param value
+	 *            the value
+	 */
+	public void set(String name, String value) {
+		remove(name);
+		add(name, value);
+	}
+
+	private void rehash(int size) {
+		slots = new int[size];
+		int mask = size - 1;
+		for (int i = 0; i < count; i++) {
+			int h = hash(names[i]) & mask;
+			while (slots[h] != 0 && !sameName(names[slots[h] - 1], names[i])) {
+				h = (h + 1) & mask;
+			}
+			if (slots[h] == 0) {
+				slots[h] = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * Get the first value of a header.
+	 * 
+	 * @param name
+	 *            the name of the header, in any case
+	 * @return the value, or null if there is no such header
+	 */
+	public String getFirst(String name) {
+		int i = first(name);
+		return i < 0 ? null : values[i];
+	}
+
+	/**
+	 * Get the last value of a header, as {@link HttpURLConnection#getHeaderField(String)} does.
+	 * 
+	 * @param name
+	 *            the name of the header, in any case
+	 * @return the value, or null if there is no such header
+	 */
+	public String getLast(String name) {
+		int i = first(name);
+		if (i < 0) {
+			return null;
+		}
+		while (next[i] != 0) {
+			i = next[i] - 1;
+		}
+		return values[i];
+	}
+
+	/**
+	 * Get the values of a header, in the order they were added.
+	 * 
+	 * @param name
+	 *            the name of the header, in any case
+	 * @return an unmodifiable list of the values, or null if there is no such header
+	 */
+	@Override
+	public List<String> get(Object name) {
+		int i = first(name);
+		if (i < 0) {
+			return null;
+		}
+		List<String> list = new ArrayList<String>(2);
+		for (; i >= 0; i = next[i] - 1) {
+			list.add(values[i]);
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	@Override
+	public boolean containsKey(Object name) {
+		return first(name) >= 0;
+	}
+
+	/**
+	 * Replace the values of a header.
+	 * 
+	 * @param name
+	 *            the name of the header
+	 * @param list
+	 *            the values
+	 * @return the previous values, or null
+	 */
+	@Override
+	public List<String> put(String name, List<String> list) {
+		List<String> previous = remove(name);
+		for (String value : list) {
+			add(name, value);
+		}
+		return previous;
+	}
+
+	/**
+	 * Remove a header and all its values.
+	 * 
+	 * @param name
+	 *            the name of the header, in any case
+	 * @return the values removed, or null
+	 */
+	@Override
+	public List<String> remove(Object name) {
+		List<String> previous = get(name);
+		if (previous == null) {
+			return null;
+		}
+
+		// headers are few, compacting the arrays is cheaper than keeping tombstones around
+		String removed = names[first(name)];
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			if (names[i] != removed) {
+				names[kept] = names[i];
+				values[kept] = values[i];
+				kept++;
+			}
+		}
+		Arrays.fill(names, kept, count, null);
+		Arrays.fill(values, kept, count, null);
+		count = kept;
+		distinct--;
+		relink();
+		return previous;
+	}
+
+	/**
+	 * Rebuild the chains and the index from the names, after the entries have moved.
+	 */
+	private void relink() {
+		slots = new int[slots.length];
+		int mask = slots.length - 1;
+		int[] last = new int[count];
+		for (int i = 0; i < count; i++) {
+			next[i] = 0;
+			int h = hash(names[i]) & mask;
+			while (slots[h] != 0 && !sameName(names[slots[h] - 1], names[i])) {
+				h = (h + 1) & mask;
+			}
+			if (slots[h] == 0) {
+				slots[h] = i + 1;
+				last[i] = i;
+			} else {
+				int head = slots[h] - 1;
+				next[last[head]] = i + 1;
+				last[head] = i;
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(names, 0, count, null);
+		Arrays.fill(values, 0, count, null);
+		Arrays.fill(slots, 0);
+		count = 0;
+		distinct = 0;
+	}
+
+	/**
+	 * The number of headers, a header with several values counting once.
+	 */
+	@Override
+	public int size() {
+		return distinct;
+	}
+
+	/**
+	 * The number of values, over all headers.
+	 * 
+	 * @return the number of values
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * Get the name of a value, to go through all values without allocating.
+	 * 
+	 * @param i
+	 *            the index of the value, from 0 to {@link #count()}
+	 * @return the name of its header
+	 */
+	public String getName(int i) {
+		return names[i];
+	}
+
+	/**
+	 * Get a value, to go through all values without allocating.
+	 * 
+	 * @param i
+	 *            the index of the value, from 0 to {@link #count()}
+	 * @return the value
+	 */
+	public String getValue(int i) {
+		return values[i];
+	}
+
+	/**
+	 * Whether or not a value is the first of its header.
+	 * 
+	 * @param i
+	 *            the index of the value, from 0 to {@link #count()}
+	 * @return true if no value of the same header comes before it
+	 */
+	public boolean isFirst(int i) {
+		return first(names[i]) == i;
+	}
+
+	@Override
+	public Set<Map.Entry<String, List<String>>> entrySet() {
+		return new AbstractSet<Map.Entry<String, List<String>>>() {
+			@Override
+			public int size() {
+				return distinct;
+			}
+
+			@Override
+			public Iterator<Map.Entry<String, List<String>>> iterator() {
+				return new Iterator<Map.Entry<String, List<String>>>() {
+					private int	i	= advance(0);
+
+					private int advance(int from) {
+						while (from < count && !isFirst(from)) {
+							from++;
+						}
+						return from;
+					}
+
+					public boolean hasNext() {
+						return i < count;
+					}
+
+					public Map.Entry<String, List<String>> next() {
+						if (i >= count) {
+							throw new NoSuchElementException();
+						}
+						String name = names[i];
+						i = advance(i + 1);
+						return new AbstractMap.SimpleImmutableEntry<String, List<String>>(name, get(name));
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+}
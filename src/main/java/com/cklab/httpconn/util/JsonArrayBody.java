@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JsonArrayBody class.
+ * 
+ * A JSON array with typed elements (strings, numbers, booleans, nested objects and arrays) that is written straight
+ * into the request stream by a {@link JsonStreamWriter}.
+ * 
+ * @author cklab
+ * 
+ */
+public class JsonArrayBody implements JsonBody {
+
+	private List<Object>	values;
+
+	/**
+	 * Create an empty JSON array.
+	 */
+	public JsonArrayBody() {
+		this.values = new ArrayList<Object>();
+	}
+
+	/**
+	 * Add a string element.
+	 * 
+	 * @param value
+	 *            the value, may be null
+	 */
+	public void add(String value) {
+		values.add(value);
+	}
+
+	/**
+	 * Add an integral element.
+	 * 
+	 * @param value
+	 *            the value
+	 */
+	public void add(long value) {
+		values.add(Long.valueOf(value));
+	}
+
+	/**
+	 * Add a floating point element.
+	 * 
+	 * @param value
+	 *            the value, must be finite
+	 */
+	public void add(double value) {
+		if (Double.isInfinite(value) || Double.isNaN(value)) {
+			throw new IllegalArgumentException("Infinite and NaN values are not permitted in JSON");
+		}
+		values.add(Double.valueOf(value));
+	}
+
+	/**
+	 * Add a boolean element.
+	 * 
+	 * @param value
+	 *            the value
+	 */
+	public void add(boolean value) {
+		values.add(Boolean.valueOf(value));
+	}
+
+	/**
+	 * Add a nested object or array, see {@link JsonObjectBody} and {@link JsonArrayBody}.
+	 * 
+	 * @param value
+	 *            the value, may be null
+	 */
+	public void add(JsonBody value) {
+		values.add(value);
+	}
+
+	/**
+	 * Add a <code>null</code> element.
+	 */
+	public void addNull() {
+		values.add(null);
+	}
+
+	/**
+	 * The number of elements of this array.
+	 * 
+	 * @return the number of elements
+	 */
+	public int size() {
+		return values.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cklab.httpconn.util.JsonBody#writeJson(com.cklab.httpconn.util.JsonStreamWriter)
+	 */
+	@Override
+	public void writeJson(JsonStreamWriter out) throws IOException {
+		out.beginArray();
+		for (int i = 0; i < values.size(); i++) {
+			writeValue(out, values.get(i));
+		}
+		out.endArray();
+	}
+
+	/**
+	 * Write one of the values accepted by {@link JsonObjectBody} and {@link JsonArrayBody}.
+	 */
+	static void writeValue(JsonStreamWriter out, Object value) throws IOException {
+		if (value == null) {
+			out.nullValue();
+		} else if (value instanceof String) {
+			out.value((String) value);
+		} else if (value instanceof Long) {
+			out.value(((Long) value).longValue());
+		} else if (value instanceof Double) {
+			out.value(((Double) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			out.value(((Boolean) value).booleanValue());
+		} else {
+			out.value((JsonBody) value);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.IOException;
+
+/**
+ * JsonBody interface.
+ * 
+ * A JSON value that writes itself into a {@link JsonStreamWriter}. Used as the body of a request in
+ * {@link PostFormat#JSON}.
+ * 
+ * Implementations must write the same output every time they are called: the body is written once to compute the
+ * Content-Length and again if the request is retried.
+ * 
+ * @author cklab
+ * 
+ */
+public interface JsonBody {
+
+	/**
+	 * Write this value.
+	 * 
+	 * @param out
+	 *            the writer
+	 * @throws IOException
+	 */
+	public void writeJson(JsonStreamWriter out) throws IOException;
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import com.eclipsesource.json.JsonValue;
+
+/**
+ * JsonElementListener interface.
+ * 
+ * Receives the elements of a streamed JSON array one at a time, see
+ * {@link JsonResponse#onArrayElement(String, JsonElementListener)}.
+ * 
+ * @author cklab
+ * 
+ */
+public interface JsonElementListener {
+
+	/**
+	 * Called for every element of the array, as soon as it has been parsed.
+	 * 
+	 * @param path
+	 *            the path of the array
+	 * @param index
+	 *            the index of the element in the array
+	 * @param element
+	 *            the element
+	 */
+	public void onElement(String path, int index, JsonValue element);
+}
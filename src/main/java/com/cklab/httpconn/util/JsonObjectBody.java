@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JsonObjectBody class.
+ * 
+ * A JSON object with typed members (strings, numbers, booleans, nested objects and arrays) that is written straight
+ * into the request stream by a {@link JsonStreamWriter}. Members are written in the order they were added.
+ * 
+ * @author cklab
+ * 
+ */
+public class JsonObjectBody implements JsonBody {
+
+	private List<String>	names;
+	private List<Object>	values;
+
+	/**
+	 * Create an empty JSON object.
+	 */
+	public JsonObjectBody() {
+		this.names = new ArrayList<String>();
+		this.values = new ArrayList<Object>();
+	}
+
+	/**
+	 * Add a string member.
+	 * 
+	 * @param name
+	 *            the name of the member
+	 * @param value
+	 *            the value, may be null
+	 */
+	public void add(String name, String value) {
+		put(name, value);
+	}
+
+	/**
+	 * Add an integral member.
+	 * 
+	 * @param name
+	 *            the name of the member
+	 * @param value
+	 *            the value
+	 */
+	public void add(String name, long value) {
+		put(name, Long.valueOf(value));
+	}
+
+	/**
+	 * Add a floating point member.
+	 * 
+	 * @param name
+	 *            the name of the member
+	 * @param value
+	 *            the value, must be finite
+	 */
+	public void add(String name, double value) {
+		if (Double.isInfinite(value) || Double.isNaN(value)) {
+			throw new IllegalArgumentException("Infinite and NaN values are not permitted in JSON");
+		}
+		put(name, Double.valueOf(value));
+	}
+
+	/**
+	 * Add a boolean member.
+	 * 
+	 * @param name
+	 *            the name of the member
+	 * @param value
+	 *            the value
+	 */
+	public void add(String name, boolean value) {
+		put(name, Boolean.valueOf(value));
+	}
+
+	/**
+	 * Add a nested object or array, see {@link JsonObjectBody} and {@link JsonArrayBody}.
+	 * 
+	 * @param name
+	 *            the name of the member
+	 * @param value
+	 *            the value, may be null
+	 */
+	public void add(String name, JsonBody value) {
+		put(name, value);
+	}
+
+	/**
+	 * Add a <code>null</code> member.
+	 * 
+	 * @param name
+	 *            the name of the member
+	 */
+	public void addNull(String name) {
+		put(name, null);
+	}
+
+	/**
+	 * Add every valid {@link FormData} as a string member.
+	 * 
+	 * @param fields
+	 *            the form data
+	 */
+	public void addAll(List<FormData> fields) {
+		for (FormData fd : fields) {
+			if (!fd.invalid()) {
+				put(fd.getName(), fd.getValue());
+			}
+		}
+	}
+
+	/**
+	 * The number of members of this object.
+	 * 
+	 * @return the number of members
+	 */
+	public int size() {
+		return names.size();
+	}
+
+	private void put(String name, Object value) {
+		if (name == null) {
+			throw new NullPointerException("name is null");
+		}
+		names.add(name);
+		values.add(value);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.cklab.httpconn.util.JsonBody#writeJson(com.cklab.httpconn.util.JsonStreamWriter)
+	 */
+	@Override
+	public void writeJson(JsonStreamWriter out) throws IOException {
+		out.beginObject();
+		for (int i = 0; i < names.size(); i++) {
+			out.name(names.get(i));
+			JsonArrayBody.writeValue(out, values.get(i));
+		}
+		out.endObject();
+	}
+}
@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.cklab.httpconn.request.HTTPRequest;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+/**
+ * JsonResponse class.
+ * 
+ * Parses a JSON response body incrementally while it is read from the network, see
+ * {@link HTTPRequest#setJsonResponse(JsonResponse)}. The body is never buffered as text.
+ * 
+ * Values are looked up with paths made of member names separated by dots and array indices in brackets, e.g.
+ * <code>data.items[0].id</code>. Arrays registered with {@link #onArrayElement(String, JsonElementListener)} are
+ * delivered one element at a time and are not kept, so huge arrays are never held in memory at once.
+ * 
+ * @author cklab
+ * 
+ */
+public class JsonResponse {
+
+	private Map<String, JsonElementListener>	listeners;
+	private JsonValue							root;
+	private IOException							exception;
+
+	/**
+	 * Create a JsonResponse.
+	 */
+	public JsonResponse() {
+		this.listeners = new HashMap<String, JsonElementListener>();
+	}
+
+	/**
+	 * Stream the elements of the array at the given path to a listener instead of keeping them in the parsed tree.
+	 * 
+	 * @param path
+	 *            the path of the array, e.g. <code>data.items</code>, or "" if the document itself is an array.
+	 * @param listener
+	 *            the listener
+	 */
+	public void onArrayElement(String path, JsonElementListener listener) {
+		listeners.put(path, listener);
+	}
+
+	/**
+	 * Parse the body. This is called by {@link HTTPRequest#readBody(java.io.InputStream)}.
+	 * 
+	 * @param in
+	 *            the body
+	 * @throws IOException
+	 *             if the stream fails or does not contain valid JSON
+	 */
+	public void parse(Reader in) throws IOException {
+		root = null;
+		exception = null;
+		try {
+			JsonStreamReader reader = new JsonStreamReader(in);
+			root = readValue(reader, listeners.isEmpty() ? null : new StringBuilder());
+			reader.peek(); // must be the end of the document
+		} catch (IOException e) {
+			exception = e;
+			throw e;
+		}
+	}
+
+	/**
+	 * Read a value, streaming the arrays that have a listener. The path is only tracked if there are listeners.
+	 */
+	private JsonValue readValue(JsonStreamReader reader, StringBuilder path) throws IOException {
+		switch (reader.peek()) {
+		case BEGIN_OBJECT:
+			JsonObject object = new JsonObject();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				int length = 0;
+				if (path != null) {
+					length = path.length();
+					if (length > 0)
+						path.append('.');
+					path.append(name);
+				}
+				JsonValue value = readValue(reader, path);
+				if (path != null)
+					path.setLength(length);
+				if (value != null)
+					object.add(name, value);
+			}
+			reader.endObject();
+			return object;
+		case BEGIN_ARRAY:
+			JsonElementListener listener = path == null ? null : listeners.get(path.toString());
+			JsonArray array = listener == null ? new JsonArray() : null;
+			String arrayPath = listener == null ? null : path.toString();
+			int index = 0;
+			reader.beginArray();
+			while (reader.hasNext()) {
+				int length = 0;
+				if (path != null) {
+					length = path.length();
+					path.append('[').append(index).append(']');
+				}
+				JsonValue value = readValue(reader, path);
+				if (path != null)
+					path.setLength(length);
+
+				if (listener != null) {
+					listener.onElement(arrayPath, index, value);
+				} else if (value != null) {
+					array.add(value);
+				}
+				index++;
+			}
+			reader.endArray();
+			// streamed arrays are not part of the tree
+			return array;
+		default:
+			return reader.readValue();
+		}
+	}
+
+	/**
+	 * Get the parsed document, without the streamed arrays.
+	 * 
+	 * @return the document, or null if nothing has been parsed
+	 */
+	public JsonValue getRoot() {
+		return root;
+	}
+
+	/**
+	 * The error that stopped the parsing, if any. The values parsed up to that point are not available.
+	 * 
+	 * @return the error, or null if the body was parsed successfully
+	 */
+	public IOException getException() {
+		return exception;
+	}
+
+	/**
+	 * Look up a value by its path.
+	 * 
+	 * @param path
+	 *            the path, e.g. <code>data.items[0].id</code>
+	 * @return the value, or null if there is no such value
+	 */
+	public JsonValue get(String path) {
+		JsonValue value = root;
+		int i = 0;
+		int length = path.length();
+		while (value != null && i < length) {
+			char c = path.charAt(i);
+			if (c == '.') {
+				i++;
+			} else if (c == '[') {
+				int end = path.indexOf(']', i);
+				if (end < 0 || !value.isArray())
+					return null;
+				int index;
+				try {
+					index = Integer.parseInt(path.substring(i + 1, end));
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				JsonArray array = value.asArray();
+				value = index >= 0 && index < array.size() ? array.get(index) : null;
+				i = end + 1;
+			} else {
+				int end = i;
+				while (end < length && path.charAt(end) != '.' && path.charAt(end) != '[') {
+					end++;
+				}
+				if (!value.isObject())
+					return null;
+				value = value.asObject().get(path.substring(i, end));
+				i = end;
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Get a string by its path.
+	 * 
+	 * @param path
+	 *            the path
+	 * @return the string, or null if there is no such value or it is <code>null</code>
+	 */
+	public String getString(String path) {
+		JsonValue value = get(path);
+		if (value == null || value.isNull())
+			return null;
+		return value.asString();
+	}
+
+	/**
+	 * Get an integral number by its path.
+	 * 
+	 * @param path
+	 *            the path
+	 * @param defaultValue
+	 *            the value returned if there is no such value or it is <code>null</code>
+	 * @return the number
+	 */
+	public long getLong(String path, long defaultValue) {
+		JsonValue value = get(path);
+		if (value == null || value.isNull())
+			return defaultValue;
+		return value.asLong();
+	}
+
+	/**
+	 * Get a number by its path.
+	 * 
+	 * @param path
+	 *            the path
+	 * @param defaultValue
+	 *            the value returned if there is no such value or it is <code>null</code>
+	 * @return the number
+	 */
+	public double getDouble(String path, double defaultValue) {
+		JsonValue value = get(path);
+		if (value == null || value.isNull())
+			return defaultValue;
+		return value.asDouble();
+	}
+
+	/**
+	 * Get a boolean by its path.
+	 * 
+	 * @param path
+	 *            the path
+	 * @param defaultValue
+	 *            the value returned if there is no such value or it is <code>null</code>
+	 * @return the boolean
+	 */
+	public boolean getBoolean(String path, boolean defaultValue) {
+		JsonValue value = get(path);
+		if (value == null || value.isNull())
+			return defaultValue;
+		return value.asBoolean();
+	}
+}
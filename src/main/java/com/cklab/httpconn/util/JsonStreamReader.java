@@ -0,0 +1,639 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+/**
+ * JsonStreamReader class.
+ * 
+ * A pull parser that reads JSON token by token from a {@link Reader}, the counterpart of {@link JsonStreamWriter}.
+ * Only a small fixed buffer is held in memory, so arbitrarily large documents can be read as they arrive from the
+ * network. Single values can be materialized as minimal-json values with {@link #readValue()}.
+ * 
+ * <pre>
+ * in.beginObject();
+ * while (in.hasNext()) {
+ * 	String name = in.nextName();
+ * 	if (name.equals("id"))
+ * 		id = in.nextLong();
+ * 	else
+ * 		in.skipValue();
+ * }
+ * in.endObject();
+ * </pre>
+ * 
+ * @author cklab
+ * 
+ */
+public class JsonStreamReader {
+
+	/**
+	 * The kinds of tokens returned by {@link JsonStreamReader#peek()}.
+	 */
+	public enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT;
+	}
+
+	// state of each open object/array, and of the document itself
+	private static final int	EMPTY_DOCUMENT		= 0;
+	private static final int	NONEMPTY_DOCUMENT	= 1;
+	private static final int	EMPTY_ARRAY			= 2;
+	private static final int	NONEMPTY_ARRAY		= 3;
+	private static final int	EMPTY_OBJECT		= 4;
+	private static final int	DANGLING_NAME		= 5;
+	private static final int	NONEMPTY_OBJECT		= 6;
+
+	private Reader				in;
+	private char[]				buffer;
+	private int					pos;
+	private int					limit;
+	private long				offset;				// characters consumed before the current buffer
+
+	private int[]				stack;
+	private int					depth;
+
+	private Token				peeked;
+	private StringBuilder		chars;
+
+	/**
+	 * Create a JsonStreamReader reading from the given Reader.
+	 * 
+	 * @param in
+	 *            the reader; it is not closed.
+	 */
+	public JsonStreamReader(Reader in) {
+		this.in = in;
+		this.buffer = new char[8192];
+		this.stack = new int[16];
+		this.stack[0] = EMPTY_DOCUMENT;
+		this.depth = 1;
+		this.chars = new StringBuilder();
+	}
+
+	/**
+	 * Look at the next token without consuming it.
+	 * 
+	 * @return the next token
+	 * @throws IOException
+	 *             if the stream fails or does not contain valid JSON
+	 */
+	public Token peek() throws IOException {
+		if (peeked != null) {
+			return peeked;
+		}
+
+		int c;
+		switch (stack[depth - 1]) {
+		case EMPTY_DOCUMENT:
+			stack[depth - 1] = NONEMPTY_DOCUMENT;
+			break;
+		case NONEMPTY_DOCUMENT:
+			if (nextNonWhitespace() != -1) {
+				throw syntaxError("Expected end of document");
+			}
+			return peeked = Token.END_DOCUMENT;
+		case EMPTY_ARRAY:
+			stack[depth - 1] = NONEMPTY_ARRAY;
+			c = nextNonWhitespace();
+			if (c == ']') {
+				return peeked = Token.END_ARRAY;
+			}
+			unread(c);
+			break;
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']') {
+				return peeked = Token.END_ARRAY;
+			} else if (c != ',') {
+				throw syntaxError("Expected ',' or ']'");
+			}
+			break;
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			c = nextNonWhitespace();
+			if (c == '}') {
+				return peeked = Token.END_OBJECT;
+			}
+			if (stack[depth - 1] == NONEMPTY_OBJECT) {
+				if (c != ',') {
+					throw syntaxError("Expected ',' or '}'");
+				}
+				c = nextNonWhitespace();
+			}
+			if (c != '"') {
+				throw syntaxError("Expected name");
+			}
+			stack[depth - 1] = DANGLING_NAME;
+			return peeked = Token.NAME;
+		case DANGLING_NAME:
+			if (nextNonWhitespace() != ':') {
+				throw syntaxError("Expected ':'");
+			}
+			stack[depth - 1] = NONEMPTY_OBJECT;
+			break;
+		}
+
+		// a value is expected
+		c = nextNonWhitespace();
+		switch (c) {
+		case '{':
+			return peeked = Token.BEGIN_OBJECT;
+		case '[':
+			return peeked = Token.BEGIN_ARRAY;
+		case '"':
+			return peeked = Token.STRING;
+		case 't':
+		case 'f':
+			pos--;
+			return peeked = Token.BOOLEAN;
+		case 'n':
+			pos--;
+			return peeked = Token.NULL;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				pos--;
+				return peeked = Token.NUMBER;
+			}
+			throw syntaxError(c == -1 ? "Unexpected end of input" : "Expected value");
+		}
+	}
+
+	/**
+	 * Whether or not the current object or array has another element.
+	 * 
+	 * @return true if there is another element, false if the object or array ends.
+	 * @throws IOException
+	 */
+	public boolean hasNext() throws IOException {
+		Token token = peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+	}
+
+	/**
+	 * Consume the start of an object.
+	 * 
+	 * @throws IOException
+	 */
+	public void beginObject() throws IOException {
+		expect(Token.BEGIN_OBJECT);
+		push(EMPTY_OBJECT);
+	}
+
+	/**
+	 * Consume the end of the current object.
+	 * 
+	 * @throws IOException
+	 */
+	public void endObject() throws IOException {
+		expect(Token.END_OBJECT);
+		depth--;
+	}
+
+	/**
+	 * Consume the start of an array.
+	 * 
+	 * @throws IOException
+	 */
+	public void beginArray() throws IOException {
+		expect(Token.BEGIN_ARRAY);
+		push(EMPTY_ARRAY);
+	}
+
+	/**
+	 * Consume the end of the current array.
+	 * 
+	 * @throws IOException
+	 */
+	public void endArray() throws IOException {
+		expect(Token.END_ARRAY);
+		depth--;
+	}
+
+	/**
+	 * Consume the name of the next member of the current object.
+	 * 
+	 * @return the name
+	 * @throws IOException
+	 */
+	public String nextName() throws IOException {
+		expect(Token.NAME);
+		return readString();
+	}
+
+	/**
+	 * Consume a string value.
+	 * 
+	 * @return the string
+	 * @throws IOException
+	 */
+	public String nextString() throws IOException {
+		expect(Token.STRING);
+		return readString();
+	}
+
+	/**
+	 * Consume a number and return it as it appears in the document.
+	 * 
+	 * @return the number literal
+	 * @throws IOException
+	 */
+	public String nextNumber() throws IOException {
+		expect(Token.NUMBER);
+		return readNumber();
+	}
+
+	/**
+	 * Consume an integral number.
+	 * 
+	 * @return the number
+	 * @throws IOException
+	 *             if the value is not a number or does not fit into a long
+	 */
+	public long nextLong() throws IOException {
+		String number = nextNumber();
+		try {
+			return Long.parseLong(number);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Expected a long but was " + number);
+		}
+	}
+
+	/**
+	 * Consume a number.
+	 * 
+	 * @return the number
+	 * @throws IOException
+	 */
+	public double nextDouble() throws IOException {
+		return Double.parseDouble(nextNumber());
+	}
+
+	/**
+	 * Consume a boolean.
+	 * 
+	 * @return the boolean
+	 * @throws IOException
+	 */
+	public boolean nextBoolean() throws IOException {
+		expect(Token.BOOLEAN);
+		if (buffer[pos] == 't') {
+			readLiteral("true");
+			return true;
+		}
+		readLiteral("false");
+		return false;
+	}
+
+	/**
+	 * Consume a <code>null</code>.
+	 * 
+	 * @throws IOException
+	 */
+	public void nextNull() throws IOException {
+		expect(Token.NULL);
+		readLiteral("null");
+	}
+
+	/**
+	 * Skip the next value, including nested objects and arrays, without building any of it.
+	 * 
+	 * @throws IOException
+	 */
+	public void skipValue() throws IOException {
+		int open = 0;
+		do {
+			switch (peek()) {
+			case BEGIN_OBJECT:
+				beginObject();
+				open++;
+				break;
+			case BEGIN_ARRAY:
+				beginArray();
+				open++;
+				break;
+			case END_OBJECT:
+				endObject();
+				open--;
+				break;
+			case END_ARRAY:
+				endArray();
+				open--;
+				break;
+			case NAME:
+			case STRING:
+				peeked = null;
+				skipString();
+				break;
+			case NUMBER:
+				peeked = null;
+				readNumber();
+				break;
+			case BOOLEAN:
+				nextBoolean();
+				break;
+			case NULL:
+				nextNull();
+				break;
+			case END_DOCUMENT:
+				throw syntaxError("Unexpected end of document");
+			}
+		} while (open > 0);
+	}
+
+	/**
+	 * Consume the next value and materialize it, including nested objects and arrays.
+	 * 
+	 * @return the value
+	 * @throws IOException
+	 */
+	public JsonValue readValue() throws IOException {
+		switch (peek()) {
+		case BEGIN_OBJECT:
+			JsonObject object = new JsonObject();
+			beginObject();
+			while (hasNext()) {
+				String name = nextName();
+				object.add(name, readValue());
+			}
+			endObject();
+			return object;
+		case BEGIN_ARRAY:
+			JsonArray array = new JsonArray();
+			beginArray();
+			while (hasNext()) {
+				array.add(readValue());
+			}
+			endArray();
+			return array;
+		case STRING:
+			return JsonValue.valueOf(nextString());
+		case NUMBER:
+			return toJsonNumber(nextNumber());
+		case BOOLEAN:
+			return nextBoolean() ? JsonValue.TRUE : JsonValue.FALSE;
+		case NULL:
+			nextNull();
+			return JsonValue.NULL;
+		default:
+			throw syntaxError("Expected value");
+		}
+	}
+
+	/**
+	 * Convert a number literal into a minimal-json value.
+	 * 
+	 * @param number
+	 *            the literal, as returned by {@link #nextNumber()}
+	 * @return the value
+	 */
+	public static JsonValue toJsonNumber(String number) {
+		boolean integral = true;
+		for (int i = 0; i < number.length() && integral; i++) {
+			char c = number.charAt(i);
+			integral = c != '.' && c != 'e' && c != 'E';
+		}
+		if (integral && number.length() < 19) {
+			return JsonValue.valueOf(Long.parseLong(number));
+		}
+		// keep the exact literal for anything a long or double cannot represent as written
+		return JsonValue.readFrom(number);
+	}
+
+	/**
+	 * The position of the parser in the input, for error messages.
+	 * 
+	 * @return the number of characters consumed
+	 */
+	public long getOffset() {
+		return offset + pos;
+	}
+
+	private void expect(Token token) throws IOException {
+		Token actual = peek();
+		if (actual != token) {
+			throw syntaxError("Expected " + token + " but was " + actual);
+		}
+		peeked = null;
+	}
+
+	private void push(int state) {
+		if (depth == stack.length) {
+			int[] newStack = new int[depth * 2];
+			System.arraycopy(stack, 0, newStack, 0, depth);
+			stack = newStack;
+		}
+		stack[depth++] = state;
+	}
+
+	/**
+	 * Read the next character, or -1 at the end of the input.
+	 */
+	private int read() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos++];
+	}
+
+	/**
+	 * Push back the character that was just read.
+	 */
+	private void unread(int c) {
+		if (c != -1) {
+			pos--;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		offset += limit;
+		pos = 0;
+		limit = 0;
+		int n = in.read(buffer, 0, buffer.length);
+		while (n == 0) {
+			n = in.read(buffer, 0, buffer.length);
+		}
+		if (n < 0) {
+			return false;
+		}
+		limit = n;
+		return true;
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+		return c;
+	}
+
+	private void readLiteral(String literal) throws IOException {
+		for (int i = 0; i < literal.length(); i++) {
+			if (read() != literal.charAt(i)) {
+				throw syntaxError("Expected " + literal);
+			}
+		}
+	}
+
+	/**
+	 * Read a number, following the grammar of RFC 8259: an optional minus, an integer part without leading zeros, an
+	 * optional fraction and an optional exponent.
+	 */
+	private String readNumber() throws IOException {
+		chars.setLength(0);
+		int c = read();
+		if (c == '-') {
+			chars.append('-');
+			c = read();
+		}
+		if (c == '0') {
+			chars.append('0');
+			c = read();
+		} else {
+			c = readDigits(c);
+		}
+		if (c == '.') {
+			chars.append('.');
+			c = readDigits(read());
+		}
+		if (c == 'e' || c == 'E') {
+			chars.append((char) c);
+			c = read();
+			if (c == '+' || c == '-') {
+				chars.append((char) c);
+				c = read();
+			}
+			c = readDigits(c);
+		}
+		unread(c);
+		return chars.toString();
+	}
+
+	/**
+	 * Read a run of at least one digit.
+	 * 
+	 * @return the character following the digits
+	 */
+	private int readDigits(int c) throws IOException {
+		if (!isDigit(c)) {
+			throw syntaxError("Expected digit in number " + chars);
+		}
+		do {
+			chars.append((char) c);
+			c = read();
+		} while (isDigit(c));
+		return c;
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * Read the rest of a string whose opening quote has been consumed.
+	 */
+	private String readString() throws IOException {
+		chars.setLength(0);
+		while (true) {
+			// copy unescaped runs straight from the buffer
+			int start = pos;
+			while (pos < limit) {
+				char c = buffer[pos];
+				if (c == '"') {
+					chars.append(buffer, start, pos - start);
+					pos++;
+					return chars.toString();
+				}
+				if (c == '\\') {
+					break;
+				}
+				pos++;
+			}
+			chars.append(buffer, start, pos - start);
+
+			if (pos < limit) {
+				pos++;
+				chars.append(readEscape());
+			} else if (!fill()) {
+				throw syntaxError("Unterminated string");
+			}
+		}
+	}
+
+	private void skipString() throws IOException {
+		int c;
+		while ((c = read()) != '"') {
+			if (c == -1) {
+				throw syntaxError("Unterminated string");
+			}
+			if (c == '\\') {
+				readEscape();
+			}
+		}
+	}
+
+	/**
+	 * Read an escape sequence whose backslash has been consumed.
+	 */
+	private char readEscape() throws IOException {
+		int c = read();
+		switch (c) {
+		case '"':
+		case '/':
+		case '\\':
+			return (char) c;
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int h = read();
+				int digit = Character.digit(h < 0 ? ' ' : h, 16);
+				if (digit < 0) {
+					throw syntaxError("Invalid unicode escape");
+				}
+				value = (value << 4) | digit;
+			}
+			return (char) value;
+		default:
+			throw syntaxError("Invalid escape sequence");
+		}
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException("Malformed JSON at offset " + getOffset() + ": " + message);
+	}
+}
@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * JsonStreamWriter class.
+ * 
+ * Writes JSON token by token straight into a {@link Writer}, without building a tree of values or an intermediate
+ * String. The output has the same compact format as minimal-json's <code>JsonValue.toString()</code>.
+ * 
+ * <pre>
+ * out.beginObject();
+ * out.name("id");
+ * out.value(42);
+ * out.name("tags");
+ * out.beginArray();
+ * out.value("a");
+ * out.endArray();
+ * out.endObject();
+ * </pre>
+ * 
+ * @author cklab
+ * 
+ */
+public class JsonStreamWriter {
+
+	private static final char[]	HEX		= "0123456789abcdef".toCharArray();
+
+	// state of each open object/array
+	private static final int	EMPTY	= 0;	// nothing written yet
+	private static final int	FILLED	= 1;	// at least one value written, the next needs a comma
+	private static final int	NAMED	= 2;	// (objects only) a name was written, a value must follow
+
+	private Writer				out;
+	private int[]				stack;
+	private boolean[]			isObject;
+	private int					depth;
+	private char[]				digits;
+
+	/**
+	 * Create a JsonStreamWriter writing to the given Writer.
+	 * 
+	 * @param out
+	 *            the writer; it is neither flushed nor closed, see {@link #flush()}.
+	 */
+	public JsonStreamWriter(Writer out) {
+		this.out = out;
+		this.stack = new int[16];
+		this.isObject = new boolean[16];
+		this.depth = 0;
+		this.digits = new char[20];
+	}
+
+	/**
+	 * Start a JSON object.
+	 * 
+	 * @throws IOException
+	 */
+	public void beginObject() throws IOException {
+		beforeValue();
+		push(true);
+		out.write('{');
+	}
+
+	/**
+	 * End the current JSON object.
+	 * 
+	 * @throws IOException
+	 */
+	public void endObject() throws IOException {
+		pop(true);
+		out.write('}');
+	}
+
+	/**
+	 * Start a JSON array.
+	 * 
+	 * @throws IOException
+	 */
+	public void beginArray() throws IOException {
+		beforeValue();
+		push(false);
+		out.write('[');
+	}
+
+	/**
+	 * End the current JSON array.
+	 * 
+	 * @throws IOException
+	 */
+	public void endArray() throws IOException {
+		pop(false);
+		out.write(']');
+	}
+
+	/**
+	 * Write the name of the next member of the current object.
+	 * 
+	 * @param name
+	 *            the member name
+	 * @throws IOException
+	 */
+	public void name(String name) throws IOException {
+		if (depth == 0 || !isObject[depth - 1] || stack[depth - 1] == NAMED) {
+			throw new IllegalStateException("A name is only allowed inside an object, before a value");
+		}
+		if (stack[depth - 1] == FILLED) {
+			out.write(',');
+		}
+		writeString(name);
+		out.write(':');
+		stack[depth - 1] = NAMED;
+	}
+
+	/**
+	 * Write a string value, or <code>null</code>.
+	 * 
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 */
+	public void value(String value) throws IOException {
+		if (value == null) {
+			nullValue();
+			return;
+		}
+		beforeValue();
+		writeString(value);
+	}
+
+	/**
+	 * Write an integral number.
+	 * 
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 */
+	public void value(long value) throws IOException {
+		beforeValue();
+		if (value == Long.MIN_VALUE) {
+			// cannot be negated below
+			out.write("-9223372036854775808");
+			return;
+		}
+
+		int pos = digits.length;
+		long v = value < 0 ? -value : value;
+		do {
+			digits[--pos] = (char) ('0' + (v % 10));
+			v /= 10;
+		} while (v != 0);
+		if (value < 0) {
+			digits[--pos] = '-';
+		}
+		out.write(digits, pos, digits.length - pos);
+	}
+
+	/**
+	 * Write a floating point number.
+	 * 
+	 * @param value
+	 *            the value, must be finite
+	 * @throws IOException
+	 */
+	public void value(double value) throws IOException {
+		if (Double.isInfinite(value) || Double.isNaN(value)) {
+			throw new IllegalArgumentException("Infinite and NaN values are not permitted in JSON");
+		}
+		beforeValue();
+		String s = Double.toString(value);
+		if (s.endsWith(".0")) {
+			out.write(s, 0, s.length() - 2);
+		} else {
+			out.write(s);
+		}
+	}
+
+	/**
+	 * Write a boolean.
+	 * 
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 */
+	public void value(boolean value) throws IOException {
+		beforeValue();
+		out.write(value ? "true" : "false");
+	}
+
+	/**
+	 * Write a nested body, or <code>null</code>.
+	 * 
+	 * @param value
+	 *            the body
+	 * @throws IOException
+	 */
+	public void value(JsonBody value) throws IOException {
+		if (value == null) {
+			nullValue();
+			return;
+		}
+		value.writeJson(this);
+	}
+
+	/**
+	 * Write <code>null</code>.
+	 * 
+	 * @throws IOException
+	 */
+	public void nullValue() throws IOException {
+		beforeValue();
+		out.write("null");
+	}
+
+	/**
+	 * Flush the underlying writer.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Update the state of the enclosing object/array before a value is written.
+	 */
+	private void beforeValue() throws IOException {
+		if (depth == 0) {
+			return;
+		}
+
+		int state = stack[depth - 1];
+		if (isObject[depth - 1]) {
+			if (state != NAMED) {
+				throw new IllegalStateException("A value inside an object needs a name first");
+			}
+		} else if (state == FILLED) {
+			out.write(',');
+		}
+		stack[depth - 1] = FILLED;
+	}
+
+	private void push(boolean object) {
+		if (depth == stack.length) {
+			int[] newStack = new int[depth * 2];
+			boolean[] newIsObject = new boolean[depth * 2];
+			System.arraycopy(stack, 0, newStack, 0, depth);
+			System.arraycopy(isObject, 0, newIsObject, 0, depth);
+			stack = newStack;
+			isObject = newIsObject;
+		}
+		stack[depth] = EMPTY;
+		isObject[depth] = object;
+		depth++;
+	}
+
+	private void pop(boolean object) {
+		if (depth == 0 || isObject[depth - 1] != object || stack[depth - 1] == NAMED) {
+			throw new IllegalStateException("Unbalanced end of " + (object ? "object" : "array"));
+		}
+		depth--;
+	}
+
+	/**
+	 * Write a quoted and escaped string. Unescaped runs are written in one call, nothing is allocated.
+	 */
+	private void writeString(String s) throws IOException {
+		out.write('"');
+		int start = 0;
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+				continue;
+			}
+
+			out.write(s, start, i - start);
+			start = i + 1;
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				out.write("\\u");
+				out.write(HEX[(c >> 12) & 0xF]);
+				out.write(HEX[(c >> 8) & 0xF]);
+				out.write(HEX[(c >> 4) & 0xF]);
+				out.write(HEX[c & 0xF]);
+			}
+		}
+		out.write(s, start, length - start);
+		out.write('"');
+	}
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lines class.
+ * 
+ * Iterates over the lines of a text without copying it: only the line being returned is. A line ends with a line
+ * feed, a carriage return or both.
+ * 
+ * @author cklab
+ * 
+ */
+public class Lines implements Iterable<String> {
+
+	private final CharSequence	text;
+
+	/**
+	 * Create the lines of a text. The text is read while iterating, so changes to it show.
+	 * 
+	 * @param text
+	 *            the text
+	 */
+	public Lines(CharSequence text) {
+		this.text = text;
+	}
+
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			private int	position;
+
+			public boolean hasNext() {
+				return position < text.length();
+			}
+
+			public String next() {
+				int length = text.length();
+				if (position >= length) {
+					throw new NoSuchElementException();
+				}
+				int end = position;
+				while (end < length && text.charAt(end) != '\n' && text.charAt(end) != '\r') {
+					end++;
+				}
+				String line = text.subSequence(position, end).toString();
+				position = end;
+				if (position < length && text.charAt(position++) == '\r' && position < length && text.charAt(position) == '\n') {
+					position++;
+				}
+				return line;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
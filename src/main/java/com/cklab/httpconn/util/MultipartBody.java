@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * MultipartBody class.
+ * 
+ * Writes a <code>multipart/form-data</code> body made of in-memory {@link FormData} fields and {@link FilePart}s. File
+ * content is copied into the output through a small buffer, so files of any size can be uploaded without being loaded
+ * into memory.
+ * 
+ * The boundary is a random 128 bit token rather than a string checked against the payload: the chance of it occurring
+ * in the content is negligible, and the payload never has to be scanned.
+ * 
+ * @author cklab
+ * 
+ */
+public class MultipartBody {
+
+	private static final Random		BOUNDARY_RANDOM	= new SecureRandom();
+	private static final char[]		HEX				= "0123456789abcdef".toCharArray();
+	private static final byte[]		CRLF			= { '\r', '\n' };
+	private static final byte[]		DASHES			= { '-', '-' };
+	private static final int		BUFFER_SIZE		= 8 * 1024;
+
+	private String					boundary;
+	private List<FormData>			fields;
+	private List<FilePart>			files;
+
+	/**
+	 * Create a multipart body.
+	 * 
+	 * @param boundary
+	 *            the boundary, see {@link #newBoundary()}
+	 * @param fields
+	 *            the in-memory form fields
+	 * @param files
+	 *            the files to stream from disk
+	 */
+	public MultipartBody(String boundary, List<FormData> fields, List<FilePart> files) {
+		this.boundary = boundary;
+		this.fields = fields;
+		this.files = files;
+	}
+
+	/**
+	 * Generate a new random boundary.
+	 * 
+	 * @return a new boundary
+	 */
+	public static String newBoundary() {
+		byte[] random = new byte[16];
+		BOUNDARY_RANDOM.nextBytes(random);
+
+		StringBuilder sb = new StringBuilder("----HTTPConnBoundary");
+		for (byte b : random) {
+			sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the boundary of this body.
+	 * 
+	 * @return the boundary
+	 */
+	public String getBoundary() {
+		return boundary;
+	}
+
+	/**
+	 * The value of the Content-Type header that has to be sent along with this body.
+	 * 
+	 * @return the content type, including the boundary
+	 */
+	public String getContentType() {
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	/**
+	 * Compute the exact number of bytes {@link #writeTo(OutputStream)} will write, without reading any file.
+	 * 
+	 * @return the length of this body in bytes
+	 */
+	public long getContentLength() {
+		long length = 0;
+		int delimiter = DASHES.length + utf8(boundary).length + CRLF.length;
+
+		for (FormData fd : fields) {
+			if (fd.invalid())
+				continue;
+			length += delimiter + utf8(fieldHeader(fd)).length + utf8(fd.getValue()).length + CRLF.length;
+		}
+		for (FilePart fp : files) {
+			length += delimiter + utf8(fileHeader(fp)).length + fp.getLength() + CRLF.length;
+		}
+		length += DASHES.length + utf8(boundary).length + DASHES.length + CRLF.length;
+		return length;
+	}
+
+	/**
+	 * Write this body to the given stream.
+	 * 
+	 * @param out
+	 *            the stream to write to; it is not closed.
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] boundaryBytes = utf8(boundary);
+		byte[] buffer = null;
+
+		for (FormData fd : fields) {
+			if (fd.invalid())
+				continue;
+			writeDelimiter(out, boundaryBytes);
+			out.write(utf8(fieldHeader(fd)));
+			out.write(utf8(fd.getValue()));
+			out.write(CRLF);
+		}
+
+		for (FilePart fp : files) {
+			writeDelimiter(out, boundaryBytes);
+			out.write(utf8(fileHeader(fp)));
+
+			if (buffer == null) {
+				buffer = new byte[BUFFER_SIZE];
+			}
+			copyFile(fp, out, buffer);
+			out.write(CRLF);
+		}
+
+		out.write(DASHES);
+		out.write(boundaryBytes);
+		out.write(DASHES);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Copy the content of a file part into the output, exactly the length it was measured at.
+	 */
+	private void copyFile(FilePart fp, OutputStream out, byte[] buffer) throws IOException {
+		FileInputStream in = new FileInputStream(fp.getFile());
+		try {
+			long size = fp.getLength();
+			long position = 0;
+			while (position < size) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, size - position));
+				if (n < 0) {
+					// the file shrunk after the Content-Length was computed
+					throw new EOFException("File " + fp.getFile() + " ended after " + position + " of " + size + " bytes");
+				}
+				out.write(buffer, 0, n);
+				position += n;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeDelimiter(OutputStream out, byte[] boundaryBytes) throws IOException {
+		out.write(DASHES);
+		out.write(boundaryBytes);
+		out.write(CRLF);
+	}
+
+	private static String fieldHeader(FormData fd) {
+		return "Content-Disposition: form-data; name=\"" + escape(fd.getName()) + "\"\r\n\r\n";
+	}
+
+	private static String fileHeader(FilePart fp) {
+		StringBuilder sb = new StringBuilder("Content-Disposition: form-data; name=\"");
+		sb.append(escape(fp.getName())).append('"');
+		if (fp.getFileName() != null) {
+			sb.append("; filename=\"").append(escape(fp.getFileName())).append('"');
+		}
+		sb.append("\r\nContent-Type: ").append(fp.getContentType()).append("\r\n\r\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Escape a name for use in a quoted Content-Disposition parameter.
+	 */
+	private static String escape(String name) {
+		return name.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// every JVM is required to support UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -1,5 +1,5 @@
 package com.cklab.httpconn.util;
 
 public enum PostFormat {
-	JSON, QUERY;
+	JSON, QUERY, MULTIPART;
 }
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+/**
+ * ServerSentEvent class.
+ * 
+ * An event received on a <code>text/event-stream</code>, see {@link com.cklab.httpconn.reader.EventStream}.
+ * 
+ * @author cklab
+ * 
+ */
+public class ServerSentEvent {
+
+	private final String	id;
+	private final String	type;
+	private final String	data;
+
+	/**
+	 * Create a ServerSentEvent.
+	 * 
+	 * @param id
+	 *            the last event ID of the stream when the event was received
+	 * @param type
+	 *            the type of the event
+	 * @param data
+	 *            the data, its lines separated by line feeds
+	 */
+	public ServerSentEvent(String id, String type, String data) {
+		this.id = id;
+		this.type = type;
+		this.data = data;
+	}
+
+	/**
+	 * Get the last event ID of the stream when the event was received, which the server resumes the stream after
+	 * when reconnecting.
+	 * 
+	 * @return the ID, empty if the server has not set one
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Get the type of the event.
+	 * 
+	 * @return the type, "message" unless the server named another one
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * Get the data of the event.
+	 * 
+	 * @return the data, its lines separated by line feeds
+	 */
+	public String getData() {
+		return data;
+	}
+
+	public String toString() {
+		return "ServerSentEvent [id=" + id + ", type=" + type + ", data=" + data + "]";
+	}
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+/**
+ * ServerSentEventListener interface.
+ * 
+ * Receives the events of a <code>text/event-stream</code> as they arrive, see
+ * {@link com.cklab.httpconn.reader.EventStream}. The methods are called on the thread reading the stream, which
+ * waits for them to return.
+ * 
+ * @author cklab
+ * 
+ */
+public interface ServerSentEventListener {
+
+	/**
+	 * Called for every event, as soon as its closing blank line has been read.
+	 * 
+	 * @param event
+	 *            the event
+	 */
+	public void onEvent(ServerSentEvent event);
+
+	/**
+	 * Called when the stream failed or ended.
+	 * 
+	 * @param e
+	 *            what happened
+	 * @param reconnecting
+	 *            true if the stream is reconnected after its reconnection delay, false if it is over
+	 */
+	public void onError(Exception e, boolean reconnecting);
+}
@@ -0,0 +1,451 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+/**
+ * URIReference class.
+ * 
+ * An absolute or relative URI reference split into its components as described in RFC 3986. Parsing is done by hand
+ * in a single pass (no regular expressions), and relative references are resolved against a base URI with the
+ * algorithm of RFC 3986 section 5.2. Instances are immutable.
+ * 
+ * @author cklab
+ * 
+ */
+public class URIReference {
+
+	private final String	scheme;
+	private final String	authority;
+	private final String	path;
+	private final String	query;
+	private final String	fragment;
+
+	/**
+	 * Create a URI reference from its components.
+	 * 
+	 * @param scheme
+	 *            the scheme, e.g. "https", or null
+	 * @param authority
+	 *            the authority, e.g. "example.org:8080", or null
+	 * @param path
+	 *            the path, never null (may be empty)
+	 * @param query
+	 *            the query without the '?', or null
+	 * @param fragment
+	 *            the fragment without the '#', or null
+	 */
+	public URIReference(String scheme, String authority, String path, String query, String fragment) {
+		this.scheme = scheme;
+		this.authority = authority;
+		this.path = path == null ? "" : path;
+		this.query = query;
+		this.fragment = fragment;
+	}
+
+	/**
+	 * Split a URI reference into its components. This never fails: anything that is not a scheme, authority, query or
+	 * fragment is part of the path.
+	 * 
+	 * @param uri
+	 *            the URI reference
+	 * @return the parsed reference
+	 */
+	public static URIReference parse(String uri) {
+		String scheme = null, authority = null, query = null, fragment = null;
+		int length = uri.length();
+		int i = 0;
+
+		// scheme: an ALPHA followed by scheme characters, up to the first ':' before any '/', '?' or '#'
+		if (length > 0 && isAlpha(uri.charAt(0))) {
+			int end = 1;
+			while (end < length && isSchemeChar(uri.charAt(end))) {
+				end++;
+			}
+			if (end < length && uri.charAt(end) == ':') {
+				scheme = uri.substring(0, end);
+				i = end + 1;
+			}
+		}
+
+		if (uri.startsWith("//", i)) {
+			int end = indexOfAny(uri, i + 2, "/?#");
+			authority = uri.substring(i + 2, end);
+			i = end;
+		}
+
+		int end = indexOfAny(uri, i, "?#");
+		String path = uri.substring(i, end);
+		i = end;
+
+		if (i < length && uri.charAt(i) == '?') {
+			end = indexOfAny(uri, i + 1, "#");
+			query = uri.substring(i + 1, end);
+			i = end;
+		}
+
+		if (i < length && uri.charAt(i) == '#') {
+			fragment = uri.substring(i + 1);
+		}
+
+		return new URIReference(scheme, authority, path, query, fragment);
+	}
+
+	/**
+	 * Resolve a reference against this URI, as described in RFC 3986 section 5.2.2.
+	 * 
+	 * @param ref
+	 *            the reference, e.g. the value of a Location header
+	 * @return the target URI
+	 */
+	public URIReference resolve(URIReference ref) {
+		String tScheme, tAuthority, tPath, tQuery;
+
+		if (ref.scheme != null) {
+			tScheme = ref.scheme;
+			tAuthority = ref.authority;
+			tPath = removeDotSegments(ref.path);
+			tQuery = ref.query;
+		} else {
+			if (ref.authority != null) {
+				tAuthority = ref.authority;
+				tPath = removeDotSegments(ref.path);
+				tQuery = ref.query;
+			} else {
+				if (ref.path.length() == 0) {
+					tPath = path;
+					tQuery = ref.query != null ? ref.query : query;
+				} else {
+					if (ref.path.charAt(0) == '/') {
+						tPath = removeDotSegments(ref.path);
+					} else {
+						tPath = removeDotSegments(merge(ref.path));
+					}
+					tQuery = ref.query;
+				}
+				tAuthority = authority;
+			}
+			tScheme = scheme;
+		}
+
+		return new URIReference(tScheme, tAuthority, tPath, tQuery, ref.fragment);
+	}
+
+	/**
+	 * Resolve a reference against this URI.
+	 * 
+	 * @param ref
+	 *            the reference
+	 * @return the target URI
+	 * @see #resolve(URIReference)
+	 */
+	public URIReference resolve(String ref) {
+		return resolve(parse(ref));
+	}
+
+	/**
+	 * Merge a relative path with the path of this URI (RFC 3986 section 5.2.3).
+	 */
+	private String merge(String refPath) {
+		if (authority != null && path.length() == 0) {
+			return "/" + refPath;
+		}
+		int slash = path.lastIndexOf('/');
+		if (slash < 0) {
+			return refPath;
+		}
+		return path.substring(0, slash + 1) + refPath;
+	}
+
+	/**
+	 * Remove the "." and ".." segments from a path (RFC 3986 section 5.2.4).
+	 * 
+	 * @param path
+	 *            the path
+	 * @return the path without dot segments
+	 */
+	public static String removeDotSegments(String path) {
+		// fast path: most paths do not have any dot segment
+		if (path.indexOf('.') < 0) {
+			return path;
+		}
+
+		StringBuilder out = new StringBuilder(path.length());
+		int i = 0;
+		int length = path.length();
+		while (i < length) {
+			if (path.startsWith("../", i)) {
+				i += 3;
+			} else if (path.startsWith("./", i)) {
+				i += 2;
+			} else if (path.startsWith("/./", i)) {
+				i += 2;
+			} else if (path.startsWith("/.", i) && i + 2 == length) {
+				// "/." at the end: replace with "/"
+				out.append('/');
+				i += 2;
+			} else if (path.startsWith("/../", i)) {
+				i += 3;
+				removeLastSegment(out);
+			} else if (path.startsWith("/..", i) && i + 3 == length) {
+				removeLastSegment(out);
+				out.append('/');
+				i += 3;
+			} else if ((path.startsWith(".", i) && i + 1 == length) || (path.startsWith("..", i) && i + 2 == length)) {
+				i = length;
+			} else {
+				// move the first segment, including its leading '/', to the output
+				int end = path.indexOf('/', path.charAt(i) == '/' ? i + 1 : i);
+				if (end < 0) {
+					end = length;
+				}
+				out.append(path, i, end);
+				i = end;
+			}
+		}
+		return out.toString();
+	}
+
+	private static void removeLastSegment(StringBuilder out) {
+		int slash = out.lastIndexOf("/");
+		out.setLength(slash < 0 ? 0 : slash);
+	}
+
+	/**
+	 * Get the scheme.
+	 * 
+	 * @return the scheme, or null for a relative reference
+	 */
+	public String getScheme() {
+		return scheme;
+	}
+
+	/**
+	 * Get the authority, i.e. the host with the optional user info and port.
+	 * 
+	 * @return the authority, or null if there is none
+	 */
+	public String getAuthority() {
+		return authority;
+	}
+
+	/**
+	 * Get the path.
+	 * 
+	 * @return the path, possibly empty
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Get the query, without the '?'.
+	 * 
+	 * @return the query, or null if there is none
+	 */
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Get the fragment, without the '#'.
+	 * 
+	 * @return the fragment, or null if there is none
+	 */
+	public String getFragment() {
+		return fragment;
+	}
+
+	/**
+	 * Whether or not this is an absolute URI, i.e. it has a scheme.
+	 * 
+	 * @return true if this URI has a scheme, false otherwise.
+	 */
+	public boolean isAbsolute() {
+		return scheme != null;
+	}
+
+	/**
+	 * Whether or not the scheme is https.
+	 * 
+	 * @return true if the scheme is https, false otherwise.
+	 */
+	public boolean isHttps() {
+		return "https".equalsIgnoreCase(scheme);
+	}
+
+	/**
+	 * Get the host of the authority, without the user info and port. IPv6 addresses keep their brackets.
+	 * 
+	 * @return the host, or null if there is no authority
+	 */
+	public String getHost() {
+		if (authority == null) {
+			return null;
+		}
+		int start = authority.lastIndexOf('@') + 1;
+		int end = portSeparator();
+		return authority.substring(start, end < 0 ? authority.length() : end);
+	}
+
+	/**
+	 * Get the port of the authority.
+	 * 
+	 * @return the port, or -1 if there is none
+	 */
+	public int getPort() {
+		int colon = portSeparator();
+		if (colon < 0 || colon == authority.length() - 1) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(authority.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the port, or the default port of the scheme if there is none.
+	 * 
+	 * @return the port, or -1 if it is unknown
+	 */
+	public int getEffectivePort() {
+		int port = getPort();
+		if (port != -1) {
+			return port;
+		}
+		if ("http".equalsIgnoreCase(scheme)) {
+			return 80;
+		}
+		if ("https".equalsIgnoreCase(scheme)) {
+			return 443;
+		}
+		return -1;
+	}
+
+	/**
+	 * The index of the ':' before the port in the authority, or -1.
+	 */
+	private int portSeparator() {
+		if (authority == null) {
+			return -1;
+		}
+		int colon = authority.lastIndexOf(':');
+		if (colon < 0 || colon < authority.lastIndexOf(']') || colon < authority.lastIndexOf('@')) {
+			return -1;
+		}
+		return colon;
+	}
+
+	/**
+	 * Whether or not the given URI points to the same scheme, host and port as this one.
+	 * 
+	 * @param other
+	 *            the other URI
+	 * @return true if both URIs share the same origin, false otherwise.
+	 */
+	public boolean isSameOrigin(URIReference other) {
+		if (scheme == null ? other.scheme != null : !scheme.equalsIgnoreCase(other.scheme)) {
+			return false;
+		}
+		String host = getHost();
+		String otherHost = other.getHost();
+		if (host == null ? otherHost != null : !host.equalsIgnoreCase(otherHost)) {
+			return false;
+		}
+		return getEffectivePort() == other.getEffectivePort();
+	}
+
+	/**
+	 * Get the page as used by {@link com.cklab.httpconn.request.HTTPRequest}: the path without its leading '/',
+	 * followed by the query. The fragment is not part of the page, it is never sent to the server.
+	 * 
+	 * @return the page
+	 */
+	public String getPage() {
+		String page = path.startsWith("/") ? path.substring(1) : path;
+		if (query != null) {
+			return page + "?" + query;
+		}
+		return page;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		// RFC 3986 section 5.3
+		StringBuilder sb = new StringBuilder();
+		if (scheme != null) {
+			sb.append(scheme).append(':');
+		}
+		if (authority != null) {
+			sb.append("//").append(authority);
+		}
+		sb.append(path);
+		if (query != null) {
+			sb.append('?').append(query);
+		}
+		if (fragment != null) {
+			sb.append('#').append(fragment);
+		}
+		return sb.toString();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		return toString().equals(obj.toString());
+	}
+
+	private static boolean isAlpha(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isSchemeChar(char c) {
+		return isAlpha(c) || (c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.';
+	}
+
+	private static int indexOfAny(String s, int from, String chars) {
+		for (int i = from; i < s.length(); i++) {
+			if (chars.indexOf(s.charAt(i)) >= 0) {
+				return i;
+			}
+		}
+		return s.length();
+	}
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.MalformedInputException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * WebSocketMessage class.
+ * 
+ * A message received on a {@link com.cklab.httpconn.reader.WebSocket}. The frames it arrived in are kept as they were
+ * read rather than joined: {@link #getText()} decodes across them and {@link #getInputStream()} reads through them,
+ * and only {@link #getBytes()} copies them into one array.
+ * 
+ * @author cklab
+ * 
+ */
+public class WebSocketMessage {
+
+	private static final Charset	UTF_8	= Charset.forName("UTF-8");
+
+	private final boolean			text;
+	private final List<ByteBuffer>	fragments;
+	private final long				length;
+
+	/**
+	 * Create a WebSocketMessage.
+	 * 
+	 * @param text
+	 *            true for a text message, false for a binary one
+	 * @param fragments
+	 *            the payload, in order; the buffers are not copied
+	 */
+	public WebSocketMessage(boolean text, List<ByteBuffer> fragments) {
+		this.text = text;
+		this.fragments = fragments;
+		long total = 0;
+		for (ByteBuffer fragment : fragments) {
+			total += fragment.remaining();
+		}
+		this.length = total;
+	}
+
+	/**
+	 * Whether or not this is a text message.
+	 * 
+	 * @return true for a text message, false for a binary one
+	 */
+	public boolean isText() {
+		return text;
+	}
+
+	/**
+	 * Get the length of the payload.
+	 * 
+	 * @return the length in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the payload as it was received.
+	 * 
+	 * @return read-only views of the fragments, in order
+	 */
+	public List<ByteBuffer> getFragments() {
+		List<ByteBuffer> views = new ArrayList<ByteBuffer>(fragments.size());
+		for (ByteBuffer fragment : fragments) {
+			views.add(fragment.asReadOnlyBuffer());
+		}
+		return Collections.unmodifiableList(views);
+	}
+
+	/**
+	 * Decode the payload as UTF-8.
+	 * 
+	 * @return the text
+	 * @throws CharacterCodingException
+	 *             if the payload is not valid UTF-8
+	 */
+	public String getText() throws CharacterCodingException {
+		CharsetDecoder decoder = UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		CharBuffer out = CharBuffer.allocate((int) Math.min(Integer.MAX_VALUE, length));
+		// a character split between two fragments is carried over to the next one
+		ByteBuffer carry = ByteBuffer.allocate(4);
+		carry.flip();
+		for (int i = 0; i < fragments.size(); i++) {
+			ByteBuffer in = fragments.get(i).duplicate();
+			boolean last = i == fragments.size() - 1;
+			while (carry.hasRemaining() && in.hasRemaining()) {
+				carry.compact();
+				carry.put(in.get());
+				carry.flip();
+				CoderResult result = decoder.decode(carry, out, false);
+				if (result.isError()) {
+					result.throwException();
+				}
+			}
+			CoderResult result = decoder.decode(in, out, last);
+			if (result.isError()) {
+				result.throwException();
+			}
+			if (in.hasRemaining()) {
+				carry.compact();
+				carry.put(in);
+				carry.flip();
+			}
+		}
+		if (carry.hasRemaining()) {
+			// the payload ends in the middle of a character
+			throw new MalformedInputException(carry.remaining());
+		}
+		decoder.flush(out);
+		out.flip();
+		return out.toString();
+	}
+
+	/**
+	 * Copy the payload into one array.
+	 * 
+	 * @return the payload
+	 */
+	public byte[] getBytes() {
+		byte[] bytes = new byte[(int) length];
+		int position = 0;
+		for (ByteBuffer fragment : fragments) {
+			ByteBuffer view = fragment.duplicate();
+			int n = view.remaining();
+			view.get(bytes, position, n);
+			position += n;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Read the payload through its fragments.
+	 * 
+	 * @return a stream of the payload
+	 */
+	public InputStream getInputStream() {
+		return new InputStream() {
+			private int			index;
+			private ByteBuffer	current	= fragments.isEmpty() ? null : fragments.get(0).duplicate();
+
+			private boolean advance() {
+				while (current != null && !current.hasRemaining()) {
+					index++;
+					current = index < fragments.size() ? fragments.get(index).duplicate() : null;
+				}
+				return current != null;
+			}
+
+			@Override
+			public int read() throws IOException {
+				return advance() ? current.get() & 0xFF : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				if (!advance()) {
+					return -1;
+				}
+				int n = Math.min(len, current.remaining());
+				current.get(b, off, n);
+				return n;
+			}
+		};
+	}
+
+	public String toString() {
+		return "WebSocketMessage [text=" + text + ", length=" + length + ", fragments=" + fragments.size() + "]";
+	}
+}
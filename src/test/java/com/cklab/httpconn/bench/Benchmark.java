@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Benchmark class.
+ * 
+ * A minimal harness for the benchmarks of this package, which are run from their main method. The operation is warmed
+ * up, then timed over a number of iterations, reporting the time and the heap allocated per operation. Allocations can
+ * only be measured on JVMs providing com.sun.management.ThreadMXBean; elsewhere they are reported as -1.
+ * 
+ * @author cklab
+ * 
+ */
+abstract class Benchmark {
+
+	/**
+	 * Keeps the results of the operations alive, so the JIT cannot discard them.
+	 */
+	static volatile Object	sink;
+
+	private final String	name;
+
+	/**
+	 * Create a Benchmark.
+	 * 
+	 * @param name
+	 *            the name printed with the results
+	 */
+	Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Run the operation being measured once.
+	 * 
+	 * @return the result of the operation
+	 * @throws Exception
+	 *             if the operation fails
+	 */
+	abstract Object run() throws Exception;
+
+	/**
+	 * Warm up the operation, then measure it and print the results.
+	 * 
+	 * @param warmup
+	 *            the number of untimed iterations
+	 * @param iterations
+	 *            the number of timed iterations
+	 * @throws Exception
+	 *             if the operation fails
+	 */
+	void measure(int warmup, int iterations) throws Exception {
+		for (int i = 0; i < warmup; i++) {
+			sink = run();
+		}
+
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++) {
+			sink = run();
+		}
+
+		long time = System.nanoTime() - start;
+		long allocated = bytes < 0 ? -1 : (allocatedBytes() - bytes) / iterations;
+
+		System.out.println(String.format("%-36s %12d ns/op %14d B/op", name, time / iterations, allocated));
+	}
+
+	/**
+	 * Get the number of bytes allocated by the current thread so far.
+	 * 
+	 * @return the allocated bytes, or -1 if the JVM cannot tell
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
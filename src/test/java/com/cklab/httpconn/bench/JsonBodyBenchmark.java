@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.bench;
+
+import com.cklab.httpconn.request.HTTPRequest;
+import com.cklab.httpconn.request.Post;
+import com.cklab.httpconn.util.CountingOutputStream;
+import com.cklab.httpconn.util.FormData;
+import com.cklab.httpconn.util.PostFormat;
+import com.eclipsesource.json.JsonObject;
+
+/**
+ * JsonBodyBenchmark class.
+ * 
+ * Compares the allocations of the two ways a JSON request body has been written: building a minimal-json JsonObject
+ * and sending its toString(), as the form data was sent before, against streaming the fields through
+ * {@link HTTPRequest#writeFormData(java.io.OutputStream)}. Both write the body to a stream that discards it, so only
+ * the cost of producing the bytes is measured.
+ * 
+ * Run with the classes and the minimal-json jar on the classpath:
+ * 
+ * <pre>
+ * java -cp target/classes:target/test-classes:minimal-json.jar com.cklab.httpconn.bench.JsonBodyBenchmark
+ * </pre>
+ * 
+ * @author cklab
+ * 
+ */
+public class JsonBodyBenchmark {
+
+	/**
+	 * Build the given number of fields, with values that need escaping.
+	 * 
+	 * @param count
+	 *            the number of fields
+	 * @return the fields
+	 */
+	private static FormData[] createFields(int count) {
+		FormData[] fields = new FormData[count];
+
+		for (int i = 0; i < count; i++) {
+			fields[i] = new FormData("field" + i, "value \"" + i + "\" with some text to escape\t and unicode \u00e9");
+		}
+		return fields;
+	}
+
+	/**
+	 * Run the benchmark.
+	 * 
+	 * @param args
+	 *            optional payload sizes, in number of fields
+	 * @throws Exception
+	 *             if a body cannot be written
+	 */
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 100, 10000, 100000 };
+
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (final int size : sizes) {
+			final FormData[] fields = createFields(size);
+			final Post post = new Post("/");
+			post.setPostFormat(PostFormat.JSON);
+			post.setFormData(fields);
+			int iterations = Math.max(5, 1000000 / size);
+
+			new Benchmark("JsonObject.toString, " + size + " fields") {
+				@Override
+				Object run() throws Exception {
+					JsonObject data = new JsonObject();
+					for (FormData fd : fields) {
+						data.add(fd.getName(), fd.getValue());
+					}
+					CountingOutputStream out = new CountingOutputStream();
+					out.write(data.toString().getBytes("UTF-8"));
+					return out;
+				}
+			}.measure(iterations, iterations);
+
+			new Benchmark("writeFormData, " + size + " fields") {
+				@Override
+				Object run() throws Exception {
+					CountingOutputStream out = new CountingOutputStream();
+					post.writeFormData(out);
+					return out;
+				}
+			}.measure(iterations, iterations);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (C) 2011 CKLab
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to do
+ * so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.cklab.httpconn.bench;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.cklab.httpconn.util.URIReference;
+
+/**
+ * RedirectResolveBenchmark class.
+ * 
+ * Compares the cost of handling the Location header of a redirect: the regular expressions the reader used before
+ * (<code>getHostFromURI</code>/<code>getPageFromURI</code>, compiled on every call), against resolving the Location
+ * with {@link URIReference} as the reader does now. The Locations mix absolute, root-relative and relative references,
+ * as seen on redirect-heavy traffic. The old path does not resolve relative references at all, only its cost is
+ * compared here.
+ * 
+ * Run with the classes on the classpath:
+ * 
+ * <pre>
+ * java -cp target/classes:target/test-classes com.cklab.httpconn.bench.RedirectResolveBenchmark
+ * </pre>
+ * 
+ * @author cklab
+ * 
+ */
+public class RedirectResolveBenchmark {
+
+	private static final String		BASE		= "http://www.example.com/shop/cart/view?id=42";
+
+	private static final String[]	LOCATIONS	= { "https://www.example.com/shop/cart/view?id=42",
+			"http://www.example.com/login?next=%2Fshop%2Fcart", "https://accounts.example.org/oauth/authorize?client=7",
+			"http://cdn.example.net:8080/assets/img/logo.png", "/shop/cart/checkout", "/search?q=redirect+loops",
+			"checkout?step=2", "../orders/1337", "./view/../summary#totals", "//static.example.com/app.js" };
+
+	/**
+	 * The Location handling of the reader before {@link URIReference}.
+	 * 
+	 * @param location
+	 *            the Location header
+	 * @return the host and page of the redirect
+	 */
+	private static String[] resolveWithRegex(String location) {
+		String host = "www.example.com";
+		String page = location;
+
+		if (location.startsWith("http")) {
+			host = getHostFromURI(location);
+			page = getPageFromURI(location);
+		}
+		return new String[] { host, page };
+	}
+
+	private static String getHostFromURI(String uri) {
+		String host = "";
+		if (uri.charAt(uri.length() - 1) != '/')
+			uri += "/";
+		Matcher m = Pattern.compile("(?:http|https)://(.*?)(/|\\?)(.+)").matcher(uri);
+		if (m.find()) {
+			host = m.group(1);
+		}
+		return host;
+	}
+
+	private static String getPageFromURI(String uri) {
+		String page = "";
+		Matcher m = Pattern.compile("(?:http|https)://(.*?)/(.+)?").matcher(uri);
+		if (m.find()) {
+			page = m.group(2);
+		}
+		if (page == null)
+			return "";
+		return page;
+	}
+
+	/**
+	 * The Location handling of the reader with {@link URIReference}.
+	 * 
+	 * @param location
+	 *            the Location header
+	 * @return the host and page of the redirect
+	 */
+	private static String[] resolveWithURIReference(String location) {
+		URIReference target = URIReference.parse(BASE).resolve(location);
+		return new String[] { target.getAuthority(), target.getPage() };
+	}
+
+	/**
+	 * Run the benchmark.
+	 * 
+	 * @param args
+	 *            unused
+	 * @throws Exception
+	 *             if a Location cannot be handled
+	 */
+	public static void main(String[] args) throws Exception {
+		int iterations = 200000;
+
+		new Benchmark("regex, " + LOCATIONS.length + " locations") {
+			@Override
+			Object run() {
+				Object last = null;
+				for (String location : LOCATIONS) {
+					last = resolveWithRegex(location);
+				}
+				return last;
+			}
+		}.measure(iterations, iterations);
+
+		new Benchmark("URIReference, " + LOCATIONS.length + " locations") {
+			@Override
+			Object run() {
+				Object last = null;
+				for (String location : LOCATIONS) {
+					last = resolveWithURIReference(location);
+				}
+				return last;
+			}
+		}.measure(iterations, iterations);
+	}
+}